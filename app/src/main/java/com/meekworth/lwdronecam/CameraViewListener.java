@@ -10,6 +10,9 @@ class CameraViewListener implements TextureView.SurfaceTextureListener {
     private static final String TAG = "LWDroneCam/CameraViewListener";
     private final DroneCam mDroneCam;
     private final TextureView mTexture;
+    // until the stream says otherwise
+    private int mVideoWidth = DroneCam.DEFAULT_VID_WIDTH;
+    private int mVideoHeight = DroneCam.DEFAULT_VID_HEIGHT;
 
     CameraViewListener(DroneCam droneCam, TextureView texture) {
         mDroneCam = droneCam;
@@ -20,13 +23,25 @@ class CameraViewListener implements TextureView.SurfaceTextureListener {
     public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
         Log.v(TAG, "surface available (%d, %d)", width, height);
         mDroneCam.setSurface(surface);
-        adjustSize(DroneCam.DEFAULT_VID_WIDTH, DroneCam.DEFAULT_VID_HEIGHT, width, height);
+        adjustSize(mVideoWidth, mVideoHeight, width, height);
     }
 
     @Override
     public void onSurfaceTextureSizeChanged(SurfaceTexture surface, int width, int height) {
         Log.v(TAG, "surface size changed (%d, %d)", width, height);
-        adjustSize(DroneCam.DEFAULT_VID_WIDTH, DroneCam.DEFAULT_VID_HEIGHT, width, height);
+        adjustSize(mVideoWidth, mVideoHeight, width, height);
+    }
+
+    /**
+     * Fits the view to a new video size, keeping its aspect ratio.
+     */
+    void setVideoSize(int width, int height) {
+        Log.v(TAG, "video size changed (%d, %d)", width, height);
+        mVideoWidth = width;
+        mVideoHeight = height;
+        if (mTexture.getWidth() > 0 && mTexture.getHeight() > 0) {
+            adjustSize(width, height, mTexture.getWidth(), mTexture.getHeight());
+        }
     }
 
     @Override
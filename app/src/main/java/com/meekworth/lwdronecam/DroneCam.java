@@ -3,12 +3,28 @@ package com.meekworth.lwdronecam;
 import android.graphics.SurfaceTexture;
 
 import com.meekworth.lwdronecam.lwcomms.CamConnection;
+import com.meekworth.lwdronecam.lwcomms.CommandSession;
+import com.meekworth.lwdronecam.lwcomms.FrameDropFilter;
+import com.meekworth.lwdronecam.lwcomms.Heartbeat;
+import com.meekworth.lwdronecam.lwcomms.LinkMonitor;
 import com.meekworth.lwdronecam.lwcomms.LwcommsException;
+import com.meekworth.lwdronecam.lwcomms.ParameterSets;
+import com.meekworth.lwdronecam.lwcomms.StreamingTarget;
+import com.meekworth.lwdronecam.lwcomms.Telemetry;
+import com.meekworth.lwdronecam.record.Mp4Recorder;
+import com.meekworth.lwdronecam.record.ReplayBuffer;
+import com.meekworth.lwdronecam.relay.RelayServer;
 import com.meekworth.lwdronecam.utils.Log;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -19,9 +35,21 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class DroneCam {
     private static final String TAG = "LWDroneCam/DroneCam";
     private static final int MAX_STREAMS = 1;
+    // the stream socket is the hot path, so it uses the NIO channel transport
+    private static final CamConnection.TransportType STREAM_TRANSPORT =
+            CamConnection.TransportType.CHANNEL;
 
-    // Default from what the drone's camera sends back
-    // TODO: maybe put these in settings
+    // decoder backlog, in frames, above which the drop filter counts the display as behind
+    private static final int MAX_PENDING_FRAMES = 3;
+
+    // a status older than this is asked for again; keep-alives refresh it every few seconds
+    private static final long STATUS_MAX_AGE_MS = 5000;
+
+    // how much of the stream the instant replay keeps, in at most this much memory
+    private static final long REPLAY_WINDOW_MS = TimeUnit.SECONDS.toMillis(60);
+    private static final int REPLAY_MAX_BYTES = 32 * 1024 * 1024;
+
+    // What the drone's camera usually sends, assumed until the stream's SPS says otherwise
     static final int DEFAULT_VID_WIDTH = 1280;
     static final int DEFAULT_VID_HEIGHT = 720;
 
@@ -32,6 +60,23 @@ public class DroneCam {
     private String mHost;
     private int mStreamPort;
     private int mCmdPort;
+    private CommandSession mCmdSession;
+    private FrameDropFilter.Mode mDropMode = FrameDropFilter.Mode.NONE;
+    private File mCaptureDir;
+    private File mRecordDir;
+    private File mReplayDir;
+    // the running stream's instant replay, if it has one
+    private volatile ReplayBuffer mReplay;
+    private boolean mRelayEnabled;
+    // fed by the heartbeat replies on both the stream and the command connection
+    private final Telemetry mTelemetry = new Telemetry();
+
+    // The decoder is kept between streams, guarded by this. It's only released while no
+    // stream is using it, or by the stream thread on its way out after shutdown().
+    private final ParameterSets mParamSets = new ParameterSets();
+    private StreamingCodecTarget mCodecTarget;
+    private boolean mCodecInUse;
+    private boolean mShutdown;
 
     DroneCam(StatusHandler handler, String host, int streamPort, int cmdPort) {
         mHandler = handler;
@@ -40,16 +85,101 @@ public class DroneCam {
         mHost = host;
         mStreamPort = streamPort;
         mCmdPort = cmdPort;
+        mCmdSession = new CommandSession(host, cmdPort, mTelemetry);
     }
 
-    void setSurface(SurfaceTexture surface) {
+    synchronized void setSurface(SurfaceTexture surface) {
         mSurface = surface;
+        // a decoder that can't switch is replaced at the next stream start
+        if (mCodecTarget != null && !mCodecTarget.setSurface(surface) && !mCodecInUse) {
+            releaseCodecTarget();
+        }
     }
 
     void setConnectionSettings(String host, int streamPort, int cmdPort) {
         mHost = host;
         mStreamPort = streamPort;
         mCmdPort = cmdPort;
+
+        if (!mCmdSession.getHost().equals(host) || mCmdSession.getPort() != cmdPort) {
+            mCmdSession.close();
+            mTelemetry.clear();
+            mCmdSession = new CommandSession(host, cmdPort, mTelemetry);
+        }
+    }
+
+    void setDropMode(FrameDropFilter.Mode mode) {
+        mDropMode = mode;
+    }
+
+    /**
+     * Sets where stream captures are saved, or null to not capture.
+     */
+    void setCaptureDir(File dir) {
+        mCaptureDir = dir;
+    }
+
+    /**
+     * Sets where the stream is recorded to MP4, or null to not record it.
+     */
+    void setRecordDir(File dir) {
+        mRecordDir = dir;
+    }
+
+    /**
+     * Sets where instant replays are saved, or null to not keep one.
+     */
+    void setReplayDir(File dir) {
+        mReplayDir = dir;
+    }
+
+    /**
+     * Sets whether the stream is served on to other viewers, on the camera's own ports.
+     */
+    void setRelayEnabled(boolean enabled) {
+        mRelayEnabled = enabled;
+    }
+
+    void shutdown() {
+        stopStreaming();
+        mCmdSession.close();
+        synchronized (this) {
+            mShutdown = true;
+            if (!mCodecInUse) {
+                releaseCodecTarget();
+            }
+        }
+    }
+
+    /*
+     * Hands out the warm decoder for a stream, or a new one if there is none or it failed.
+     */
+    private synchronized StreamingCodecTarget acquireCodecTarget() throws IOException {
+        if (mCodecTarget != null && !mCodecTarget.isUsable()) {
+            releaseCodecTarget();
+        }
+        if (mCodecTarget == null) {
+            mCodecTarget = new StreamingCodecTarget(
+                    mSurface, DEFAULT_VID_WIDTH, DEFAULT_VID_HEIGHT, mParamSets,
+                    (width, height) -> mHandler.sendMessage(
+                            StatusMessage.videoSize(width, height)));
+        }
+        mCodecInUse = true;
+        return mCodecTarget;
+    }
+
+    private synchronized void returnCodecTarget() {
+        mCodecInUse = false;
+        if (mShutdown || (mCodecTarget != null && !mCodecTarget.isUsable())) {
+            releaseCodecTarget();
+        }
+    }
+
+    private synchronized void releaseCodecTarget() {
+        if (mCodecTarget != null) {
+            mCodecTarget.release();
+            mCodecTarget = null;
+        }
     }
 
     void startStreaming() throws DroneCamException {
@@ -61,15 +191,27 @@ public class DroneCam {
             throw new DroneCamException("Streaming already enabled");
         }
 
+        final FrameDropFilter.Mode dropMode = mDropMode;
+        final File captureDir = mCaptureDir;
+        final File recordDir = mRecordDir;
+        final File replayDir = mReplayDir;
+        final boolean relayEnabled = mRelayEnabled;
+        // time to first frame counts from here
+        final long startNs = System.nanoTime();
+
         new Thread(() -> {
-            StreamingCodecTarget streamTarget;
+            StreamingCodecTarget codecTarget;
+            FrameDropFilter streamTarget;
+            RelayServer relay = null;
+            List<StreamingTarget> targets = new ArrayList<>();
 
             try {
-                streamTarget = new StreamingCodecTarget(
-                        mSurface, DEFAULT_VID_WIDTH, DEFAULT_VID_HEIGHT);
+                codecTarget = acquireCodecTarget();
+                streamTarget = new FrameDropFilter(codecTarget, dropMode, MAX_PENDING_FRAMES);
             }
-            catch (IOException e) {
+            catch (IOException | IllegalStateException e) {
                 Log.e(TAG, "failed to create codec: %s", e.getMessage());
+                returnCodecTarget();
                 mStreamSem.release();
                 mHandler.sendMessage(new StatusMessage(
                         StatusMessage.Type.STREAM,
@@ -78,12 +220,46 @@ public class DroneCam {
                 return;
             }
 
-            try (CamConnection conn = CamConnection.createAndConnect(mHost, mStreamPort)) {
+            try (CamConnection conn = CamConnection.createAndConnect(
+                    mHost, mStreamPort, STREAM_TRANSPORT)) {
+                if (captureDir != null) {
+                    startCapture(conn, captureDir);
+                }
+                conn.setTelemetry(mTelemetry);
+                conn.setStallListener(new CamConnection.StallListener() {
+                    @Override
+                    public void streamStalled(String reason) {
+                    }
+
+                    @Override
+                    public void streamResumed(long outageMs) {
+                        mHandler.sendMessage(new StatusMessage(
+                                StatusMessage.Type.NOTE,
+                                R.string.stream_reconnected, outageMs));
+                    }
+                });
+                conn.getLinkMonitor().addListener(newLinkListener());
                 mStreamOn.set(true);
                 mHandler.sendMessage(new StatusMessage(
                         StatusMessage.Type.STREAM,
                         StatusMessage.SubType.STARTED));
-                conn.streamVideo(mStreamOn, streamTarget);
+                codecTarget.startSession(startNs);
+                targets.add(streamTarget);
+                if (recordDir != null) {
+                    targets.add(new Mp4Recorder(recordDir));
+                }
+                if (replayDir != null) {
+                    mReplay = new ReplayBuffer(REPLAY_WINDOW_MS, REPLAY_MAX_BYTES,
+                            newReplayListener());
+                    targets.add(mReplay);
+                }
+                if (relayEnabled) {
+                    relay = startRelay();
+                    if (relay != null) {
+                        targets.add(relay);
+                    }
+                }
+                conn.streamVideo(mStreamOn, targets.toArray(new StreamingTarget[0]));
                 mHandler.sendMessage(new StatusMessage(
                         StatusMessage.Type.NOTE,
                         R.string.stream_ended));
@@ -106,7 +282,12 @@ public class DroneCam {
                 Log.e(TAG, e.getMessage());
             }
 
+            if (relay != null) {
+                relay.close();
+            }
             mStreamOn.set(false);
+            mReplay = null;
+            returnCodecTarget();
             mStreamSem.release();
             mHandler.sendMessage(new StatusMessage(
                     StatusMessage.Type.STREAM,
@@ -114,6 +295,108 @@ public class DroneCam {
         }).start();
     }
 
+    /*
+     * Listens for viewers on the same ports the camera uses, so their apps need no changes but
+     * the camera's address. The relay is left out if the ports can't be had.
+     */
+    private RelayServer startRelay() {
+        RelayServer relay;
+
+        try {
+            relay = new RelayServer(mTelemetry, new InetSocketAddress(mStreamPort),
+                    new InetSocketAddress(mCmdPort));
+        }
+        catch (IOException e) {
+            Log.e(TAG, "failed to start relay: %s", e.getMessage());
+            mHandler.sendMessage(new StatusMessage(
+                    StatusMessage.Type.NOTE,
+                    R.string.error_start_relay_failed));
+            return null;
+        }
+        relay.start();
+        mHandler.sendMessage(new StatusMessage(
+                StatusMessage.Type.NOTE,
+                R.string.relay_started, mStreamPort, mCmdPort));
+        return relay;
+    }
+
+    /*
+     * Warns once each time the link turns bad, which tends to come just before a stall.
+     */
+    private LinkMonitor.Listener newLinkListener() {
+        final AtomicBoolean wasDegraded = new AtomicBoolean(false);
+
+        return quality -> {
+            boolean degraded = quality.isDegraded();
+
+            if (wasDegraded.getAndSet(degraded) != degraded) {
+                Log.i(TAG, "link %s", quality);
+                if (degraded) {
+                    mHandler.sendMessage(new StatusMessage(
+                            StatusMessage.Type.NOTE,
+                            R.string.link_degraded));
+                }
+            }
+        };
+    }
+
+    private ReplayBuffer.Listener newReplayListener() {
+        return new ReplayBuffer.Listener() {
+            @Override
+            public void replaySaved(File file, long durationMs) {
+                mHandler.sendMessage(new StatusMessage(
+                        StatusMessage.Type.NOTE,
+                        R.string.replay_saved,
+                        TimeUnit.MILLISECONDS.toSeconds(durationMs), file.getName()));
+            }
+
+            @Override
+            public void replayFailed(File file) {
+                mHandler.sendMessage(new StatusMessage(
+                        StatusMessage.Type.NOTE,
+                        R.string.error_save_replay_failed));
+            }
+        };
+    }
+
+    private void startCapture(CamConnection conn, File dir) {
+        File file = new File(dir, String.format("capture-%tY%<tm%<td-%<tH%<tM%<tS.lwcap",
+                new Date()));
+
+        // a capture is only for debugging, so streaming goes on without one
+        try {
+            conn.startCapture(file);
+        }
+        catch (IOException e) {
+            Log.e(TAG, "failed to start capture to %s: %s", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Saves the instant replay's history to a file, while the stream goes on.
+     */
+    void saveReplay() {
+        ReplayBuffer replay = mReplay;
+        File dir = mReplayDir;
+        File file;
+
+        // turning the setting off mid-stream counts too
+        if (replay == null || dir == null) {
+            mHandler.sendMessage(new StatusMessage(
+                    StatusMessage.Type.NOTE,
+                    R.string.error_replay_off));
+            return;
+        }
+
+        file = new File(dir, String.format("replay-%tY%<tm%<td-%<tH%<tM%<tS.mp4",
+                new Date()));
+        if (!replay.dump(file)) {
+            mHandler.sendMessage(new StatusMessage(
+                    StatusMessage.Type.NOTE,
+                    R.string.replay_busy));
+        }
+    }
+
     boolean isStreaming() {
         return mStreamOn.get();
     }
@@ -123,10 +406,47 @@ public class DroneCam {
         mStreamOn.set(false);
     }
 
+    /**
+     * Posts the camera's status as a note. It comes from the latest heartbeat reply if that's
+     * recent, which it always is while streaming, so this rarely costs a round trip.
+     */
+    void checkCamStatus() {
+        final CommandSession session = mCmdSession;
+
+        new Thread(() -> {
+            Heartbeat hb;
+
+            try {
+                hb = session.getStatus(STATUS_MAX_AGE_MS);
+            }
+            catch (LwcommsException | IOException e) {
+                Log.e(TAG, "failed to get camera status: %s", e.getMessage());
+                mHandler.sendMessage(new StatusMessage(
+                        StatusMessage.Type.NOTE,
+                        R.string.error_cam_status_failed));
+                return;
+            }
+
+            if (hb.getSDCardMounted()) {
+                mHandler.sendMessage(new StatusMessage(
+                        StatusMessage.Type.NOTE,
+                        R.string.cam_status, hb.getSDCardFreePercent(),
+                        hb.getClientCount(), hb.getDate()));
+            }
+            else {
+                mHandler.sendMessage(new StatusMessage(
+                        StatusMessage.Type.NOTE,
+                        R.string.cam_status_no_sd, hb.getClientCount(), hb.getDate()));
+            }
+        }).start();
+    }
+
     void checkRemoteRecording() {
+        final CommandSession session = mCmdSession;
+
         new Thread(() -> {
-            try (CamConnection conn = CamConnection.createAndConnect(mHost, mCmdPort)) {
-                if (conn.isRecording()) {
+            try {
+                if (session.isRecording()) {
                     mHandler.sendMessage(new StatusMessage(
                             StatusMessage.Type.RECORD,
                             StatusMessage.SubType.STARTED));
@@ -147,16 +467,13 @@ public class DroneCam {
     }
 
     void startRemoteRecord() {
+        final CommandSession session = mCmdSession;
+
         new Thread(() -> {
             boolean succ = false;
 
             try {
-                try (CamConnection conn = CamConnection.createAndConnect(mHost, mCmdPort)) {
-                    conn.setCurrentTime();
-                }
-                try (CamConnection conn = CamConnection.createAndConnect(mHost, mCmdPort)) {
-                    succ = conn.startRecording();
-                }
+                succ = session.syncTimeAndStartRecording();
             }
             catch (LwcommsException e) {
                 Log.e(TAG, e.getMessage());
@@ -180,11 +497,13 @@ public class DroneCam {
     }
 
     void stopRemoteRecord() {
+        final CommandSession session = mCmdSession;
+
         new Thread(() -> {
             boolean succ = false;
 
-            try (CamConnection conn = CamConnection.createAndConnect(mHost, mCmdPort)) {
-                succ = conn.stopRecording();
+            try {
+                succ = session.stopRecording();
             }
             catch (LwcommsException e) {
                 Log.e(TAG, e.getMessage());
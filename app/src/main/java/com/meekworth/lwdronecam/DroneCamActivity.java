@@ -4,12 +4,14 @@ import android.annotation.SuppressLint;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.ActionBar;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.preference.PreferenceManager;
 
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
@@ -20,10 +22,16 @@ import android.view.MotionEvent;
 import android.view.TextureView;
 import android.view.View;
 import android.widget.Button;
+import android.widget.TextView;
 import android.widget.Toast;
 
+import com.meekworth.lwdronecam.lwcomms.FrameDropFilter;
+import com.meekworth.lwdronecam.lwcomms.FrameSequence;
+import com.meekworth.lwdronecam.lwcomms.Metrics;
 import com.meekworth.lwdronecam.utils.Log;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Date;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -53,6 +61,7 @@ public class DroneCamActivity extends AppCompatActivity {
     private static final int UI_ANIMATION_DELAY = 300;
     private final Handler mHideHandler = new Handler();
     private TextureView mCamView;
+    private CameraViewListener mCamViewListener;
     private final Runnable mHidePart2Runnable = new Runnable() {
         @SuppressLint("InlinedApi")
         @Override
@@ -128,6 +137,12 @@ public class DroneCamActivity extends AppCompatActivity {
                         R.string.settings_key_cam_stream_port,
                         R.string.default_cam_stream_port),
                 getSettingInt(R.string.settings_key_cam_cmd_port, R.string.default_cam_cmd_port));
+        mDroneCam.setDropMode(getDropModeSetting());
+        mDroneCam.setCaptureDir(getCaptureDirSetting());
+        mDroneCam.setRecordDir(getRecordDirSetting());
+        mDroneCam.setReplayDir(getReplayDirSetting());
+        mDroneCam.setRelayEnabled(getSettingBoolean(
+                R.string.settings_key_relay_stream, R.bool.default_relay_stream));
 
         mLastRecordNotify = new Date(); // init here so it's never null
 
@@ -139,7 +154,8 @@ public class DroneCamActivity extends AppCompatActivity {
 
         // Set up the user interaction to manually show or hide the system UI.
         mCamView.setOnClickListener(view -> toggle());
-        mCamView.setSurfaceTextureListener(new CameraViewListener(mDroneCam, mCamView));
+        mCamViewListener = new CameraViewListener(mDroneCam, mCamView);
+        mCamView.setSurfaceTextureListener(mCamViewListener);
 
         // Upon interacting with UI controls, delay any scheduled hide()
         // operations to prevent the jarring behavior of controls going away
@@ -162,9 +178,65 @@ public class DroneCamActivity extends AppCompatActivity {
             startActivity(new Intent(this, SettingsActivity.class));
             return true;
         }
+        if (item.getItemId() == R.id.stream_stats) {
+            showStreamStats();
+            return true;
+        }
+        if (item.getItemId() == R.id.save_replay) {
+            mDroneCam.saveReplay();
+            return true;
+        }
+        if (item.getItemId() == R.id.cam_status) {
+            mDroneCam.checkCamStatus();
+            return true;
+        }
         return super.onOptionsItemSelected(item);
     }
 
+    private void showStreamStats() {
+        View statsView = getLayoutInflater().inflate(R.layout.dialog_metrics, null);
+        TextView text = statsView.findViewById(R.id.metrics_text);
+        Metrics.Snapshot snapshot = Metrics.getDefault().snapshot();
+        long received = snapshot.getCounter("seq.frames");
+        long lost = snapshot.getCounter("seq.lost");
+        long dropped = snapshot.getCounter("ring.skipped")
+                + snapshot.getCounter("filter.dropped")
+                + snapshot.getCounter("codec.dropped");
+
+        // camera or link losses first, then the app's own drops, then everything
+        text.setText(getString(R.string.stream_stats_summary,
+                FrameSequence.lossPercent(received, lost), lost,
+                snapshot.getCounter("seq.gaps"), dropped, snapshot));
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.stream_stats)
+                .setView(statsView)
+                .setPositiveButton(R.string.stream_stats_save,
+                        (dialog, which) -> saveStreamStats(snapshot))
+                .setNeutralButton(R.string.stream_stats_reset,
+                        (dialog, which) -> Metrics.getDefault().reset())
+                .setNegativeButton(R.string.stream_stats_close, null)
+                .show();
+    }
+
+    private void saveStreamStats(Metrics.Snapshot snapshot) {
+        File dir = getExternalFilesDir(null);
+        File file;
+
+        if (dir == null) {
+            StatusHandler.showMessage(getString(R.string.error_save_stats_failed));
+            return;
+        }
+        file = new File(dir, String.format("stats-%tY%<tm%<td-%<tH%<tM%<tS.txt", new Date()));
+        try {
+            snapshot.writeTo(file);
+            StatusHandler.showMessage(getString(R.string.stream_stats_saved, file.getName()));
+        }
+        catch (IOException e) {
+            Log.e(TAG, "failed to save stats to %s: %s", file, e.getMessage());
+            StatusHandler.showMessage(getString(R.string.error_save_stats_failed));
+        }
+    }
+
     @Override
     protected void onPostCreate(Bundle savedInstanceState) {
         super.onPostCreate(savedInstanceState);
@@ -182,6 +254,13 @@ public class DroneCamActivity extends AppCompatActivity {
         super.onStop();
     }
 
+    @Override
+    protected void onDestroy() {
+        Log.v(TAG, "on destroy called");
+        mDroneCam.shutdown();
+        super.onDestroy();
+    }
+
     private void toggle() {
         if (mVisible) {
             hide();
@@ -276,6 +355,43 @@ public class DroneCamActivity extends AppCompatActivity {
                         R.string.settings_key_cam_stream_port,
                         R.string.default_cam_stream_port),
                 getSettingInt(R.string.settings_key_cam_cmd_port, R.string.default_cam_cmd_port));
+        mDroneCam.setDropMode(getDropModeSetting());
+        mDroneCam.setCaptureDir(getCaptureDirSetting());
+        mDroneCam.setRecordDir(getRecordDirSetting());
+        mDroneCam.setReplayDir(getReplayDirSetting());
+        mDroneCam.setRelayEnabled(getSettingBoolean(
+                R.string.settings_key_relay_stream, R.bool.default_relay_stream));
+    }
+
+    private FrameDropFilter.Mode getDropModeSetting() {
+        String val = getSettingString(
+                R.string.settings_key_latency_mode, R.string.default_latency_mode);
+
+        try {
+            return FrameDropFilter.Mode.valueOf(val);
+        }
+        catch (IllegalArgumentException e) {
+            Log.e(TAG, "invalid latency mode setting: %s", val);
+            return FrameDropFilter.Mode.NONE;
+        }
+    }
+
+    private File getCaptureDirSetting() {
+        boolean capture = getSettingBoolean(
+                R.string.settings_key_capture_stream, R.bool.default_capture_stream);
+        return capture ? getExternalFilesDir(null) : null;
+    }
+
+    private File getRecordDirSetting() {
+        boolean record = getSettingBoolean(
+                R.string.settings_key_record_stream, R.bool.default_record_stream);
+        return record ? getExternalFilesDir(Environment.DIRECTORY_MOVIES) : null;
+    }
+
+    private File getReplayDirSetting() {
+        boolean replay = getSettingBoolean(
+                R.string.settings_key_instant_replay, R.bool.default_instant_replay);
+        return replay ? getExternalFilesDir(Environment.DIRECTORY_MOVIES) : null;
     }
 
     private String getSettingString(int keyId, int defaultId) {
@@ -283,6 +399,11 @@ public class DroneCamActivity extends AppCompatActivity {
         return prefs.getString(getString(keyId), getString(defaultId));
     }
 
+    private boolean getSettingBoolean(int keyId, int defaultId) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        return prefs.getBoolean(getString(keyId), getResources().getBoolean(defaultId));
+    }
+
     private int getSettingInt(int keyId, int defaultId) {
         String val = getSettingString(keyId, defaultId);
 
@@ -354,6 +475,10 @@ public class DroneCamActivity extends AppCompatActivity {
                 }
                 break;
 
+            case VIDEO_SIZE:
+                mCamViewListener.setVideoSize(msg.getIntArg(0), msg.getIntArg(1));
+                break;
+
             default:
                 throw new IllegalStateException("Unexpected value: " + msg.getType());
         }
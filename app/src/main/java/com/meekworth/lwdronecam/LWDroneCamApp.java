@@ -0,0 +1,16 @@
+package com.meekworth.lwdronecam;
+
+import android.app.Application;
+
+import com.meekworth.lwdronecam.utils.Log;
+
+/*
+ * Sends the lwcomms library's logging to logcat before anything else runs.
+ */
+public class LWDroneCamApp extends Application {
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Log.setSink(android.util.Log::println);
+    }
+}
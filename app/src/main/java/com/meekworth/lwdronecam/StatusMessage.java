@@ -8,7 +8,9 @@ class StatusMessage {
     enum Type {
         NOTE,
         STREAM,
-        RECORD
+        RECORD,
+        // the stream's picture size changed; args are width and height
+        VIDEO_SIZE
     }
 
     enum SubType {
@@ -63,6 +65,12 @@ class StatusMessage {
         this(type, SubType.NONE, fmtId, args);
     }
 
+    static StatusMessage videoSize(int width, int height) {
+        StatusMessage msg = new StatusMessage(Type.VIDEO_SIZE, SubType.NONE);
+        msg.mMsgArgs = new Object[] {width, height};
+        return msg;
+    }
+
     Type getType() {
         return mType;
     }
@@ -71,6 +79,10 @@ class StatusMessage {
         return mSubType;
     }
 
+    int getIntArg(int index) {
+        return (Integer)mMsgArgs[index];
+    }
+
     String getMessage(Context context) {
         if (context == null && mMsgType == MessageType.RES_ID) {
             throw new IllegalStateException("cannot build message string without context");
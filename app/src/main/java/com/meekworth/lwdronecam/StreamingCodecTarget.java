@@ -5,51 +5,510 @@ import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.view.Surface;
 
+import com.meekworth.lwdronecam.lwcomms.Histogram;
+import com.meekworth.lwdronecam.lwcomms.Metrics;
+import com.meekworth.lwdronecam.lwcomms.ParameterSets;
+import com.meekworth.lwdronecam.lwcomms.PlayoutClock;
+import com.meekworth.lwdronecam.lwcomms.Sps;
+import com.meekworth.lwdronecam.lwcomms.StreamFrame;
 import com.meekworth.lwdronecam.lwcomms.StreamingTarget;
+import com.meekworth.lwdronecam.utils.Log;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 
+/*
+ * Feeds frames to a MediaCodec decoder that renders to the view's surface. Input is queued on
+ * the streaming thread in sendFrame(), while a separate drain thread releases decoded output
+ * buffers to the surface, so decoded frames never pile up behind the network reads.
+ *
+ * Frames are shown at a steady pace rather than as they arrive. A PlayoutClock stamps each
+ * input with a timestamp from the camera's frame counter and works out when it's due, with a
+ * small jitter buffer that's only as deep as the arrival jitter needs. The drain thread holds
+ * each output until then, and releases it with that render time. A few outputs at most are
+ * held, so a decoder that falls behind still catches up instead of adding latency.
+ *
+ * The decoder outlives a stream: finished() only flushes it, and the next startSession()
+ * carries on with it already configured. It's configured with the SPS and PPS cached from
+ * earlier streams when there are any, and moved to a new view surface with
+ * setOutputSurface(), so starting a stream doesn't wait on a new decoder.
+ *
+ * The picture size comes from the stream's SPS. When a new SPS brings a different size, the
+ * decoder is reconfigured for it before the frame carrying it is queued, and the listener is
+ * told so the view can follow.
+ */
 public class StreamingCodecTarget implements StreamingTarget {
+    private static final String TAG = "LWDroneCam/StreamingCodecTarget";
+    // how long sendFrame() waits for a free input buffer before dropping the frame
+    private static final long INPUT_TIMEOUT_US = 500 * 1000;
+    // how long the drain thread waits for output before checking whether it should stop
+    private static final long OUTPUT_TIMEOUT_US = 10 * 1000;
+    private static final long DRAIN_JOIN_TIMEOUT_MS = 1000;
+    // the most a frame is held for pacing after it arrives
+    private static final int MAX_PLAYOUT_LATENCY_MS = 120;
+    // decoded frames held waiting to be due; beyond this the oldest is shown at once
+    private static final int MAX_HELD_OUTPUTS = 4;
+    // outputs are released this far ahead of their due time, for the compositor to pick up
+    private static final long RENDER_LEAD_NS = TimeUnit.MILLISECONDS.toNanos(2);
+    // due times of queued inputs, by sequence; a power of two, well over the input buffers
+    private static final int QUEUED_RING_SIZE = 64;
+
+    interface VideoSizeListener {
+        void videoSizeChanged(int width, int height);
+    }
+
     private final MediaCodec mCodec;
+    private final ParameterSets mParams;
+    private final VideoSizeListener mSizeListener;
+    // what the decoder is configured for
+    private int mWidth;
+    private int mHeight;
+    private Surface mSurface;
+    private Thread mDrainThread;
+    private volatile boolean mDraining;
+    // set once the codec throws, after which it's only good for release()
+    private volatile boolean mBroken;
+    private int mSessions;
+    // a reference frame was dropped, so pictures are skipped until the next key frame, as
+    // they'd only decode to garbage; only used on the target thread
+    private boolean mAwaitKey;
+
+    // Inputs are numbered in a sequence, and their timestamps, due times, arrival and queue
+    // times kept by it, so the backlog is the distance between the last queued and the last
+    // output sequence. Inputs that produce no output (e.g. bare parameter sets) are skipped
+    // over when a later output arrives. The rings are written before mLastQueuedSeq, which
+    // publishes them.
+    private final PlayoutClock mClock = new PlayoutClock(MAX_PLAYOUT_LATENCY_MS);
+    private final long[] mQueuedPts = new long[QUEUED_RING_SIZE];
+    private final long[] mQueuedDue = new long[QUEUED_RING_SIZE];
+    private final long[] mQueuedArrival = new long[QUEUED_RING_SIZE];
+    private final long[] mQueuedAt = new long[QUEUED_RING_SIZE];
+    private long mQueuedSeq;
+    private volatile long mLastQueuedSeq;
+    private volatile long mLastOutputSeq;
+
+    // Drain thread only: outputs waiting to be due, oldest at mHeldHead, with their due times
+    // and the arrival and decode times of their inputs. A fixed ring, so holding allocates
+    // nothing.
+    private final int[] mHeldIds = new int[MAX_HELD_OUTPUTS + 1];
+    private final long[] mHeldDue = new long[MAX_HELD_OUTPUTS + 1];
+    private final long[] mHeldArrival = new long[MAX_HELD_OUTPUTS + 1];
+    private final long[] mHeldOutAt = new long[MAX_HELD_OUTPUTS + 1];
+    private int mHeldHead;
+    private int mHeld;
+
+    private final Histogram mInputWaitMetric =
+            Metrics.getDefault().histogram("codec.input_wait");
+    private final Histogram mDecodeMetric = Metrics.getDefault().histogram("codec.decode");
+    // from decoded to released for rendering, i.e. the pacing wait
+    private final Histogram mHoldMetric = Metrics.getDefault().histogram("display.hold");
+    // from a frame arriving to when it's shown
+    private final Histogram mLatencyMetric = Metrics.getDefault().histogram("display.latency");
+    private final Metrics.Counter mDroppedMetric = Metrics.getDefault().counter("codec.dropped");
+    private final Metrics.Counter mRenderedMetric =
+            Metrics.getDefault().counter("display.frames");
+
+    // time to first frame of the current session, all System.nanoTime()
+    private volatile long mSessionStartNs;
+    private volatile long mFirstInputNs;
+    private volatile long mFirstFrameNs;
 
-    StreamingCodecTarget(SurfaceTexture surface, int width, int height) throws IOException {
+    /**
+     * @param width   Picture width and height to assume until the stream's SPS gives the
+     *                real ones.
+     * @param params  Parameter sets to configure the decoder with, if complete. Those seen in
+     *                the stream are added to it.
+     */
+    StreamingCodecTarget(SurfaceTexture surface, int width, int height, ParameterSets params,
+                         VideoSizeListener sizeListener) throws IOException {
+        Sps sps = params.getParsedSps();
+
+        mParams = params;
+        mSizeListener = sizeListener;
         mCodec = MediaCodec.createDecoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+        mSurface = new Surface(surface);
+        if (sps != null) {
+            configure(sps.getWidth(), sps.getHeight());
+        }
+        else {
+            configure(width, height);
+        }
+    }
+
+    private void configure(int width, int height) {
         MediaFormat format = MediaFormat.createVideoFormat(
                 MediaFormat.MIMETYPE_VIDEO_AVC, width, height);
+        byte[] sps = mParams.getSps();
+        byte[] pps = mParams.getPps();
+
+        // compressed frames stay well under the size of a raw 4:2:0 picture
         format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, width * height);
-        mCodec.configure(format, new Surface(surface), null, 0);
+        if (sps != null && pps != null) {
+            format.setByteBuffer("csd-0", ByteBuffer.wrap(sps));
+            format.setByteBuffer("csd-1", ByteBuffer.wrap(pps));
+        }
+
+        mCodec.configure(format, mSurface, null, 0);
         mCodec.start();
+        mWidth = width;
+        mHeight = height;
+        Log.d(TAG, "decoder configured for %dx%d %s cached parameter sets", width, height,
+                sps != null && pps != null ? "with" : "without");
+        mSizeListener.videoSizeChanged(width, height);
+    }
+
+    /*
+     * Reconfigures the decoder for a new picture size, mid-session. Whatever was in the
+     * decoder is dropped, which is fine as the new size starts with a key frame.
+     */
+    private synchronized void reconfigure(int width, int height) {
+        Log.i(TAG, "stream changed size from %dx%d to %dx%d", mWidth, mHeight, width, height);
+        stopDrain();
+        try {
+            mCodec.stop();
+            configure(width, height);
+        }
+        catch (IllegalStateException e) {
+            Log.e(TAG, "codec reconfigure failed: %s", e.getMessage());
+            mBroken = true;
+        }
+        mLastOutputSeq = mLastQueuedSeq;
+        startDrain();
+    }
+
+    /**
+     * Gets the decoder ready for a new stream. Time to first frame is measured from startNs,
+     * a System.nanoTime() from when the stream was asked for.
+     */
+    void startSession(long startNs) {
+        mSessionStartNs = startNs;
+        mFirstInputNs = 0;
+        mFirstFrameNs = 0;
+        // anything left over from the last session went with the flush
+        mLastOutputSeq = mLastQueuedSeq;
+        mClock.reset();
+        mAwaitKey = false;
+
+        // A flushed decoder may have dropped its parameter sets if it never got as far as
+        // decoding anything, so send the cached ones again.
+        if (mSessions++ > 0) {
+            queueParameterSets();
+        }
+        startDrain();
+    }
+
+    private void startDrain() {
+        mDraining = true;
+        mDrainThread = new Thread(this::drainOutput, "CodecDrain");
+        mDrainThread.start();
+    }
+
+    private void stopDrain() {
+        mDraining = false;
+        try {
+            mDrainThread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * True if the decoder hasn't failed and can take another session.
+     */
+    boolean isUsable() {
+        return !mBroken;
+    }
+
+    /**
+     * Moves decoder output to a new view surface, without reconfiguring.
+     * @return  false if the decoder couldn't switch, in which case it should be replaced.
+     */
+    synchronized boolean setSurface(SurfaceTexture texture) {
+        Surface surface = new Surface(texture);
+
+        try {
+            mCodec.setOutputSurface(surface);
+        }
+        catch (IllegalArgumentException | IllegalStateException e) {
+            Log.e(TAG, "decoder can't switch surfaces: %s", e.getMessage());
+            surface.release();
+            mBroken = true;
+            return false;
+        }
+        mSurface.release();
+        mSurface = surface;
+        return true;
+    }
+
+    /**
+     * Time from the start of the session to its first rendered frame, or -1 if nothing has
+     * been rendered yet.
+     */
+    long getTimeToFirstFrameMs() {
+        long first = mFirstFrameNs;
+        return first != 0 ? TimeUnit.NANOSECONDS.toMillis(first - mSessionStartNs) : -1;
     }
 
     @Override
-    public void sendFrame(byte[] frameBytes) {
+    public void sendFrame(StreamFrame frame) {
         ByteBuffer buf;
         int bufId;
-        int flag;
+        long waitNs;
+        long pts;
+        int slot;
 
-        // Get the codec input buffer and add the frame data.
-        bufId = mCodec.dequeueInputBuffer(-1);
-        if (bufId >= 0) {
-            if ((buf = mCodec.getInputBuffer(bufId)) != null) {
-                buf.put(frameBytes);
+        if (mFirstInputNs == 0) {
+            mFirstInputNs = System.nanoTime();
+        }
+        if (mParams.update(frame)) {
+            checkSize();
+        }
+        if (mAwaitKey) {
+            if (frame.hasPicture() && !frame.isKeyFrame()) {
+                mDroppedMetric.increment();
+                return;
             }
-            flag = frameBytes.length == 0 ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0;
-            mCodec.queueInputBuffer(bufId, 0, frameBytes.length, 0, flag);
+            mAwaitKey = !frame.isKeyFrame();
         }
 
-        // Get the codec output buffer and release to be processed.
-        bufId = mCodec.dequeueOutputBuffer(new MediaCodec.BufferInfo(), 0);
-        if (bufId >= 0) {
-            mCodec.releaseOutputBuffer(bufId, true);
+        // Get the codec input buffer and copy the frame data straight into it.
+        waitNs = System.nanoTime();
+        bufId = mCodec.dequeueInputBuffer(INPUT_TIMEOUT_US);
+        mInputWaitMetric.recordSince(waitNs);
+        if (bufId < 0) {
+            Log.v(TAG, "no codec input buffer available, dropping frame");
+            dropped(frame);
+            return;
+        }
+        buf = mCodec.getInputBuffer(bufId);
+        if (buf == null || buf.remaining() < frame.getLength()) {
+            Log.e(TAG, "%d byte frame doesn't fit the codec input buffer, dropping it",
+                    frame.getLength());
+            mCodec.queueInputBuffer(bufId, 0, 0, 0, 0);
+            dropped(frame);
+            return;
+        }
+        frame.copyTo(buf);
+
+        pts = mClock.schedule(frame);
+        slot = (int)(++mQueuedSeq & (QUEUED_RING_SIZE - 1));
+        mQueuedPts[slot] = pts;
+        mQueuedDue[slot] = mClock.getDueNanos();
+        mQueuedArrival[slot] = frame.getArrivalNanos();
+        mQueuedAt[slot] = System.nanoTime();
+        mCodec.queueInputBuffer(bufId, 0, frame.getLength(), pts, 0);
+        mLastQueuedSeq = mQueuedSeq;
+    }
+
+    private void dropped(StreamFrame frame) {
+        mDroppedMetric.increment();
+        if (frame.hasPicture() && !frame.isDisposable()) {
+            mAwaitKey = true;
         }
     }
 
+    @Override
+    public int getPendingFrames() {
+        return (int)Math.max(0, mLastQueuedSeq - mLastOutputSeq);
+    }
+
+    private void checkSize() {
+        Sps sps = mParams.getParsedSps();
+
+        if (sps != null && (sps.getWidth() != mWidth || sps.getHeight() != mHeight)) {
+            reconfigure(sps.getWidth(), sps.getHeight());
+        }
+    }
+
+    private void queueParameterSets() {
+        byte[] sps = mParams.getSps();
+        byte[] pps = mParams.getPps();
+        ByteBuffer buf;
+        int bufId;
+
+        if (sps == null || pps == null) {
+            return;
+        }
+        bufId = mCodec.dequeueInputBuffer(INPUT_TIMEOUT_US);
+        if (bufId < 0) {
+            return;
+        }
+        if ((buf = mCodec.getInputBuffer(bufId)) != null) {
+            buf.put(sps).put(pps);
+        }
+        mCodec.queueInputBuffer(bufId, 0, sps.length + pps.length, 0,
+                MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+    }
+
+    private void drainOutput() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+        try {
+            while (mDraining) {
+                long timeoutUs = OUTPUT_TIMEOUT_US;
+                int bufId;
+
+                // don't sleep past the next held frame's due time
+                if (mHeld > 0) {
+                    long waitNs = mHeldDue[mHeldHead] - RENDER_LEAD_NS - System.nanoTime();
+                    timeoutUs = Math.max(0, Math.min(timeoutUs,
+                            TimeUnit.NANOSECONDS.toMicros(waitNs)));
+                }
+                bufId = mCodec.dequeueOutputBuffer(info, timeoutUs);
+
+                if (bufId >= 0) {
+                    int slot = outputSlot(info.presentationTimeUs);
+
+                    if (info.size > 0) {
+                        hold(bufId, slot);
+                    }
+                    else {
+                        mCodec.releaseOutputBuffer(bufId, false);
+                    }
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        break;
+                    }
+                }
+                releaseDue(false);
+            }
+            releaseDue(true);
+        }
+        catch (IllegalStateException e) {
+            Log.e(TAG, "codec output failed: %s", e.getMessage());
+            mBroken = true;
+            mHeld = 0;
+        }
+    }
+
+    /*
+     * Catches the output sequence up to the input with this timestamp, and returns that
+     * input's ring slot, or -1 if it isn't known. Timestamps only go up, so the inputs before
+     * it produced no output.
+     */
+    private int outputSlot(long ptsUs) {
+        long seq = mLastOutputSeq;
+        long last = mLastQueuedSeq;
+        int found = -1;
+
+        // an input more than a ring behind has been overwritten; those are long overdue
+        seq = Math.max(seq, last - QUEUED_RING_SIZE);
+        while (seq < last) {
+            int slot = (int)((seq + 1) & (QUEUED_RING_SIZE - 1));
+
+            if (mQueuedPts[slot] > ptsUs) {
+                break;
+            }
+            seq++;
+            found = slot;
+        }
+        mLastOutputSeq = seq;
+        return found;
+    }
+
+    private void hold(int bufId, int slot) {
+        int i = (mHeldHead + mHeld++) % mHeldIds.length;
+
+        mHeldIds[i] = bufId;
+        // an output with no known input is shown at once
+        mHeldDue[i] = slot >= 0 ? mQueuedDue[slot] : 0;
+        mHeldArrival[i] = slot >= 0 ? mQueuedArrival[slot] : 0;
+        mHeldOutAt[i] = System.nanoTime();
+        if (slot >= 0) {
+            mDecodeMetric.record(mHeldOutAt[i] - mQueuedAt[slot]);
+        }
+    }
+
+    /*
+     * Renders the held outputs that are due, plus the oldest ones while too many are held, or
+     * all of them if flushing. Each goes out with its due time, or now if that's passed.
+     */
+    private void releaseDue(boolean all) {
+        while (mHeld > 0) {
+            int i = mHeldHead;
+            long now = System.nanoTime();
+            long renderNs = Math.max(mHeldDue[i], now);
+
+            if (!all && mHeld <= MAX_HELD_OUTPUTS && mHeldDue[i] - RENDER_LEAD_NS > now) {
+                break;
+            }
+            mCodec.releaseOutputBuffer(mHeldIds[i], renderNs);
+            mHeldHead = (i + 1) % mHeldIds.length;
+            mHeld--;
+
+            mHoldMetric.record(now - mHeldOutAt[i]);
+            if (mHeldArrival[i] != 0) {
+                mLatencyMetric.record(renderNs - mHeldArrival[i]);
+            }
+            mRenderedMetric.increment();
+            if (mFirstFrameNs == 0) {
+                firstFrame();
+            }
+        }
+    }
+
+    private void firstFrame() {
+        mFirstFrameNs = System.nanoTime();
+        Log.i(TAG, "first frame %d ms after start (first input at %d ms, %s decoder)",
+                getTimeToFirstFrameMs(),
+                TimeUnit.NANOSECONDS.toMillis(mFirstInputNs - mSessionStartNs),
+                mSessions > 1 ? "warm" : "new");
+    }
+
+    /**
+     * Ends the session: renders what's left, then flushes the decoder so it stays configured
+     * for the next startSession().
+     */
     @Override
     public void finished() {
-        sendFrame(new byte[0]);
-        mCodec.flush();
-        mCodec.stop();
+        try {
+            int bufId = mCodec.dequeueInputBuffer(INPUT_TIMEOUT_US);
+            if (bufId >= 0) {
+                mCodec.queueInputBuffer(bufId, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            }
+        }
+        catch (IllegalStateException e) {
+            Log.e(TAG, "codec input failed: %s", e.getMessage());
+            mBroken = true;
+        }
+
+        // Give the drain thread a moment to render what's left, up to end of stream.
+        try {
+            mDrainThread.join(DRAIN_JOIN_TIMEOUT_MS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        stopDrain();
+
+        if (getTimeToFirstFrameMs() < 0) {
+            Log.i(TAG, "stream ended before any frame was rendered");
+        }
+        Log.d(TAG, "playout delay %d ms, arrival jitter %d ms, frame interval %d ms",
+                TimeUnit.NANOSECONDS.toMillis(mClock.getDelayNanos()),
+                TimeUnit.NANOSECONDS.toMillis(mClock.getJitterNanos()),
+                TimeUnit.NANOSECONDS.toMillis(mClock.getFrameNanos()));
+        try {
+            mCodec.flush();
+        }
+        catch (IllegalStateException e) {
+            Log.e(TAG, "codec flush failed: %s", e.getMessage());
+            mBroken = true;
+        }
+    }
+
+    /**
+     * Releases the decoder and its surface. Only call between sessions.
+     */
+    void release() {
+        try {
+            mCodec.stop();
+        }
+        catch (IllegalStateException e) {
+            Log.d(TAG, "stopping codec: %s", e.getMessage());
+        }
         mCodec.release();
+        mSurface.release();
     }
 }
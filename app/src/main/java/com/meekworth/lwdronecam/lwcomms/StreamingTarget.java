@@ -1,6 +0,0 @@
-package com.meekworth.lwdronecam.lwcomms;
-
-public interface StreamingTarget {
-    void sendFrame(byte[] frameBytes);
-    void finished();
-}
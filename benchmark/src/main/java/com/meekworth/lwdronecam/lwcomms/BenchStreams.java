@@ -0,0 +1,270 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/*
+ * Builds the byte streams the benchmarks and the camera emulator feed through the protocol
+ * code, in the same format the camera sends.
+ */
+final class BenchStreams {
+    static final int MUNGE_NONE = 0;
+    static final int MUNGE_OLD_DEC = 1;
+    static final int MUNGE_NEW_DEC = 129;
+
+    private static final int FRAME_HDR_LEN = 0x20;
+    private static final int HEARTBEAT_LEN = 64;
+    // one key frame per second at 30fps
+    static final int GOP_LEN = 30;
+
+    // Payloads end with a trailer that lets a receiver check what it got:
+    // crc32 of everything before the trailer (int), unused (int), frame count, send nanoTime.
+    static final int TRAILER_LEN = 24;
+    static final int MIN_PAYLOAD_LEN = 64;
+
+    static final byte[] DEFAULT_SPS = sps(1280, 720);
+    static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte)0xce, 0x3c, (byte)0x80};
+
+    static final OutputStream NULL_OUT = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private BenchStreams() {
+    }
+
+    static int mungeType(String name) {
+        switch (name) {
+            case "OLD_DEC": return MUNGE_OLD_DEC;
+            case "NEW_DEC": return MUNGE_NEW_DEC;
+            default: return MUNGE_NONE;
+        }
+    }
+
+    /**
+     * An H.264-like payload of len bytes: an IDR slice every GOP_LEN frames (with SPS and PPS
+     * in front), a reference P slice otherwise, ending with the trailer.
+     */
+    static byte[] payload(int len, long count) {
+        return payload(len, count, count % GOP_LEN == 0);
+    }
+
+    /**
+     * Like payload(len, count), but with the IDR slice chosen by the caller.
+     */
+    static byte[] payload(int len, long count, boolean key) {
+        return payload(len, count, key, DEFAULT_SPS);
+    }
+
+    /**
+     * Like payload(len, count, key), with the given SPS in front of an IDR slice.
+     */
+    static byte[] payload(int len, long count, boolean key, byte[] sps) {
+        ByteBuffer buf = ByteBuffer.allocate(Math.max(len, MIN_PAYLOAD_LEN));
+        Random rand = new Random(count);
+        CRC32 crc = new CRC32();
+        int trailerOff = buf.capacity() - TRAILER_LEN;
+
+        if (key) {
+            buf.put(sps);
+            buf.put(PPS);
+            buf.put(new byte[] {0, 0, 0, 1, 0x65});
+        }
+        else {
+            buf.put(new byte[] {0, 0, 0, 1, 0x41});
+        }
+        while (buf.position() < trailerOff) {
+            // keep the slice free of start codes, as a real encoder would
+            buf.put((byte)(2 + rand.nextInt(254)));
+        }
+
+        crc.update(buf.array(), 0, trailerOff);
+        buf.putInt((int)crc.getValue()).putInt(0).putLong(count);
+        return buf.array();
+    }
+
+    /**
+     * A baseline profile SPS NAL, with its start code, for a progressive picture of the given
+     * size. Sizes that aren't a multiple of 16 are cropped from the right and bottom.
+     */
+    static byte[] sps(int width, int height) {
+        int widthMbs = (width + 15) / 16;
+        int heightMbs = (height + 15) / 16;
+        int cropRight = (widthMbs * 16 - width) / 2;
+        int cropBottom = (heightMbs * 16 - height) / 2;
+        BitWriter out = new BitWriter();
+
+        out.bits(0x67, 8);
+        out.bits(66, 8);        // profile_idc: baseline
+        out.bits(0xc0, 8);      // constraint_set0/1
+        out.bits(31, 8);        // level_idc
+        out.ue(0);              // seq_parameter_set_id
+        out.ue(0);              // log2_max_frame_num_minus4
+        out.ue(2);              // pic_order_cnt_type
+        out.ue(1);              // max_num_ref_frames
+        out.bits(0, 1);         // gaps_in_frame_num_value_allowed_flag
+        out.ue(widthMbs - 1);
+        out.ue(heightMbs - 1);
+        out.bits(1, 1);         // frame_mbs_only_flag
+        out.bits(1, 1);         // direct_8x8_inference_flag
+        if (cropRight != 0 || cropBottom != 0) {
+            out.bits(1, 1);
+            out.ue(0);
+            out.ue(cropRight);
+            out.ue(0);
+            out.ue(cropBottom);
+        }
+        else {
+            out.bits(0, 1);
+        }
+        out.bits(0, 1);         // vui_parameters_present_flag
+        return out.toNal();
+    }
+
+    /*
+     * Writes RBSP bits MSB first, and turns them into a NAL with start code and emulation
+     * prevention bytes.
+     */
+    private static class BitWriter {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+        private int mCur;
+        private int mBits;
+
+        void bits(int val, int n) {
+            for (int i = n - 1; i >= 0; i--) {
+                mCur = (mCur << 1) | ((val >> i) & 1);
+                if (++mBits == 8) {
+                    mOut.write(mCur);
+                    mCur = 0;
+                    mBits = 0;
+                }
+            }
+        }
+
+        void ue(int val) {
+            int n = 32 - Integer.numberOfLeadingZeros(val + 1);
+            bits(0, n - 1);
+            bits(val + 1, n);
+        }
+
+        byte[] toNal() {
+            ByteArrayOutputStream nal = new ByteArrayOutputStream();
+            int zeros = 0;
+
+            // rbsp_stop_one_bit, then align
+            bits(1, 1);
+            while (mBits != 0) {
+                bits(0, 1);
+            }
+            nal.write(0);
+            nal.write(0);
+            nal.write(0);
+            nal.write(1);
+            for (byte b : mOut.toByteArray()) {
+                if (zeros >= 2 && (b & 0xff) <= 3) {
+                    nal.write(3);
+                    zeros = 0;
+                }
+                nal.write(b);
+                zeros = (b == 0) ? zeros + 1 : 0;
+            }
+            return nal.toByteArray();
+        }
+    }
+
+    /**
+     * Sets the send time in a payload's trailer, which the crc doesn't cover.
+     */
+    static void stampSendTime(byte[] payload, long nanos) {
+        ByteBuffer.wrap(payload).putLong(payload.length - 8, nanos);
+    }
+
+    /**
+     * Checks a received payload against its trailer.
+     * @return  the frame count from the trailer, or -1 if the payload is corrupt.
+     */
+    static long checkPayload(ByteBuffer payload, int len) {
+        ByteBuffer buf = payload.duplicate().order(ByteOrder.BIG_ENDIAN);
+        CRC32 crc = new CRC32();
+        int trailerOff = len - TRAILER_LEN;
+
+        if (trailerOff < 0) {
+            return -1;
+        }
+        buf.position(0).limit(trailerOff);
+        crc.update(buf);
+        buf.limit(len);
+        if ((int)crc.getValue() != buf.getInt(trailerOff)) {
+            return -1;
+        }
+        return buf.getLong(trailerOff + 8);
+    }
+
+    static long sendNanos(ByteBuffer payload, int len) {
+        return payload.duplicate().order(ByteOrder.BIG_ENDIAN).getLong(len - 8);
+    }
+
+    /**
+     * A STREAM_FRAME command carrying the payload, munged the way the camera does it.
+     */
+    static Command frameCommand(byte[] payload, long count, int mungeType) {
+        int[] args = new int[8];
+        ByteBuffer body = ByteBuffer.allocate(FRAME_HDR_LEN + payload.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer data;
+        int[] dec;
+
+        body.putInt(0).putInt(payload.length).putLong(count);
+        body.position(FRAME_HDR_LEN);
+        data = body.slice();
+        data.put(payload);
+        dec = CamMunger.munge(data, payload.length, mungeType, count);
+
+        args[Command.ARG_STREAM_TYPE] = mungeType;
+        args[Command.ARG_STREAM_DEC1] = dec[0];
+        args[Command.ARG_STREAM_DEC2] = dec[1];
+        return new Command(Command.Type.STREAM_FRAME, args, body.array());
+    }
+
+    static Command frameCommand(int len, long count, int mungeType) {
+        return frameCommand(payload(len, count), count, mungeType);
+    }
+
+    static byte[] heartbeatBody(int clientCount, long camTimeSecs) {
+        return ByteBuffer.allocate(HEARTBEAT_LEN)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(1)
+                .putLong(32L << 30)
+                .putLong(20L << 30)
+                .putInt(clientCount)
+                .putLong(camTimeSecs)
+                .array();
+    }
+
+    /**
+     * A stream of frames as the camera sends them, with a heartbeat reply every 90 frames.
+     */
+    static byte[] videoStream(int frames, int frameLen, int mungeType) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] hb = new Command(Command.Type.HEARTBEAT,
+                heartbeatBody(1, System.currentTimeMillis() / 1000)).toBytes();
+
+        for (int i = 0; i < frames; i++) {
+            byte[] b = frameCommand(frameLen, i, mungeType).toBytes();
+            out.write(b, 0, b.length);
+            if (i % 90 == 89) {
+                out.write(hb, 0, hb.length);
+            }
+        }
+        return out.toByteArray();
+    }
+}
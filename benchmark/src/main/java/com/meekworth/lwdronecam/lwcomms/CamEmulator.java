@@ -0,0 +1,527 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import com.meekworth.lwdronecam.utils.Log;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Emulates the camera side of the lewei_cmd protocol over TCP, for load and latency testing
+ * without a drone. It answers HEARTBEAT, SET_TIME, GET_RECORD_PLAN and SET_RECORD_PLAN, and
+ * sends STREAM_FRAME commands to every client between START_STREAM and STOP_STREAM.
+ *
+ * Like the camera, one encoder produces frames at a fixed rate and every streaming client
+ * gets the same frames. Each client has a short send queue; frames that don't fit are dropped
+ * for that client, so a slow client never holds up the others. Frame payloads are built by
+ * BenchStreams, so receivers can check them and measure latency from the trailer. Faults and
+ * link outages can be injected to exercise the receiver's recovery.
+ */
+public class CamEmulator implements Closeable {
+    private static final String TAG = "LWDroneCam/lwcomms.CamEmulator";
+    private static final int DEFAULT_FPS = 30;
+    private static final int DEFAULT_FRAME_SIZE = 16 * 1024;
+    private static final int DEFAULT_QUEUE_FRAMES = 8;
+    private static final long QUEUE_POLL_MS = 100;
+
+    private final ServerSocket[] mServers;
+    private final Set<Client> mClients = ConcurrentHashMap.newKeySet();
+    private final AtomicLong mFramesSent = new AtomicLong();
+    private final AtomicLong mFramesDropped = new AtomicLong();
+    private volatile boolean mRunning;
+    private Thread mFrameThread;
+
+    private volatile int mFps = DEFAULT_FPS;
+    private volatile int mFrameSize = DEFAULT_FRAME_SIZE;
+    private volatile double mSizeJitter;
+    private volatile long mTimingJitterUs;
+    private volatile int mMungeType = BenchStreams.MUNGE_NEW_DEC;
+    private volatile int mQueueFrames = DEFAULT_QUEUE_FRAMES;
+    private volatile double mFaultRate;
+    private final AtomicLong mFaults = new AtomicLong();
+    private volatile long mOutageEveryNs;
+    private volatile long mOutageLenNs;
+    private final AtomicLong mOutages = new AtomicLong();
+    // a client just started streaming, so the next frame is an IDR frame
+    private volatile boolean mForceKey;
+    private volatile byte[] mSps = BenchStreams.DEFAULT_SPS;
+
+    // emulated camera state, shared by all clients
+    private volatile long mClockOffsetSecs;
+    private volatile byte[] mRecordPlan = RecordPlan.getDefault(false).toBytes();
+
+    /**
+     * Binds the stream and command ports on the loopback interface. Pass 0 for either to use
+     * an ephemeral port, see getPorts().
+     */
+    public CamEmulator(int streamPort, int cmdPort) throws IOException {
+        this(new InetSocketAddress("127.0.0.1", streamPort),
+                new InetSocketAddress("127.0.0.1", cmdPort));
+    }
+
+    /**
+     * Binds one listening socket per address. Every port speaks the whole protocol, as the
+     * separate stream and command ports of the camera are only a convention of the apps.
+     */
+    public CamEmulator(InetSocketAddress... addrs) throws IOException {
+        mServers = new ServerSocket[addrs.length];
+
+        try {
+            for (int i = 0; i < addrs.length; i++) {
+                mServers[i] = new ServerSocket();
+                mServers[i].setReuseAddress(true);
+                mServers[i].bind(addrs[i]);
+            }
+        }
+        catch (IOException e) {
+            closeServers();
+            throw e;
+        }
+    }
+
+    public int[] getPorts() {
+        int[] ports = new int[mServers.length];
+
+        for (int i = 0; i < mServers.length; i++) {
+            ports[i] = mServers[i].getLocalPort();
+        }
+        return ports;
+    }
+
+    public void setFrameRate(int fps) {
+        mFps = Math.max(1, fps);
+    }
+
+    /**
+     * Sets the payload size of each frame. Sizes below BenchStreams.MIN_PAYLOAD_LEN are
+     * rounded up.
+     */
+    public void setFrameSize(int bytes) {
+        mFrameSize = bytes;
+    }
+
+    /**
+     * Varies each frame's size by up to +/- fraction of the frame size.
+     */
+    public void setSizeJitter(double fraction) {
+        mSizeJitter = Math.max(0, Math.min(1, fraction));
+    }
+
+    /**
+     * Sends each frame up to +/- the given time off its schedule. The schedule itself doesn't
+     * drift, so the average frame rate stays the same.
+     */
+    public void setTimingJitter(long time, TimeUnit unit) {
+        mTimingJitterUs = unit.toMicros(time);
+    }
+
+    /**
+     * Sets the munge type used for frames: 0 (none), 1 (old) or 129 (new).
+     */
+    public void setMungeType(int type) {
+        mMungeType = type;
+    }
+
+    /**
+     * Sets how many frames may wait to be sent to a client before new ones are dropped.
+     */
+    public void setQueueFrames(int frames) {
+        mQueueFrames = Math.max(1, frames);
+    }
+
+    /**
+     * Sets the chance that a frame goes out damaged, like on a noisy link: with garbage in
+     * front of it, a broken magic, an unknown command in front of it, or a frame header that
+     * doesn't match the body.
+     */
+    public void setFaultRate(double rate) {
+        mFaultRate = Math.max(0, Math.min(1, rate));
+    }
+
+    /**
+     * Changes the picture size in the SPS sent with key frames. The next frame is a key frame
+     * with the new SPS, like a camera switching resolution mid-stream.
+     */
+    public void setVideoSize(int width, int height) {
+        mSps = BenchStreams.sps(width, height);
+        mForceKey = true;
+    }
+
+    /**
+     * Sets up link outages, one every interval, alternating between a stall (nothing is sent
+     * for the given length, though connections stay up) and a drop (every client connection
+     * is closed). An interval of 0 turns them off.
+     */
+    public void setOutages(long every, long length, TimeUnit unit) {
+        mOutageEveryNs = unit.toNanos(every);
+        mOutageLenNs = unit.toNanos(length);
+    }
+
+    public long getOutages() {
+        return mOutages.get();
+    }
+
+    /**
+     * Frames damaged by setFaultRate(), counting each frame once however many clients got it.
+     */
+    public long getFaults() {
+        return mFaults.get();
+    }
+
+    public int getClientCount() {
+        return mClients.size();
+    }
+
+    /**
+     * Frames written to clients, counting each client separately.
+     */
+    public long getFramesSent() {
+        return mFramesSent.get();
+    }
+
+    /**
+     * Frames dropped because a client's send queue was full.
+     */
+    public long getFramesDropped() {
+        return mFramesDropped.get();
+    }
+
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+
+        for (ServerSocket server : mServers) {
+            Thread t = new Thread(() -> acceptClients(server), "EmuAccept-"
+                    + server.getLocalPort());
+            t.setDaemon(true);
+            t.start();
+        }
+        mFrameThread = new Thread(this::produceFrames, "EmuFrames");
+        mFrameThread.setDaemon(true);
+        mFrameThread.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mRunning = false;
+        closeServers();
+        for (Client c : mClients) {
+            c.close();
+        }
+        if (mFrameThread != null) {
+            try {
+                mFrameThread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void closeServers() {
+        for (ServerSocket server : mServers) {
+            if (server == null) {
+                continue;
+            }
+            try {
+                server.close();
+            }
+            catch (IOException e) {
+                Log.d(TAG, "error closing server socket: %s", e.getMessage());
+            }
+        }
+    }
+
+    private void acceptClients(ServerSocket server) {
+        while (mRunning) {
+            try {
+                Client client = new Client(server.accept());
+                mClients.add(client);
+                client.start();
+            }
+            catch (IOException e) {
+                if (mRunning) {
+                    Log.e(TAG, "accept failed: %s", e.getMessage());
+                }
+                break;
+            }
+        }
+    }
+
+    /*
+     * The emulated encoder. Frames are numbered whether or not anyone is streaming, like the
+     * camera's frame counter, and each one is encoded once and shared by every client. A new
+     * stream starts with an IDR frame, which everyone gets.
+     */
+    private void produceFrames() {
+        long next = System.nanoTime();
+        long count = 0;
+        long nextOutage = 0;
+        long stallUntil = 0;
+
+        while (mRunning) {
+            ThreadLocalRandom rand = ThreadLocalRandom.current();
+            long jitterUs = mTimingJitterUs;
+            long sendAt;
+            int size = mFrameSize;
+            byte[] frame = null;
+
+            next += TimeUnit.SECONDS.toNanos(1) / mFps;
+            sendAt = next;
+            if (jitterUs > 0) {
+                sendAt += TimeUnit.MICROSECONDS.toNanos(rand.nextLong(-jitterUs, jitterUs + 1));
+            }
+            for (long now; (now = System.nanoTime()) < sendAt && mRunning; ) {
+                LockSupport.parkNanos(sendAt - now);
+            }
+
+            if (mOutageEveryNs > 0) {
+                if (nextOutage == 0) {
+                    nextOutage = sendAt + mOutageEveryNs;
+                }
+                if (sendAt - nextOutage >= 0) {
+                    nextOutage += mOutageEveryNs;
+                    if (mOutages.getAndIncrement() % 2 == 0) {
+                        stallUntil = sendAt + mOutageLenNs;
+                    }
+                    else {
+                        for (Client c : mClients) {
+                            c.close();
+                        }
+                    }
+                }
+                if (stallUntil != 0 && sendAt - stallUntil < 0) {
+                    count++;
+                    continue;
+                }
+            }
+
+            if (mSizeJitter > 0) {
+                int range = (int)(size * mSizeJitter);
+                size += rand.nextInt(-range, range + 1);
+            }
+            for (Client c : mClients) {
+                if (!c.mStreaming) {
+                    continue;
+                }
+                if (frame == null) {
+                    boolean key = count % BenchStreams.GOP_LEN == 0 || mForceKey;
+                    byte[] payload = BenchStreams.payload(size, count, key, mSps);
+
+                    mForceKey = false;
+                    BenchStreams.stampSendTime(payload, System.nanoTime());
+                    frame = BenchStreams.frameCommand(payload, count, mMungeType).toBytes();
+                    if (rand.nextDouble() < mFaultRate) {
+                        frame = damage(frame, rand);
+                        mFaults.incrementAndGet();
+                    }
+                }
+                c.offer(frame);
+            }
+            count++;
+        }
+    }
+
+    private static byte[] damage(byte[] frame, ThreadLocalRandom rand) {
+        ByteBuffer out;
+        byte[] extra;
+
+        switch (rand.nextInt(4)) {
+            case 0:
+                // garbage, which can't hold the magic as every byte is above 'w'
+                extra = new byte[1 + rand.nextInt(256)];
+                for (int i = 0; i < extra.length; i++) {
+                    extra[i] = (byte)('x' + rand.nextInt(0x100 - 'x'));
+                }
+                break;
+
+            case 1:
+                frame = frame.clone();
+                frame[rand.nextInt(Command.LEWEI_MAGIC.length)] ^= 0x20;
+                return frame;
+
+            case 2:
+                extra = new Command(Command.Type.HEARTBEAT,
+                        new byte[rand.nextInt(512)]).toBytes();
+                ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN)
+                        .putInt(Command.TYPE_OFF, 0x7f);
+                break;
+
+            default:
+                // frame header length one off from the body
+                frame = frame.clone();
+                ByteBuffer buf = ByteBuffer.wrap(frame).order(ByteOrder.LITTLE_ENDIAN);
+                int lenOff = Command.HDR_LEN + Integer.BYTES;
+                buf.putInt(lenOff, buf.getInt(lenOff) + 1);
+                return frame;
+        }
+
+        out = ByteBuffer.allocate(extra.length + frame.length);
+        return out.put(extra).put(frame).array();
+    }
+
+    private Command handle(Command cmd, Client client) {
+        switch (cmd.getType()) {
+            case HEARTBEAT:
+                return new Command(Command.Type.HEARTBEAT, BenchStreams.heartbeatBody(
+                        mClients.size(), System.currentTimeMillis() / 1000 + mClockOffsetSecs));
+
+            case START_STREAM:
+                mForceKey = true;
+                client.mStreaming = true;
+                return null;
+
+            case STOP_STREAM:
+                client.mStreaming = false;
+                return null;
+
+            case SET_TIME:
+                if (cmd.getBody().length >= Long.BYTES) {
+                    long secs = ByteBuffer.wrap(cmd.getBody())
+                            .order(ByteOrder.LITTLE_ENDIAN)
+                            .getLong();
+                    mClockOffsetSecs = secs - System.currentTimeMillis() / 1000;
+                }
+                return new Command(Command.Type.SET_TIME, 0);
+
+            case GET_RECORD_PLAN:
+                return new Command(Command.Type.GET_RECORD_PLAN, mRecordPlan);
+
+            case SET_RECORD_PLAN:
+                mRecordPlan = cmd.getBody().clone();
+                return new Command(Command.Type.SET_RECORD_PLAN, 0);
+
+            default:
+                Log.i(TAG, "ignoring %s command from a client", cmd.getType());
+                return null;
+        }
+    }
+
+    private class Client {
+        private final Socket mSocket;
+        private final StreamTransport mTransport;
+        private final BlockingQueue<byte[]> mQueue;
+        volatile boolean mStreaming;
+
+        Client(Socket socket) throws IOException {
+            mSocket = socket;
+            mSocket.setTcpNoDelay(true);
+            mTransport = new StreamTransport(
+                    new BufferedInputStream(socket.getInputStream()), socket.getOutputStream());
+            mQueue = new ArrayBlockingQueue<>(mQueueFrames);
+        }
+
+        void start() {
+            String name = "Emu-" + mSocket.getPort();
+            Thread reader = new Thread(this::readCommands, name + "-cmd");
+            Thread writer = new Thread(this::writeFrames, name + "-frames");
+
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+
+        void offer(byte[] frame) {
+            if (!mQueue.offer(frame)) {
+                mFramesDropped.incrementAndGet();
+            }
+        }
+
+        private void readCommands() {
+            try {
+                while (mRunning) {
+                    Command resp = handle(Command.fromStream(mTransport), this);
+                    if (resp != null) {
+                        send(resp.toBytes());
+                    }
+                }
+            }
+            catch (EOFException | SocketException e) {
+                // client went away
+            }
+            catch (IOException | LwcommsException e) {
+                Log.i(TAG, "dropping client: %s", e.getMessage());
+            }
+            close();
+        }
+
+        private void writeFrames() {
+            try {
+                while (mRunning && !mSocket.isClosed()) {
+                    byte[] frame = mQueue.poll(QUEUE_POLL_MS, TimeUnit.MILLISECONDS);
+                    if (frame != null) {
+                        send(frame);
+                        mFramesSent.incrementAndGet();
+                    }
+                }
+            }
+            catch (IOException e) {
+                // the reader notices too, and closes the client
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            close();
+        }
+
+        // replies and frames share the socket, so whole commands are written under a lock
+        private synchronized void send(byte[] b) throws IOException {
+            mTransport.sendAll(b);
+        }
+
+        void close() {
+            mStreaming = false;
+            mClients.remove(this);
+            mQueue.clear();
+            try {
+                mSocket.close();
+            }
+            catch (IOException e) {
+                Log.d(TAG, "error closing client: %s", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Runs an emulated camera on the given address until killed, e.g. for pointing the app
+     * at a PC. Options: --bind ADDR, --stream-port N, --cmd-port N, plus the frame options
+     * of CamLoadTest.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        CliArgs opts = new CliArgs(args);
+        String bind = opts.getString("bind", "0.0.0.0");
+        CamEmulator emu = new CamEmulator(
+                new InetSocketAddress(bind, opts.getInt("stream-port", 7060)),
+                new InetSocketAddress(bind, opts.getInt("cmd-port", 8060)));
+
+        opts.configure(emu);
+        emu.start();
+        System.out.printf("emulating camera on %s ports %d and %d%n",
+                bind, emu.getPorts()[0], emu.getPorts()[1]);
+
+        for (;;) {
+            Thread.sleep(5000);
+            System.out.printf("%d clients, %d frames sent, %d dropped, %d outages%n",
+                    emu.getClientCount(), emu.getFramesSent(), emu.getFramesDropped(),
+                    emu.getOutages());
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import com.meekworth.lwdronecam.relay.RelayServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Streams from a CamEmulator on loopback with many CamConnections at once, and reports
+ * throughput, frame loss and the latency from the emulator sending a frame to a target
+ * receiving it (which includes the frame ring hop). Every received payload is checked against
+ * its trailer, so unmunging or framing bugs show up as corrupt frames. The shared Metrics are
+ * printed at the end.
+ *
+ * With --relay, the clients connect to a RelayServer fed by one connection to the emulator,
+ * as viewers of the app's relay would, and the emulator only ever sees that one client.
+ *
+ * Options: --clients N, --seconds N, --transport SOCKET|CHANNEL, --relay N (the relay's queue
+ * length per viewer, in frames; 0, the default, is no relay), plus the frame options of
+ * CliArgs.configure().
+ */
+public class CamLoadTest {
+    private static class CheckingTarget implements StreamingTarget {
+        private long[] mLatencies = new long[1024];
+        private int mFrames;
+        private long mBytes;
+        private long mLastCount = -1;
+        private long mGaps;
+        private long mLost;
+        private long mCorrupt;
+
+        @Override
+        public void sendFrame(StreamFrame frame) {
+            long now = System.nanoTime();
+            int len = frame.getLength();
+            long count = BenchStreams.checkPayload(frame.getBuffer(), len);
+
+            if (count < 0) {
+                mCorrupt++;
+                return;
+            }
+            if (mLastCount >= 0 && count != mLastCount + 1) {
+                mGaps++;
+                mLost += Math.max(0, count - mLastCount - 1);
+            }
+            mLastCount = count;
+
+            if (mFrames == mLatencies.length) {
+                mLatencies = Arrays.copyOf(mLatencies, mFrames * 2);
+            }
+            mLatencies[mFrames++] = now - BenchStreams.sendNanos(frame.getBuffer(), len);
+            mBytes += len;
+        }
+
+        @Override
+        public void finished() {
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        CliArgs opts = new CliArgs(args);
+        int clients = opts.getInt("clients", 8);
+        int seconds = opts.getInt("seconds", 10);
+        CamConnection.TransportType transport = CamConnection.TransportType.valueOf(
+                opts.getString("transport", "SOCKET"));
+        int relayQueue = opts.getInt("relay", 0);
+        Thread relayThread = null;
+        CheckingTarget[] targets = new CheckingTarget[clients];
+        CamConnection[] conns = new CamConnection[clients];
+        Thread[] threads = new Thread[clients];
+        AtomicBoolean running = new AtomicBoolean(true);
+        long[] latencies;
+        long frames = 0;
+        long bytes = 0;
+        long gaps = 0;
+        long lost = 0;
+        long corrupt = 0;
+        long resyncs = 0;
+        long skipped = 0;
+        long badFrames = 0;
+        long reconnects = 0;
+        long seqReceived = 0;
+        long seqLost = 0;
+        long seqGaps = 0;
+        long seqOdd = 0;
+        long startNs;
+        double elapsedS;
+
+        try (CamEmulator emu = new CamEmulator(0, 0)) {
+            int port = emu.getPorts()[0];
+
+            opts.configure(emu);
+            emu.start();
+            if (relayQueue > 0) {
+                Telemetry telemetry = new Telemetry();
+                RelayServer relay = new RelayServer(telemetry, relayQueue,
+                        new InetSocketAddress("127.0.0.1", 0));
+
+                relayThread = startRelay(relay, telemetry, port, transport, running);
+                port = relay.getPorts()[0];
+            }
+
+            for (int i = 0; i < clients; i++) {
+                CamConnection conn = CamConnection.createAndConnect("127.0.0.1", port, transport);
+                CheckingTarget target = new CheckingTarget();
+
+                conns[i] = conn;
+                targets[i] = target;
+                threads[i] = new Thread(() -> {
+                    conn.streamVideo(running, target);
+                    try {
+                        conn.close();
+                    }
+                    catch (IOException e) {
+                        // done with it anyway
+                    }
+                }, "LoadClient-" + i);
+            }
+
+            startNs = System.nanoTime();
+            for (Thread t : threads) {
+                t.start();
+            }
+            Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+            running.set(false);
+            for (Thread t : threads) {
+                t.join();
+            }
+            if (relayThread != null) {
+                relayThread.join();
+            }
+            elapsedS = (System.nanoTime() - startNs) / 1e9;
+
+            System.out.printf("emulator: %d frames sent, %d dropped on full queues, %d damaged,"
+                    + " %d outages%n", emu.getFramesSent(), emu.getFramesDropped(),
+                    emu.getFaults(), emu.getOutages());
+        }
+
+        for (CheckingTarget t : targets) {
+            frames += t.mFrames;
+            bytes += t.mBytes;
+            gaps += t.mGaps;
+            lost += t.mLost;
+            corrupt += t.mCorrupt;
+        }
+        for (CamConnection c : conns) {
+            resyncs += c.getResyncCount();
+            skipped += c.getSkippedCount();
+            badFrames += c.getBadFrameCount();
+            reconnects += c.getReconnectCount();
+            seqReceived += c.getFrameSequence().getReceived();
+            seqLost += c.getFrameSequence().getLost();
+            seqGaps += c.getFrameSequence().getGaps();
+            seqOdd += c.getFrameSequence().getDuplicates() + c.getFrameSequence().getBackwards()
+                    + c.getFrameSequence().getJumps();
+        }
+        latencies = new long[(int)frames];
+        frames = 0;
+        for (CheckingTarget t : targets) {
+            System.arraycopy(t.mLatencies, 0, latencies, (int)frames, t.mFrames);
+            frames += t.mFrames;
+        }
+        Arrays.sort(latencies);
+
+        System.out.printf("%d clients over %s%s for %.1fs%n", clients, transport,
+                relayQueue > 0 ? " through the relay" : "", elapsedS);
+        System.out.printf("received %d frames (%.1f fps/client), %.1f MB/s total%n",
+                frames, frames / elapsedS / clients, bytes / elapsedS / 1e6);
+        System.out.printf("gaps %d (%d frames lost, %.2f%%), corrupt %d%n",
+                gaps, lost, frames + lost > 0 ? 100.0 * lost / (frames + lost) : 0.0, corrupt);
+        System.out.printf("resyncs %d, unknown commands %d, bad frames %d, reconnects %d%n",
+                resyncs, skipped, badFrames, reconnects);
+        System.out.printf("frame counter: gaps %d (%d frames lost, %.2f%%),"
+                + " duplicate/backwards/jumps %d%n", seqGaps, seqLost,
+                FrameSequence.lossPercent(seqReceived, seqLost), seqOdd);
+        if (latencies.length > 0) {
+            System.out.printf("latency us: p50 %.0f  p90 %.0f  p99 %.0f  p99.9 %.0f  max %.0f%n",
+                    percentile(latencies, 50), percentile(latencies, 90),
+                    percentile(latencies, 99), percentile(latencies, 99.9),
+                    latencies[latencies.length - 1] / 1e3);
+        }
+        System.out.printf("%npipeline metrics, all clients: %s", Metrics.getDefault().snapshot());
+    }
+
+    /*
+     * Streams from the emulator into the relay, on a thread that ends once running is
+     * cleared, closing the relay to let its viewers go.
+     */
+    private static Thread startRelay(RelayServer relay, Telemetry telemetry, int port,
+                                     CamConnection.TransportType transport,
+                                     AtomicBoolean running) throws IOException {
+        CamConnection conn = CamConnection.createAndConnect("127.0.0.1", port, transport);
+        Thread t;
+
+        // the relay answers its viewers' heartbeats with this connection's replies
+        conn.setTelemetry(telemetry);
+        relay.start();
+        t = new Thread(() -> {
+            conn.streamVideo(running, relay);
+            relay.close();
+            try {
+                conn.close();
+            }
+            catch (IOException e) {
+                // done with it anyway
+            }
+        }, "LoadRelay");
+        t.start();
+        return t;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int idx = (int)Math.ceil(p / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, idx))] / 1e3;
+    }
+}
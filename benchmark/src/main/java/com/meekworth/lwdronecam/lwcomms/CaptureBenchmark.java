@@ -0,0 +1,148 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Runs a capture file through the receive path. Pass a real capture with
+ * -p capture=/path/to/file; without one, a synthetic capture of the BenchStreams video is
+ * used, and writeCapture() measures the capture writer on it. Scores are per pass over the
+ * whole capture.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CaptureBenchmark {
+    private static final int SYNTHETIC_FRAMES = 300;
+    private static final int SYNTHETIC_FRAME_SIZE = 32 * 1024;
+
+    @Param({""})
+    public String capture;
+
+    private File mSynthetic;
+    private File mScratch;
+    private byte[] mSyntheticStream;
+    private CaptureReplayer mReplayer;
+    private byte[] mStream;
+
+    private static class CountingTarget implements StreamingTarget {
+        long mFrames;
+
+        @Override
+        public void sendFrame(StreamFrame frame) {
+            mFrames++;
+        }
+
+        @Override
+        public void finished() {
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException, LwcommsException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        File file;
+        byte[] buf = new byte[64 * 1024];
+        int n;
+
+        if (capture.isEmpty()) {
+            mSyntheticStream = BenchStreams.videoStream(SYNTHETIC_FRAMES, SYNTHETIC_FRAME_SIZE,
+                    BenchStreams.MUNGE_NEW_DEC);
+            mSynthetic = File.createTempFile("lwbench", ".lwcap");
+            writeCapture(mSynthetic, mSyntheticStream);
+            file = mSynthetic;
+        }
+        else {
+            file = new File(capture);
+        }
+
+        mReplayer = CaptureReplayer.open(file);
+        try (InputStream in = mReplayer.openStream()) {
+            while ((n = in.read(buf, 0, buf.length)) > 0) {
+                out.write(buf, 0, n);
+            }
+        }
+        mStream = out.toByteArray();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mReplayer.close();
+        for (File f : new File[] {mSynthetic, mScratch}) {
+            if (f != null && !f.delete()) {
+                f.deleteOnExit();
+            }
+        }
+    }
+
+    private static void writeCapture(File file, byte[] stream) throws IOException {
+        try (CaptureWriter writer = new CaptureWriter(file)) {
+            writer.append(stream, 0, stream.length);
+        }
+    }
+
+    /**
+     * Memory-mapped replay at full speed: parse, copy out and unmunge every frame.
+     */
+    @Benchmark
+    public long replay() {
+        CountingTarget target = new CountingTarget();
+
+        mReplayer.replay(new AtomicBoolean(true), 0, target);
+        return target.mFrames;
+    }
+
+    /**
+     * The captured bytes through CamConnection.streamVideo() and the frame ring.
+     */
+    @Benchmark
+    public long streamVideo() {
+        CamConnection conn = new CamConnection(new StreamTransport(
+                new ByteArrayInputStream(mStream), BenchStreams.NULL_OUT));
+        CountingTarget target = new CountingTarget();
+
+        conn.setRingCapacity(1024);
+        conn.streamVideo(new AtomicBoolean(true), target);
+        return target.mFrames;
+    }
+
+    /**
+     * Cost of teeing a stream into a capture file, as CamConnection.startCapture() does.
+     * Only runs on the synthetic capture.
+     */
+    @Benchmark
+    public int writeCapture() throws IOException {
+        if (mSynthetic == null) {
+            return 0;
+        }
+        if (mScratch == null) {
+            mScratch = File.createTempFile("lwbench", ".lwcap");
+        }
+        // a separate file, as the replayer has the synthetic one mapped
+        try (CaptureWriter writer = new CaptureWriter(mScratch)) {
+            writer.append(mSyntheticStream, 0, mSyntheticStream.length);
+            return writer.getRecordCount();
+        }
+    }
+}
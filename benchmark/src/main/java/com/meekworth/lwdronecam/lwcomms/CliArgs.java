@@ -0,0 +1,58 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * "--name value" options for the emulator and load test mains.
+ */
+class CliArgs {
+    private final Map<String, String> mOpts = new HashMap<>();
+
+    CliArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("expected --name value, got " + args[i]);
+            }
+            mOpts.put(args[i].substring(2), args[++i]);
+        }
+    }
+
+    String getString(String name, String def) {
+        String val = mOpts.get(name);
+        return val != null ? val : def;
+    }
+
+    int getInt(String name, int def) {
+        String val = mOpts.get(name);
+        return val != null ? Integer.parseInt(val) : def;
+    }
+
+    double getDouble(String name, double def) {
+        String val = mOpts.get(name);
+        return val != null ? Double.parseDouble(val) : def;
+    }
+
+    /**
+     * Applies the frame options: --fps, --size, --size-jitter (fraction), --jitter-ms,
+     * --munge (NONE, OLD_DEC or NEW_DEC), --queue (frames), --faults (fraction of frames
+     * damaged), --outage-every (seconds) with --outage-ms for link outages, and
+     * --video-size (WxH).
+     */
+    void configure(CamEmulator emu) {
+        emu.setFrameRate(getInt("fps", 30));
+        emu.setFrameSize(getInt("size", 16 * 1024));
+        emu.setSizeJitter(getDouble("size-jitter", 0));
+        emu.setTimingJitter((long)(getDouble("jitter-ms", 0) * 1000), TimeUnit.MICROSECONDS);
+        emu.setMungeType(BenchStreams.mungeType(getString("munge", "NEW_DEC")));
+        emu.setQueueFrames(getInt("queue", 8));
+        emu.setFaultRate(getDouble("faults", 0));
+        if (mOpts.containsKey("video-size")) {
+            String[] size = getString("video-size", "").split("x");
+            emu.setVideoSize(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+        }
+        emu.setOutages((long)(getDouble("outage-every", 0) * 1000), getInt("outage-ms", 1000),
+                TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,79 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Encoding and decoding of the small command messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+    private Command mHeartbeatCmd;
+    private Command mSetPlanCmd;
+    private byte[] mHeartbeatBody;
+    private byte[] mPlanBody;
+    private ByteArrayInputStream mHeartbeatIn;
+    private StreamTransport mHeartbeatTransport;
+    private final CommandReader mReader = new CommandReader();
+
+    @Setup
+    public void setup() {
+        mHeartbeatCmd = new Command(Command.Type.HEARTBEAT);
+        mPlanBody = RecordPlan.getDefault(true).toBytes();
+        mSetPlanCmd = new Command(Command.Type.SET_RECORD_PLAN, mPlanBody);
+        mHeartbeatBody = BenchStreams.heartbeatBody(1, System.currentTimeMillis() / 1000);
+
+        mHeartbeatIn = new ByteArrayInputStream(
+                new Command(Command.Type.HEARTBEAT, mHeartbeatBody).toBytes());
+        mHeartbeatTransport = new StreamTransport(mHeartbeatIn, BenchStreams.NULL_OUT);
+    }
+
+    @Benchmark
+    public byte[] commandToBytesHeartbeat() {
+        return mHeartbeatCmd.toBytes();
+    }
+
+    @Benchmark
+    public byte[] commandToBytesSetRecordPlan() {
+        return mSetPlanCmd.toBytes();
+    }
+
+    @Benchmark
+    public Command commandFromStream() throws LwcommsException, IOException {
+        mHeartbeatIn.reset();
+        return Command.fromStream(mHeartbeatTransport);
+    }
+
+    @Benchmark
+    public Command commandReaderNext() throws IOException {
+        mHeartbeatIn.reset();
+        return mReader.next(mHeartbeatTransport);
+    }
+
+    @Benchmark
+    public Heartbeat heartbeatFromBytes() throws LwcommsException {
+        return Heartbeat.fromBytes(mHeartbeatBody);
+    }
+
+    @Benchmark
+    public RecordPlan recordPlanFromBytes() throws LwcommsException {
+        return RecordPlan.fromBytes(mPlanBody);
+    }
+}
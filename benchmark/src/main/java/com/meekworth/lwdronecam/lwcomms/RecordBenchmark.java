@@ -0,0 +1,66 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import com.meekworth.lwdronecam.record.Mp4Muxer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Muxing the BenchStreams video into fragmented MP4 with the output thrown away, which is
+ * what Mp4Recorder costs its target thread besides copying into the write-behind buffers.
+ * Scores are per pass over the video.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecordBenchmark {
+    private static final int FRAMES = 300;
+    private static final long FRAME_US = TimeUnit.SECONDS.toMicros(1) / 30;
+
+    @Param({"16384", "65536"})
+    public int frameSize;
+
+    private StreamFrame[] mFrames;
+    private long mMuxed;
+
+    @Setup
+    public void setup() throws LwcommsException {
+        mFrames = new StreamFrame[FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            mFrames[i] = StreamFrame.fromBytes(
+                    BenchStreams.frameCommand(frameSize, i, BenchStreams.MUNGE_NONE));
+        }
+    }
+
+    @Benchmark
+    public long mux() {
+        Mp4Muxer muxer = new Mp4Muxer(data -> {
+            for (ByteBuffer d : data) {
+                mMuxed += d.remaining();
+            }
+            return true;
+        });
+
+        muxer.start(BenchStreams.DEFAULT_SPS, BenchStreams.PPS, 1280, 720);
+        for (int i = 0; i < FRAMES; i++) {
+            muxer.add(mFrames[i], i * FRAME_US);
+        }
+        muxer.finish();
+        return muxer.getFileBytes();
+    }
+}
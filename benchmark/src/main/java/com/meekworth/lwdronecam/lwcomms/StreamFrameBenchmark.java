@@ -0,0 +1,66 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Parsing and unmunging a single frame, for each munge type and a range of frame sizes.
+ * fromBytes works on a fully read command body; readFrom is the streaming path that reads
+ * the payload straight into a pooled frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamFrameBenchmark {
+    @Param({"1024", "16384", "65536", "262144"})
+    public int frameSize;
+
+    @Param({"NONE", "OLD_DEC", "NEW_DEC"})
+    public String munge;
+
+    private Command mFrameCmd;
+    private ByteArrayInputStream mIn;
+    private StreamTransport mTransport;
+    private StreamFramePool mPool;
+
+    @Setup
+    public void setup() {
+        mFrameCmd = BenchStreams.frameCommand(frameSize, 1, BenchStreams.mungeType(munge));
+        mIn = new ByteArrayInputStream(mFrameCmd.toBytes());
+        mTransport = new StreamTransport(mIn, BenchStreams.NULL_OUT);
+        mPool = new StreamFramePool(1, frameSize);
+    }
+
+    @Benchmark
+    public StreamFrame fromBytes() throws LwcommsException {
+        return StreamFrame.fromBytes(mFrameCmd);
+    }
+
+    @Benchmark
+    public int readFrom() throws LwcommsException, IOException {
+        StreamFrame frame = mPool.acquire();
+        int len;
+
+        mIn.reset();
+        frame.readFrom(Command.headerFromStream(mTransport), mTransport);
+        len = frame.getLength();
+        frame.release();
+        return len;
+    }
+}
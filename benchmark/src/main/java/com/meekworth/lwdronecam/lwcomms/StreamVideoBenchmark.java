@@ -0,0 +1,85 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * The whole receive loop: CamConnection.streamVideo() reading an in-memory camera stream and
+ * fanning frames out to counting targets through the frame ring. Scores are per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamVideoBenchmark {
+    private static final int FRAMES = 300;
+
+    @Param({"4096", "65536"})
+    public int frameSize;
+
+    @Param({"NEW_DEC"})
+    public String munge;
+
+    @Param({"1", "3"})
+    public int targets;
+
+    private byte[] mStream;
+
+    private static class CountingTarget implements StreamingTarget {
+        long mFrames;
+        long mBytes;
+
+        @Override
+        public void sendFrame(StreamFrame frame) {
+            mFrames++;
+            mBytes += frame.getLength();
+        }
+
+        @Override
+        public void finished() {
+        }
+    }
+
+    @Setup
+    public void setup() {
+        mStream = BenchStreams.videoStream(FRAMES, frameSize, BenchStreams.mungeType(munge));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long streamVideo() {
+        CamConnection conn = new CamConnection(new StreamTransport(
+                new ByteArrayInputStream(mStream), BenchStreams.NULL_OUT));
+        CountingTarget[] counters = new CountingTarget[targets];
+        long frames = 0;
+
+        for (int i = 0; i < targets; i++) {
+            counters[i] = new CountingTarget();
+        }
+        // big enough that no consumer gets lapped, so every target sees every frame
+        conn.setRingCapacity(FRAMES);
+        // ends when the in-memory stream runs out
+        conn.streamVideo(new AtomicBoolean(true), counters);
+
+        for (CountingTarget c : counters) {
+            frames += c.mFrames;
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,72 @@
+package com.meekworth.lwdronecam.groundstation;
+
+import com.meekworth.lwdronecam.lwcomms.ParameterSets;
+import com.meekworth.lwdronecam.lwcomms.StreamFrame;
+import com.meekworth.lwdronecam.lwcomms.StreamingTarget;
+import com.meekworth.lwdronecam.utils.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/*
+ * Writes the stream as a raw H.264 (Annex-B) elementary stream, e.g. to stdout for a player
+ * (ffplay -f h264 -) or to a file. Output starts at the first key frame, with the parameter
+ * sets put in front of it if it doesn't carry them, so whatever reads it can decode from the
+ * start. Writing stops for good if the output fails, e.g. once the player is closed; the
+ * stream carries on for the other targets.
+ */
+class AnnexBWriter implements StreamingTarget {
+    private static final String TAG = "LWDroneCam/groundstation.AnnexBWriter";
+
+    private final WritableByteChannel mOut;
+    private final ParameterSets mParamSets = new ParameterSets();
+    private boolean mStarted;
+    private boolean mFailed;
+    private long mFrames;
+
+    AnnexBWriter(WritableByteChannel out) {
+        mOut = out;
+    }
+
+    @Override
+    public void sendFrame(StreamFrame frame) {
+        mParamSets.update(frame);
+        if (mFailed) {
+            return;
+        }
+        if (!mStarted) {
+            if (!frame.isKeyFrame()) {
+                return;
+            }
+            mStarted = true;
+        }
+
+        try {
+            if (frame.isKeyFrame() && !frame.hasParameterSets() && mParamSets.isComplete()) {
+                writeAll(ByteBuffer.wrap(mParamSets.getSps()));
+                writeAll(ByteBuffer.wrap(mParamSets.getPps()));
+            }
+            // the same buffer is read by every target, so its position is left alone
+            writeAll(frame.getBuffer().duplicate());
+            mFrames++;
+        }
+        catch (IOException e) {
+            Log.e(TAG, "stopped writing the stream: %s", e.getMessage());
+            mFailed = true;
+        }
+    }
+
+    @Override
+    public void finished() {
+        Log.i(TAG, "wrote %d frames", mFrames);
+        // a reconnect starts over, at its first key frame
+        mStarted = false;
+    }
+
+    private void writeAll(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            mOut.write(buf);
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package com.meekworth.lwdronecam.groundstation;
+
+import com.meekworth.lwdronecam.lwcomms.CamConnection;
+import com.meekworth.lwdronecam.lwcomms.Heartbeat;
+import com.meekworth.lwdronecam.lwcomms.Metrics;
+import com.meekworth.lwdronecam.lwcomms.StreamingTarget;
+import com.meekworth.lwdronecam.lwcomms.Telemetry;
+import com.meekworth.lwdronecam.record.Mp4Recorder;
+import com.meekworth.lwdronecam.relay.RelayServer;
+import com.meekworth.lwdronecam.utils.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Headless ground station: streams from the camera on a laptop or other box next to the
+ * pilot, recording it to MP4, relaying it to other viewers and/or writing it out raw, for as
+ * long as it runs. The camera connection is remade whenever it's lost, however long the
+ * outage, so a long session survives the drone flying out of range. Options are
+ * "--name value":
+ *
+ *   --host ADDR            camera address (192.168.0.1)
+ *   --stream-port N        camera stream port (7060)
+ *   --cmd-port N           camera command port (8060), only used for the default relay ports
+ *   --transport T          SOCKET or CHANNEL (CHANNEL)
+ *   --record DIR           record to MP4 files in DIR
+ *   --split-minutes N      start a new MP4 file every N minutes (10)
+ *   --relay PORTS          relay the stream on these comma-separated ports, or "camera" for
+ *                          the camera's own
+ *   --relay-queue N        frames queued per relay viewer before it skips ahead (60)
+ *   --out FILE             write the raw H.264 stream to FILE, or "-" for stdout
+ *   --seconds N            stop after N seconds (0, run until stopped)
+ *   --stats N              print a status line every N seconds (10, 0 for none)
+ *   --metrics FILE         write the pipeline metrics to FILE on exit
+ *   --log LEVEL            error, info, debug or verbose (info)
+ *
+ * Logging and status go to stderr, so stdout can carry the stream. Stop it with Ctrl-C;
+ * files are finished before it exits.
+ */
+public class GroundStation {
+    private static final String TAG = "LWDroneCam/groundstation.GroundStation";
+    private static final long RETRY_MS = 2000;
+    // long enough to finish the files, if the disk isn't hopelessly behind
+    private static final long SHUTDOWN_WAIT_MS = 10 * 1000;
+
+    private final Map<String, String> mOpts;
+    private final AtomicBoolean mRunning = new AtomicBoolean(true);
+    private final CountDownLatch mStopped = new CountDownLatch(1);
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private final Telemetry mTelemetry = new Telemetry();
+    private final PrintStream mStatus = System.err;
+
+    // the current connection, and the relay, for the status line
+    private volatile CamConnection mConn;
+    private volatile RelayServer mRelay;
+    private long mLastFrames;
+    private long mLastBytes;
+    private long mLastStatusNs;
+
+    private GroundStation(Map<String, String> opts) {
+        mOpts = opts;
+    }
+
+    public static void main(String[] args) {
+        GroundStation gs;
+
+        try {
+            gs = new GroundStation(parseArgs(args));
+            gs.checkArgs();
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println("groundstation: " + e.getMessage());
+            System.err.println("usage: groundstation [--host ADDR] [--record DIR]"
+                    + " [--relay PORTS|camera] [--out FILE|-] [--seconds N] ...");
+            System.exit(2);
+            return;
+        }
+        Log.setSink(new StderrSink(logLevel(gs.getString("log", "info"))));
+        System.exit(gs.run());
+    }
+
+    private int run() {
+        Timer timer = new Timer("GroundStation", true);
+        int seconds = getInt("seconds", 0);
+        int statsSeconds = getInt("stats", 10);
+        AnnexBWriter out = null;
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "Shutdown"));
+        if (seconds > 0) {
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    stop();
+                }
+            }, TimeUnit.SECONDS.toMillis(seconds));
+        }
+        if (statsSeconds > 0) {
+            mLastStatusNs = System.nanoTime();
+            timer.scheduleAtFixedRate(new TimerTask() {
+                @Override
+                public void run() {
+                    printStatus();
+                }
+            }, TimeUnit.SECONDS.toMillis(statsSeconds), TimeUnit.SECONDS.toMillis(statsSeconds));
+        }
+
+        try {
+            out = openOut();
+            if (mOpts.containsKey("relay")) {
+                // kept across reconnects, so viewers don't lose their connections to it
+                mRelay = new RelayServer(mTelemetry, getInt("relay-queue",
+                        RelayServer.DEFAULT_QUEUE_FRAMES), relayAddresses());
+                mRelay.start();
+            }
+            while (mRunning.get()) {
+                streamOnce(out);
+                if (mRunning.get() && !mStopped.await(RETRY_MS, TimeUnit.MILLISECONDS)) {
+                    Log.i(TAG, "reconnecting to the camera");
+                }
+            }
+            return 0;
+        }
+        catch (IOException e) {
+            Log.e(TAG, "%s", e.getMessage());
+            return 1;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        }
+        finally {
+            if (mRelay != null) {
+                mRelay.close();
+            }
+            timer.cancel();
+            writeMetrics();
+            // the recorders' finished() waited for their files, so they're done by now
+            mDone.countDown();
+        }
+    }
+
+    /*
+     * Connects and streams until stopped, or until the connection gives up reconnecting on
+     * its own. Failing to connect isn't an error, as the camera may just be out of range;
+     * failing to set up a target is.
+     */
+    private void streamOnce(AnnexBWriter out) throws IOException {
+        String host = getString("host", "192.168.0.1");
+        int port = getInt("stream-port", 7060);
+        CamConnection.TransportType transport =
+                CamConnection.TransportType.valueOf(getString("transport", "CHANNEL"));
+        List<StreamingTarget> targets = new ArrayList<>();
+        AtomicBoolean wasDegraded = new AtomicBoolean(false);
+        CamConnection conn;
+
+        try {
+            conn = CamConnection.createAndConnect(host, port, transport);
+        }
+        catch (IOException e) {
+            Log.i(TAG, "can't connect to [%s]:%d: %s", host, port, e.getMessage());
+            return;
+        }
+
+        try {
+            conn.setTelemetry(mTelemetry);
+            conn.getLinkMonitor().addListener(quality -> {
+                boolean degraded = quality.isDegraded();
+
+                if (wasDegraded.getAndSet(degraded) != degraded) {
+                    Log.i(TAG, "link %s", quality);
+                }
+            });
+            if (mOpts.containsKey("record")) {
+                targets.add(new Mp4Recorder(new File(getString("record", ".")),
+                        Mp4Recorder.DEFAULT_MAX_FILE_BYTES,
+                        TimeUnit.MINUTES.toMillis(getInt("split-minutes", 10))));
+            }
+            if (mRelay != null) {
+                targets.add(mRelay);
+            }
+            if (out != null) {
+                targets.add(out);
+            }
+            Log.i(TAG, "streaming from [%s]:%d", host, port);
+            mConn = conn;
+            conn.streamVideo(mRunning, targets.toArray(new StreamingTarget[0]));
+        }
+        finally {
+            mConn = null;
+            conn.close();
+        }
+    }
+
+    private void stop() {
+        mRunning.set(false);
+        mStopped.countDown();
+    }
+
+    private void shutdown() {
+        stop();
+        try {
+            if (!mDone.await(SHUTDOWN_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                System.err.println("groundstation: gave up waiting for the stream to finish");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void printStatus() {
+        Metrics.Snapshot metrics = Metrics.getDefault().snapshot();
+        CamConnection conn = mConn;
+        RelayServer relay = mRelay;
+        Heartbeat hb = mTelemetry.getLatest();
+        long nowNs = System.nanoTime();
+        long frames = metrics.getCounter("net.frames");
+        long bytes = metrics.getCounter("net.bytes");
+        double secs = (nowNs - mLastStatusNs) / 1e9;
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(String.format("%tT ", new Date()));
+        if (conn == null) {
+            sb.append("not connected");
+        }
+        else {
+            sb.append(String.format("%.1f fps, %.2f MB/s, %s",
+                    (frames - mLastFrames) / secs, (bytes - mLastBytes) / secs / 1e6,
+                    conn.getLinkMonitor().getQuality()));
+        }
+        if (relay != null) {
+            sb.append(String.format(", %d relay viewers", relay.getViewerCount()));
+        }
+        if (hb != null) {
+            if (hb.getSDCardMounted()) {
+                sb.append(String.format(", SD card %.0f%% free", hb.getSDCardFreePercent()));
+            }
+            sb.append(String.format(", %d camera clients", hb.getClientCount()));
+        }
+        mStatus.println(sb);
+
+        mLastFrames = frames;
+        mLastBytes = bytes;
+        mLastStatusNs = nowNs;
+    }
+
+    private void writeMetrics() {
+        String path = getString("metrics", null);
+
+        if (path == null) {
+            return;
+        }
+        try {
+            Metrics.getDefault().snapshot().writeTo(new File(path));
+        }
+        catch (IOException e) {
+            Log.e(TAG, "failed to write metrics to %s: %s", path, e.getMessage());
+        }
+    }
+
+    private AnnexBWriter openOut() throws IOException {
+        String path = getString("out", null);
+
+        if (path == null) {
+            return null;
+        }
+        if (path.equals("-")) {
+            return new AnnexBWriter(Channels.newChannel(System.out));
+        }
+        return new AnnexBWriter(new FileOutputStream(path).getChannel());
+    }
+
+    private InetSocketAddress[] relayAddresses() {
+        String ports = getString("relay", "camera");
+        String[] list;
+        InetSocketAddress[] addrs;
+
+        if (ports.equals("camera")) {
+            list = new String[] {getString("stream-port", "7060"), getString("cmd-port", "8060")};
+        }
+        else {
+            list = ports.split(",");
+        }
+        addrs = new InetSocketAddress[list.length];
+        for (int i = 0; i < list.length; i++) {
+            addrs[i] = new InetSocketAddress(Integer.parseInt(list[i].trim()));
+        }
+        return addrs;
+    }
+
+    /*
+     * Fails early on options that would only fail once connected.
+     */
+    private void checkArgs() {
+        if (!mOpts.containsKey("record") && !mOpts.containsKey("relay")
+                && !mOpts.containsKey("out")) {
+            throw new IllegalArgumentException("nothing to do, give --record, --relay or --out");
+        }
+        CamConnection.TransportType.valueOf(getString("transport", "CHANNEL"));
+        logLevel(getString("log", "info"));
+        if (mOpts.containsKey("relay")) {
+            relayAddresses();
+        }
+        if (mOpts.containsKey("record")) {
+            File dir = new File(getString("record", "."));
+
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IllegalArgumentException("can't create " + dir);
+            }
+        }
+        for (String name : new String[] {"stream-port", "cmd-port", "split-minutes",
+                "relay-queue", "seconds", "stats"}) {
+            getInt(name, 0);
+        }
+    }
+
+    private String getString(String name, String def) {
+        String val = mOpts.get(name);
+        return val != null ? val : def;
+    }
+
+    private int getInt(String name, int def) {
+        String val = mOpts.get(name);
+
+        try {
+            return val != null ? Integer.parseInt(val) : def;
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("--" + name + " takes a number, got " + val);
+        }
+    }
+
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> opts = new HashMap<>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("expected --name value, got " + args[i]);
+            }
+            opts.put(args[i].substring(2), args[++i]);
+        }
+        return opts;
+    }
+
+    private static int logLevel(String name) {
+        switch (name) {
+            case "error":
+                return Log.ERROR;
+            case "info":
+                return Log.INFO;
+            case "debug":
+                return Log.DEBUG;
+            case "verbose":
+                return Log.VERBOSE;
+            default:
+                throw new IllegalArgumentException("unknown log level " + name);
+        }
+    }
+}
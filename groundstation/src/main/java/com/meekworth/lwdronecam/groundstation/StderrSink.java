@@ -0,0 +1,40 @@
+package com.meekworth.lwdronecam.groundstation;
+
+import com.meekworth.lwdronecam.utils.Log;
+
+import java.util.Date;
+
+/*
+ * Log sink for the command line: one timestamped line per message on stderr, leaving stdout
+ * free for the stream. Messages below the level are dropped.
+ */
+class StderrSink implements Log.Sink {
+    private final int mLevel;
+
+    StderrSink(int level) {
+        mLevel = level;
+    }
+
+    @Override
+    public void log(int level, String tag, String msg) {
+        if (level < mLevel) {
+            return;
+        }
+        // one println per line, so lines from different threads don't interleave
+        System.err.println(String.format("%tT.%<tL %s %s: %s", new Date(), letter(level),
+                tag, msg));
+    }
+
+    private static String letter(int level) {
+        switch (level) {
+            case Log.ERROR:
+                return "E";
+            case Log.INFO:
+                return "I";
+            case Log.DEBUG:
+                return "D";
+            default:
+                return "V";
+        }
+    }
+}
@@ -0,0 +1,750 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import com.meekworth.lwdronecam.utils.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class CamConnection implements Closeable {
+    private static final String TAG = "LWDroneCam/lwcomms.CamConnection";
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int BLOCKING_TIMEOUT_MS = 1000;
+    // about a second of video at 30fps
+    private static final int DEFAULT_RING_CAPACITY = 32;
+    // a dozen frames at 30fps, well past any normal gap between frames
+    private static final int DEFAULT_STALL_TIMEOUT_MS = 400;
+    // the camera takes a moment to send its first frame after START_STREAM
+    private static final int FIRST_FRAME_TIMEOUT_MS = 1500;
+    private static final int RECONNECT_TIMEOUT_MS = 1000;
+    private static final int[] RECONNECT_BACKOFF_MS = {0, 50, 100, 200, 400, 800, 1000};
+    private static final long RECONNECT_GIVE_UP_MS = 30 * 1000;
+    // often enough to catch a slowing link well before the stall timeout
+    private static final int DEFAULT_HEARTBEAT_INTERVAL_MS = 500;
+
+    public enum TransportType {
+        // blocking java.net.Socket with buffered streams
+        SOCKET,
+        // non-blocking SocketChannel with a Selector and direct buffers
+        CHANNEL
+    }
+
+    /*
+     * Told when streamVideo() loses the stream and when it has it back. Called on the
+     * streaming thread.
+     */
+    public interface StallListener {
+        void streamStalled(String reason);
+        void streamResumed(long outageMs);
+    }
+
+    private volatile Transport mTransport;
+    // where the connection can be remade, or null if it can't (e.g. in-memory transports)
+    private final InetSocketAddress mAddr;
+    private final TransportType mType;
+    // held while a command is read, so capture starts and stops between commands
+    private final Object mReadLock = new Object();
+    // held while a command is sent, as heartbeats go out from their own thread
+    private final Object mSendLock = new Object();
+    private final CommandReader mReader = new CommandReader();
+    private final FrameSequence mSequence = new FrameSequence();
+    private final LinkMonitor mLink = new LinkMonitor();
+    private volatile long mBadFrames;
+    // every heartbeat reply read on this connection goes here
+    private volatile Telemetry mTelemetry = new Telemetry();
+
+    // frames read on this connection come from here
+    private StreamFramePool mPool = new StreamFramePool();
+    private int mRingCapacity = DEFAULT_RING_CAPACITY;
+    private int mStallTimeoutMs = DEFAULT_STALL_TIMEOUT_MS;
+    private int mHeartbeatIntervalMs = DEFAULT_HEARTBEAT_INTERVAL_MS;
+    private StallListener mStallListener;
+    private volatile long mReconnects;
+
+    private final Metrics.Counter mBytesMetric = Metrics.getDefault().counter("net.bytes");
+    private final Metrics.Counter mFramesMetric = Metrics.getDefault().counter("net.frames");
+    private final Metrics.Counter mBadFramesMetric =
+            Metrics.getDefault().counter("net.bad_frames");
+    private final Metrics.Counter mReconnectsMetric =
+            Metrics.getDefault().counter("net.reconnects");
+    // frame body from its header to its last byte, then unmunging it
+    private final Histogram mBodyMetric = Metrics.getDefault().histogram("read.body");
+    private final Histogram mUnmungeMetric = Metrics.getDefault().histogram("read.unmunge");
+    private final Histogram mIntervalMetric =
+            Metrics.getDefault().histogram("net.frame_interval");
+    // from the last frame before a stall to the key frame after reconnecting
+    private final Histogram mOutageMetric = Metrics.getDefault().histogram("net.outage");
+
+    CamConnection(Transport transport) {
+        this(transport, null, null);
+    }
+
+    private CamConnection(Transport transport, InetSocketAddress addr, TransportType type) {
+        mTransport = transport;
+        mAddr = addr;
+        mType = type;
+    }
+
+    @Override
+    public void close() throws IOException {
+        Log.d(TAG, "closing camera connection");
+        // TODO: any other closing stuff
+        try {
+            mTransport.close();
+        }
+        finally {
+            stopCapture();
+        }
+    }
+
+    public static CamConnection createAndConnect(String host, int port) throws IOException {
+        return createAndConnect(host, port, TransportType.SOCKET);
+    }
+
+    public static CamConnection createAndConnect(String host, int port, TransportType type)
+            throws IOException {
+        return createAndConnect(host, port, type, CONNECT_TIMEOUT_MS);
+    }
+
+    /**
+     * Like createAndConnect(), but gives up connecting after maxConnectMs if that's sooner
+     * than usual, e.g. to stay within a caller's deadline.
+     */
+    static CamConnection createAndConnect(String host, int port, TransportType type,
+                                          int maxConnectMs) throws IOException {
+        InetSocketAddress addr = new InetSocketAddress(host, port);
+        Transport transport = connectTransport(addr, type,
+                Math.min(maxConnectMs, CONNECT_TIMEOUT_MS));
+
+        Log.d(TAG, "connected to [%s]:%d (%s)", host, port, type);
+        return new CamConnection(transport, addr, type);
+    }
+
+    private static Transport connectTransport(InetSocketAddress addr, TransportType type,
+                                              int connectTimeoutMs) throws IOException {
+        if (type == TransportType.CHANNEL) {
+            return ChannelTransport.connect(addr, connectTimeoutMs, BLOCKING_TIMEOUT_MS);
+        }
+        return SocketTransport.connect(addr, connectTimeoutMs, BLOCKING_TIMEOUT_MS);
+    }
+
+    public Heartbeat getHeartbeat() throws LwcommsException, IOException {
+        return (Heartbeat)sendCmdAndGetResponse(new Command(Command.Type.HEARTBEAT));
+    }
+
+    /**
+     * Reads responses until one of the expected type arrives, skipping anything else (such as
+     * heartbeats or late replies to an earlier command).
+     */
+    private Response getResponse(Command.Type expected) throws LwcommsException, IOException {
+        synchronized (mReadLock) {
+            return readResponse(expected);
+        }
+    }
+
+    private Response readResponse(Command.Type expected) throws LwcommsException, IOException {
+        Transport transport = mTransport;
+        Command respCmd;
+
+        for (;;) {
+            respCmd = mReader.next(transport);
+            if (respCmd.getType() != expected) {
+                Log.v(TAG, "skipping %s response while waiting for %s",
+                        respCmd.getType(), expected);
+                mReader.skipBody(respCmd, transport);
+                continue;
+            }
+            if (respCmd.getType() == Command.Type.STREAM_FRAME) {
+                StreamFrame frame = readFrameBody(respCmd, transport);
+                if (frame == null) {
+                    continue;
+                }
+                return frame;
+            }
+            break;
+        }
+        respCmd.readBody(transport);
+        mBytesMetric.add(respCmd.getBodyLength());
+
+        if (respCmd.getType() == Command.Type.HEARTBEAT) {
+            Heartbeat hb = Heartbeat.fromBytes(respCmd.getBody());
+            mTelemetry.update(hb);
+            return hb;
+        }
+
+        switch (respCmd.getType()) {
+            case GET_RECORD_PLAN: return RecordPlan.fromBytes(respCmd.getBody());
+
+            case SET_RECORD_PLAN:
+                // fall through
+            case SET_TIME:
+                return new StatusResponse(respCmd.getArgument(Command.ARG_STATUS));
+
+            default:
+                throw new LwcommsException("invalid response type %d", respCmd.getType());
+        }
+    }
+
+    /**
+     * Reads until the next good frame, skipping everything else.
+     * @param deadlineNs  If not 0, the System.nanoTime() after which a stream that still
+     *                    sends other commands but no frames counts as stalled.
+     */
+    private StreamFrame readFrame(long deadlineNs) throws IOException {
+        synchronized (mReadLock) {
+            Transport transport = mTransport;
+
+            for (;;) {
+                Command cmd = mReader.next(transport);
+                if (cmd.getType() != Command.Type.STREAM_FRAME) {
+                    if (cmd.getType() == Command.Type.HEARTBEAT) {
+                        mLink.replied(System.nanoTime());
+                        readHeartbeatBody(cmd, transport);
+                    }
+                    else {
+                        mReader.skipBody(cmd, transport);
+                    }
+                    if (deadlineNs != 0 && System.nanoTime() - deadlineNs > 0) {
+                        throw new SocketTimeoutException("commands but no frames");
+                    }
+                    continue;
+                }
+
+                StreamFrame frame = readFrameBody(cmd, transport);
+                if (frame != null) {
+                    return frame;
+                }
+                // the gap it leaves in the counter is the link's, not the camera's
+                mSequence.dropped();
+            }
+        }
+    }
+
+    /*
+     * Reads an in-band heartbeat reply into the telemetry. A reply that doesn't parse is only
+     * logged, as the stream is still in step after its body.
+     */
+    private void readHeartbeatBody(Command cmd, Transport transport) throws IOException {
+        cmd.readBody(transport);
+        mBytesMetric.add(cmd.getBodyLength());
+        try {
+            mTelemetry.update(Heartbeat.fromBytes(cmd.getBody()));
+        }
+        catch (LwcommsException e) {
+            Log.v(TAG, "ignoring bad heartbeat reply: %s", e.getMessage());
+        }
+    }
+
+    /*
+     * Reads a frame body straight into a pooled frame. A frame whose body doesn't match its
+     * header is dropped (returning null); its whole body has been read by then, so the
+     * stream is still in step.
+     */
+    private StreamFrame readFrameBody(Command cmd, Transport transport) throws IOException {
+        StreamFrame frame = mPool.acquire();
+        long startNs = System.nanoTime();
+
+        try {
+            frame.readFrom(cmd, transport);
+            mUnmungeMetric.recordSince(frame.getArrivalNanos());
+            mBodyMetric.record(frame.getArrivalNanos() - startNs);
+            mBytesMetric.add(cmd.getBodyLength());
+            mFramesMetric.increment();
+            return frame;
+        }
+        catch (LwcommsException e) {
+            Log.v(TAG, "dropping bad frame: %s", e.getMessage());
+            mBadFrames++;
+            mBadFramesMetric.increment();
+            mBytesMetric.add(cmd.getBodyLength());
+            frame.release();
+            return null;
+        }
+        catch (IOException e) {
+            frame.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Times the connection lost its place in the stream and scanned ahead for the next
+     * command, rather than failing.
+     */
+    public long getResyncCount() {
+        return mReader.getResyncCount();
+    }
+
+    /**
+     * Commands skipped because of an unknown type.
+     */
+    public long getSkippedCount() {
+        return mReader.getSkippedCount();
+    }
+
+    /**
+     * Frames dropped because their body didn't match their header.
+     */
+    public long getBadFrameCount() {
+        return mBadFrames;
+    }
+
+    /**
+     * The camera's frame counter as seen by streamVideo(), for frames lost before they got
+     * here. Counts cover every stream on this connection; what's missed across a reconnect
+     * isn't counted.
+     */
+    public FrameSequence getFrameSequence() {
+        return mSequence;
+    }
+
+    /**
+     * Round-trip times and missed replies of the heartbeats streamVideo() sends. Listeners
+     * can be added at any time.
+     */
+    public LinkMonitor getLinkMonitor() {
+        return mLink;
+    }
+
+    /**
+     * The camera's status from the heartbeat replies read on this connection, including the
+     * ones streamVideo() gets back in-band.
+     */
+    public Telemetry getTelemetry() {
+        return mTelemetry;
+    }
+
+    /**
+     * Sets where heartbeat replies go, e.g. to share one telemetry with the command session.
+     */
+    public void setTelemetry(Telemetry telemetry) {
+        mTelemetry = telemetry;
+    }
+
+    /**
+     * Times streamVideo() reconnected after the stream stalled or dropped.
+     */
+    public long getReconnectCount() {
+        return mReconnects;
+    }
+
+    public StreamFramePool getFramePool() {
+        return mPool;
+    }
+
+    /**
+     * Sets the pool that frames are read into, e.g. to share one pool across reconnects.
+     */
+    public void setFramePool(StreamFramePool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Sets how many frames streamVideo() buffers between the network reader and the targets.
+     */
+    public void setRingCapacity(int frames) {
+        mRingCapacity = frames;
+    }
+
+    /**
+     * Sets how long streamVideo() may go without a frame before it reconnects, or 0 to never
+     * reconnect and stop at the first read error as before. Only connections made with
+     * createAndConnect() can reconnect.
+     */
+    public void setStallTimeout(int ms) {
+        mStallTimeoutMs = ms;
+    }
+
+    /**
+     * Sets how often streamVideo() sends a heartbeat.
+     */
+    public void setHeartbeatInterval(int ms) {
+        mHeartbeatIntervalMs = ms;
+    }
+
+    public void setStallListener(StallListener listener) {
+        mStallListener = listener;
+    }
+
+    /**
+     * Starts teeing everything received from the camera into a capture file, replacing any
+     * capture already running. See CaptureWriter for the format and CaptureReplayer for
+     * reading it back. Takes effect between commands, so it may wait for a read in progress.
+     */
+    public void startCapture(File file) throws IOException {
+        synchronized (mReadLock) {
+            stopCapture();
+            mTransport = new CaptureTransport(mTransport, new CaptureWriter(file));
+            Log.d(TAG, "capturing to %s", file);
+        }
+    }
+
+    /**
+     * Stops capturing and finishes the capture file. Does nothing if not capturing.
+     */
+    public void stopCapture() throws IOException {
+        synchronized (mReadLock) {
+            if (!(mTransport instanceof CaptureTransport)) {
+                return;
+            }
+            CaptureTransport capture = (CaptureTransport)mTransport;
+            mTransport = capture.getInner();
+            capture.getWriter().close();
+            Log.d(TAG, "captured %d commands", capture.getWriter().getRecordCount());
+        }
+    }
+
+    public boolean isRecording() throws LwcommsException, IOException {
+        RecordPlan plan = (RecordPlan)sendCmdAndGetResponse(
+                new Command(Command.Type.GET_RECORD_PLAN));
+        return plan.isActive();
+    }
+
+    public void setCurrentTime() throws LwcommsException, IOException {
+        sendCmdAndGetResponse(createSetTimeCommand());
+    }
+
+    static Command createSetTimeCommand() {
+        ByteBuffer body = ByteBuffer.allocate(Long.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .putLong(System.currentTimeMillis() / 1000);
+        return new Command(Command.Type.SET_TIME, body.array());
+    }
+
+    private void sendCmd(Command cmd) throws IOException {
+        byte[] bytes = cmd.toBytes();
+
+        synchronized (mSendLock) {
+            mTransport.sendAll(bytes);
+        }
+    }
+
+    Response sendCmdAndGetResponse(Command cmd) throws IOException, LwcommsException {
+        sendCmd(cmd);
+        return getResponse(cmd.getType());
+    }
+
+    /**
+     * Writes every command in the batch with one flush, then reads their responses in order.
+     * On return each of the batch's results holds its response.
+     */
+    public void sendBatch(CommandBatch batch) throws LwcommsException, IOException {
+        batch.clearResults();
+        sendPending(batch, 0);
+    }
+
+    /**
+     * Like sendBatch(), but only sends the commands that don't have a response yet, so a batch
+     * that failed part way through can be finished on a new connection.
+     * @param deadlineNs  If not 0, the System.nanoTime() by which the batch must be done; each
+     *                    write and read waits no longer than what's left of it.
+     */
+    void sendPending(CommandBatch batch, long deadlineNs) throws LwcommsException, IOException {
+        byte[] bytes = batch.pendingToBytes();
+
+        try {
+            synchronized (mSendLock) {
+                limitTimeout(deadlineNs);
+                mTransport.sendAll(bytes);
+            }
+
+            for (CommandBatch.Result<?> result : batch.getResults()) {
+                if (!result.isDone()) {
+                    limitTimeout(deadlineNs);
+                    result.set(getResponse(result.getCommand().getType()));
+                }
+            }
+        }
+        finally {
+            if (deadlineNs != 0) {
+                mTransport.setReadTimeout(BLOCKING_TIMEOUT_MS);
+            }
+        }
+    }
+
+    /*
+     * Cuts the transport's timeout to what's left before the deadline, if there is one.
+     */
+    private void limitTimeout(long deadlineNs) throws IOException {
+        long leftMs;
+
+        if (deadlineNs == 0) {
+            return;
+        }
+        leftMs = TimeUnit.NANOSECONDS.toMillis(deadlineNs - System.nanoTime());
+        if (leftMs <= 0) {
+            throw new SocketTimeoutException("command deadline passed");
+        }
+        mTransport.setReadTimeout((int)Math.min(leftMs, BLOCKING_TIMEOUT_MS));
+    }
+
+    public boolean startRecording() throws LwcommsException, IOException {
+        RecordPlan plan = RecordPlan.getDefault(true);
+        StatusResponse resp = (StatusResponse)sendCmdAndGetResponse(
+                new Command(Command.Type.SET_RECORD_PLAN, plan.toBytes()));
+        return resp.getStatus() == 0;
+    }
+
+    public boolean stopRecording() throws LwcommsException, IOException {
+        RecordPlan plan = RecordPlan.getDefault(false);
+        StatusResponse resp = (StatusResponse)sendCmdAndGetResponse(
+                new Command(Command.Type.SET_RECORD_PLAN, plan.toBytes()));
+        return resp.getStatus() == 0;
+    }
+
+    /**
+     * Streams frames to the targets until runningFlag is cleared or the connection fails.
+     * This thread only reads from the network and publishes frames into a ring; each target
+     * consumes the ring on its own thread with its own cursor, so a slow target never holds
+     * up the reads. A target that falls a whole ring behind skips ahead according to its
+     * overflow policy. Targets that keep a frame after sendFrame() returns must retain() it
+     * and release() it when done. Returns once every target has finished.
+     * Corrupt data on the link costs the frames it hits rather than the connection: the
+     * reader scans ahead to the next command header (see getResyncCount()).
+     * If no frame arrives within the stall timeout, or the connection drops, the stream
+     * connection is remade in place and restarted, and the targets carry on from the next
+     * IDR frame without being finished (see setStallTimeout()).
+     * Heartbeats go out on their own timer whatever the frames are doing, and their replies
+     * feed the link monitor (see getLinkMonitor()).
+     */
+    public void streamVideo(AtomicBoolean runningFlag, StreamingTarget... targets) {
+        final byte[] hbBytes = new Command(Command.Type.HEARTBEAT).toBytes();
+        Timer hbTimer = new Timer("Heartbeat", true);
+        FrameRing ring = new FrameRing(mRingCapacity, targets.length);
+        RingConsumer[] consumers = new RingConsumer[targets.length];
+
+        for (int i = 0; i < targets.length; i++) {
+            consumers[i] = new RingConsumer(ring, i, targets[i]);
+            consumers[i].start();
+        }
+
+        hbTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                sendHeartbeat(hbBytes);
+            }
+        }, mHeartbeatIntervalMs, mHeartbeatIntervalMs);
+
+        try {
+            // the last frame read, even one dropped while waiting for an IDR frame after a
+            // reconnect, as the stall timeout only asks that frames keep coming
+            long lastFrameNs = System.nanoTime();
+            // the last frame passed on before the stream was lost, while it's being recovered
+            long outageStartNs = 0;
+            // arrival of the last frame, or 0 when the next one starts over after a reconnect
+            long lastArrivalNs = 0;
+            long stallNs = TimeUnit.MILLISECONDS.toNanos(mStallTimeoutMs);
+            long firstFrameNs = TimeUnit.MILLISECONDS.toNanos(FIRST_FRAME_TIMEOUT_MS);
+            // waiting for the first frame after (re)starting the stream
+            boolean starting = true;
+            // when the stream was last (re)started
+            long startedNs;
+            // after a reconnect, nothing goes to the targets until an IDR frame
+            boolean awaitKey = false;
+
+            mSequence.restart();
+            startedNs = System.nanoTime();
+            startStream();
+            while (runningFlag.get()) {
+                StreamFrame frame;
+
+                try {
+                    // heartbeat replies keep the reads from timing out, so the wait for the
+                    // first frame needs a deadline of its own
+                    frame = readFrame(stallNs == 0 ? 0 :
+                            starting ? startedNs + firstFrameNs : lastFrameNs + stallNs);
+                }
+                catch (IOException e) {
+                    if (!runningFlag.get() || !recover(runningFlag, e)) {
+                        throw e;
+                    }
+                    startedNs = System.nanoTime();
+                    // a stall while still waiting for an IDR frame is the same outage
+                    if (!awaitKey) {
+                        outageStartNs = lastFrameNs;
+                    }
+                    starting = true;
+                    awaitKey = true;
+                    lastArrivalNs = 0;
+                    mSequence.restart();
+                    continue;
+                }
+                mSequence.update(frame);
+                lastFrameNs = System.nanoTime();
+
+                if (starting) {
+                    starting = false;
+                    if (stallNs != 0) {
+                        mTransport.setReadTimeout(mStallTimeoutMs);
+                    }
+                }
+                if (awaitKey) {
+                    if (frame.hasPicture() && !frame.isKeyFrame()) {
+                        frame.release();
+                        continue;
+                    }
+                    if (frame.isKeyFrame()) {
+                        awaitKey = false;
+                        resumed(lastFrameNs - outageStartNs);
+                    }
+                }
+
+                if (lastArrivalNs != 0) {
+                    mIntervalMetric.record(frame.getArrivalNanos() - lastArrivalNs);
+                }
+                lastArrivalNs = frame.getArrivalNanos();
+                // the ring takes over this thread's reference to the frame
+                ring.publish(frame);
+            }
+
+            sendCmd(new Command(Command.Type.STOP_STREAM));
+        }
+        catch (IOException e) {
+            Log.e(TAG, "streamming stopped: %s", e.getMessage());
+        }
+
+        hbTimer.cancel();
+        ring.close();
+        for (RingConsumer c : consumers) {
+            try {
+                c.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        ring.clear();
+
+        Log.d(TAG, "frame pool high-water mark %d (%d allocated)",
+                mPool.getHighWaterMark(), mPool.getAllocated());
+        Log.d(TAG, "%d resyncs (%d bytes discarded), %d unknown commands, %d bad frames",
+                mReader.getResyncCount(), mReader.getDiscardedBytes(),
+                mReader.getSkippedCount(), mBadFrames);
+        Log.d(TAG, "%d reconnects", mReconnects);
+        Log.d(TAG, "frame counter: %s", mSequence);
+        Log.d(TAG, "link: %s", mLink.getQuality());
+    }
+
+    /*
+     * Sends a heartbeat from the timer thread. A heartbeat that can't be sent (e.g. while
+     * reconnecting) is skipped; the stream's reads will find out about the connection.
+     */
+    private void sendHeartbeat(byte[] hbBytes) {
+        long nowNs = System.nanoTime();
+
+        mLink.check(nowNs);
+        try {
+            synchronized (mSendLock) {
+                // noted first, as the reply may beat sendAll() back
+                mLink.sent(nowNs);
+                mTransport.sendAll(hbBytes);
+            }
+        }
+        catch (IOException e) {
+            Log.v(TAG, "heartbeat not sent: %s", e.getMessage());
+            mLink.notSent();
+        }
+    }
+
+    /*
+     * Asks the camera to stream, allowing it a while for the first frame.
+     */
+    private void startStream() throws IOException {
+        if (mStallTimeoutMs != 0) {
+            mTransport.setReadTimeout(FIRST_FRAME_TIMEOUT_MS);
+        }
+        sendCmd(new Command(Command.Type.START_STREAM, 1));
+    }
+
+    /*
+     * Remakes the stream connection after a stall or read error and restarts the stream,
+     * retrying with backoff. Returns false if this connection can't reconnect, or it gave
+     * up or was stopped before it could.
+     */
+    private boolean recover(AtomicBoolean runningFlag, IOException cause) {
+        long startNs = System.nanoTime();
+        long giveUpNs = startNs + TimeUnit.MILLISECONDS.toNanos(RECONNECT_GIVE_UP_MS);
+
+        if (mAddr == null || mStallTimeoutMs == 0) {
+            return false;
+        }
+        Log.i(TAG, "stream stalled (%s), reconnecting", cause.getMessage());
+        if (mStallListener != null) {
+            mStallListener.streamStalled(cause.getMessage());
+        }
+
+        for (int attempt = 0; runningFlag.get(); attempt++) {
+            int backoffMs = RECONNECT_BACKOFF_MS[
+                    Math.min(attempt, RECONNECT_BACKOFF_MS.length - 1)];
+
+            if (backoffMs > 0) {
+                try {
+                    Thread.sleep(backoffMs);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            if (System.nanoTime() - giveUpNs > 0) {
+                Log.e(TAG, "giving up reconnecting after %d attempts", attempt);
+                return false;
+            }
+
+            try {
+                replaceTransport(connectTransport(mAddr, mType, RECONNECT_TIMEOUT_MS));
+                // replies to heartbeats on the old connection won't come
+                mLink.clearPending();
+                startStream();
+                mReconnects++;
+                mReconnectsMetric.increment();
+                Log.d(TAG, "reconnected after %d attempts, %d ms", attempt + 1,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs));
+                return true;
+            }
+            catch (IOException e) {
+                Log.d(TAG, "reconnect attempt %d failed: %s", attempt + 1, e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Swaps in a new connection, closing the old one and keeping any capture going.
+     */
+    private void replaceTransport(Transport transport) {
+        synchronized (mReadLock) {
+            Transport old = mTransport;
+
+            if (old instanceof CaptureTransport) {
+                mTransport = ((CaptureTransport)old).reconnected(transport);
+            }
+            else {
+                mTransport = transport;
+            }
+            try {
+                old.close();
+            }
+            catch (IOException e) {
+                Log.d(TAG, "closing stalled connection: %s", e.getMessage());
+            }
+        }
+    }
+
+    private void resumed(long outageNs) {
+        long outageMs = TimeUnit.NANOSECONDS.toMillis(outageNs);
+
+        mOutageMetric.record(outageNs);
+        Log.i(TAG, "stream resumed after %d ms", outageMs);
+        if (mStallListener != null) {
+            mStallListener.streamResumed(outageMs);
+        }
+    }
+}
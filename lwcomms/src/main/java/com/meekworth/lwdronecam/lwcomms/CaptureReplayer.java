@@ -0,0 +1,284 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import com.meekworth.lwdronecam.utils.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Reads a capture file written by CamConnection.startCapture() (format in CaptureWriter)
+ * through a memory map, and replays its frames into streaming targets.
+ *
+ * The file is mapped in segments that each overlap the next by the largest possible record,
+ * so every record lies wholly inside the segment its start falls in, whatever the file size.
+ */
+public class CaptureReplayer implements Closeable {
+    private static final String TAG = "LWDroneCam/lwcomms.CaptureReplayer";
+    private static final long SEGMENT_LEN = 1L << 30;
+    private static final long MAX_RECORD_LEN = CaptureWriter.RECORD_HDR_LEN
+            + CaptureWriter.CMD_HDR_LEN + CaptureWriter.MAX_BODY_LEN;
+
+    private final FileChannel mChannel;
+    private final long mSize;
+    private final MappedByteBuffer[] mSegments;
+    private final long mStartMillis;
+
+    private long[] mOffsets;
+    private long[] mNanos;
+    private int[] mTypes;
+    private int mRecords;
+
+    private CaptureReplayer(FileChannel channel) throws IOException, LwcommsException {
+        byte[] magic = new byte[CaptureWriter.FILE_MAGIC.length];
+
+        mChannel = channel;
+        mSize = channel.size();
+        mSegments = new MappedByteBuffer[(int)((mSize + SEGMENT_LEN - 1) / SEGMENT_LEN)];
+        for (int i = 0; i < mSegments.length; i++) {
+            long start = i * SEGMENT_LEN;
+            mSegments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                    start, Math.min(mSize - start, SEGMENT_LEN + MAX_RECORD_LEN));
+        }
+
+        if (mSize < CaptureWriter.FILE_HDR_LEN) {
+            throw new LwcommsException("capture file too short");
+        }
+        at(0).get(magic);
+        if (!Arrays.equals(magic, CaptureWriter.FILE_MAGIC)) {
+            throw new LwcommsException("not a capture file");
+        }
+        mStartMillis = at(magic.length).getLong();
+
+        if (!readIndex()) {
+            scanRecords();
+            Log.i(TAG, "capture has no index, found %d records by scanning", mRecords);
+        }
+    }
+
+    public static CaptureReplayer open(File file) throws IOException, LwcommsException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        try {
+            return new CaptureReplayer(channel);
+        }
+        catch (IOException | LwcommsException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    /**
+     * Wall clock time the capture started, in epoch milliseconds.
+     */
+    public long getStartTimeMillis() {
+        return mStartMillis;
+    }
+
+    public int getRecordCount() {
+        return mRecords;
+    }
+
+    /**
+     * Time from the start of the capture to the arrival of the last command.
+     */
+    public long getDurationNanos() {
+        return mRecords > 0 ? mNanos[mRecords - 1] : 0;
+    }
+
+    public long getArrivalNanos(int record) {
+        return mNanos[record];
+    }
+
+    /**
+     * Parses the record's command, as received (frames are still munged).
+     */
+    Command getCommand(int record) throws LwcommsException {
+        return Command.fromBuffer(getRaw(record));
+    }
+
+    /**
+     * The record's raw command bytes, as a read-only view of the map.
+     */
+    ByteBuffer getRaw(int record) {
+        ByteBuffer buf = at(mOffsets[record]);
+        int len = buf.getInt();
+
+        buf.position(buf.position() + Long.BYTES);
+        buf.limit(buf.position() + len);
+        return buf.slice();
+    }
+
+    /**
+     * The captured bytes in the order they were received, for feeding a CamConnection
+     * through a StreamTransport.
+     */
+    InputStream openStream() {
+        return new InputStream() {
+            private int mNext;
+            private ByteBuffer mCur = ByteBuffer.allocate(0);
+
+            @Override
+            public int read() {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                while (!mCur.hasRemaining()) {
+                    if (mNext >= mRecords) {
+                        return -1;
+                    }
+                    mCur = getRaw(mNext++);
+                }
+                len = Math.min(len, mCur.remaining());
+                mCur.get(b, off, len);
+                return len;
+            }
+        };
+    }
+
+    /**
+     * Sends every captured frame to the targets, then calls their finished(). The frames go
+     * through StreamFrame.fromBytes(), so they're unmunged the same way as when live.
+     * @param runningFlag  Replay stops early when this is cleared.
+     * @param speed        1 to keep the original timing, 2 for double speed and so on, or 0
+     *                     to go as fast as the targets take them.
+     * @return  the number of frames sent.
+     */
+    public int replay(AtomicBoolean runningFlag, double speed, StreamingTarget... targets) {
+        int frameType = Command.Type.STREAM_FRAME.getCommandValue();
+        long startNs = System.nanoTime();
+        long firstNanos = -1;
+        int frames = 0;
+        int bad = 0;
+
+        for (int i = 0; i < mRecords && runningFlag.get(); i++) {
+            StreamFrame frame;
+
+            if (mTypes[i] != frameType) {
+                continue;
+            }
+
+            if (speed > 0) {
+                if (firstNanos < 0) {
+                    firstNanos = mNanos[i];
+                }
+                long due = startNs + (long)((mNanos[i] - firstNanos) / speed);
+                for (long now; (now = System.nanoTime()) < due && runningFlag.get(); ) {
+                    LockSupport.parkNanos(due - now);
+                }
+            }
+
+            try {
+                frame = StreamFrame.fromBytes(getCommand(i));
+            }
+            catch (LwcommsException e) {
+                Log.v(TAG, "skipping bad frame in record %d: %s", i, e.getMessage());
+                bad++;
+                continue;
+            }
+            for (StreamingTarget target : targets) {
+                target.sendFrame(frame);
+            }
+            frame.release();
+            frames++;
+        }
+
+        for (StreamingTarget target : targets) {
+            target.finished();
+        }
+        Log.d(TAG, "replayed %d frames, skipped %d bad ones", frames, bad);
+        return frames;
+    }
+
+    // a little-endian view of the map from the given file offset to the end of its segment
+    private ByteBuffer at(long offset) {
+        int seg = (int)(offset / SEGMENT_LEN);
+        ByteBuffer buf = mSegments[seg].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+        buf.position((int)(offset - seg * SEGMENT_LEN));
+        return buf;
+    }
+
+    private void allocIndex(int n) {
+        mOffsets = new long[n];
+        mNanos = new long[n];
+        mTypes = new int[n];
+    }
+
+    private boolean readIndex() {
+        long trailerOff = mSize - CaptureWriter.INDEX_TRAILER_LEN;
+        byte[] magic = new byte[CaptureWriter.INDEX_MAGIC.length];
+        ByteBuffer trailer;
+        long indexOff;
+        int count;
+
+        if (trailerOff < CaptureWriter.FILE_HDR_LEN) {
+            return false;
+        }
+        trailer = at(trailerOff);
+        count = trailer.getInt();
+        indexOff = trailer.getLong();
+        trailer.get(magic);
+        if (!Arrays.equals(magic, CaptureWriter.INDEX_MAGIC) || count < 0
+                || indexOff + (long)count * CaptureWriter.INDEX_ENTRY_LEN != trailerOff) {
+            return false;
+        }
+
+        allocIndex(count);
+        for (int i = 0; i < count; i++) {
+            ByteBuffer entry = at(indexOff + (long)i * CaptureWriter.INDEX_ENTRY_LEN);
+            mOffsets[i] = entry.getLong();
+            mNanos[i] = entry.getLong();
+            mTypes[i] = entry.getInt();
+        }
+        mRecords = count;
+        return true;
+    }
+
+    /*
+     * Finds the records of a capture that wasn't closed properly. A record cut short at the
+     * end of the file is left out.
+     */
+    private void scanRecords() {
+        long off = CaptureWriter.FILE_HDR_LEN;
+
+        allocIndex(1024);
+        while (off + CaptureWriter.RECORD_HDR_LEN + CaptureWriter.CMD_HDR_LEN <= mSize) {
+            ByteBuffer rec = at(off);
+            int len = rec.getInt();
+            long nanos = rec.getLong();
+            long next = off + CaptureWriter.RECORD_HDR_LEN + len;
+
+            if (len < CaptureWriter.CMD_HDR_LEN || next > mSize) {
+                break;
+            }
+            if (mRecords == mOffsets.length) {
+                mOffsets = Arrays.copyOf(mOffsets, mRecords * 2);
+                mNanos = Arrays.copyOf(mNanos, mRecords * 2);
+                mTypes = Arrays.copyOf(mTypes, mRecords * 2);
+            }
+            mOffsets[mRecords] = off;
+            mNanos[mRecords] = nanos;
+            mTypes[mRecords] = rec.getInt(rec.position() + CaptureWriter.CMD_TYPE_OFF);
+            mRecords++;
+            off = next;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import com.meekworth.lwdronecam.utils.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Passes everything through to another transport, and tees the received bytes into a
+ * CaptureWriter before anyone (e.g. the unmunger) changes them. A failing capture is logged
+ * and dropped without disturbing the connection.
+ */
+class CaptureTransport implements Transport {
+    private static final String TAG = "LWDroneCam/lwcomms.CaptureTransport";
+
+    private final Transport mInner;
+    private final CaptureWriter mWriter;
+    private boolean mFailed;
+
+    CaptureTransport(Transport inner, CaptureWriter writer) {
+        mInner = inner;
+        mWriter = writer;
+    }
+
+    Transport getInner() {
+        return mInner;
+    }
+
+    CaptureWriter getWriter() {
+        return mWriter;
+    }
+
+    /**
+     * Carries the capture over to a new connection. Whatever command the old connection was
+     * cut off in is ended first, so the capture picks up at the new connection's first
+     * command, just as the reader does.
+     */
+    CaptureTransport reconnected(Transport inner) {
+        CaptureTransport next = new CaptureTransport(inner, mWriter);
+
+        next.mFailed = mFailed;
+        if (!mFailed) {
+            try {
+                mWriter.breakStream();
+            }
+            catch (IOException e) {
+                Log.e(TAG, "capture failed, no longer capturing: %s", e.getMessage());
+                next.mFailed = true;
+            }
+        }
+        return next;
+    }
+
+    @Override
+    public void recvAll(byte[] buf) throws IOException {
+        mInner.recvAll(buf);
+        tee(ByteBuffer.wrap(buf));
+    }
+
+    @Override
+    public void recvAll(ByteBuffer buf, int n) throws IOException {
+        int pos = buf.position();
+
+        mInner.recvAll(buf, n);
+        tee(slice(buf, pos, n));
+    }
+
+    @Override
+    public void recvAll(ByteBuffer[] bufs) throws IOException {
+        int[] pos = new int[bufs.length];
+
+        for (int i = 0; i < bufs.length; i++) {
+            pos[i] = bufs[i].position();
+        }
+        mInner.recvAll(bufs);
+        for (int i = 0; i < bufs.length; i++) {
+            tee(slice(bufs[i], pos[i], bufs[i].position() - pos[i]));
+        }
+    }
+
+    @Override
+    public void sendAll(byte[] b) throws IOException {
+        mInner.sendAll(b);
+    }
+
+    @Override
+    public void setReadTimeout(int ms) throws IOException {
+        mInner.setReadTimeout(ms);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mInner.close();
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int pos, int n) {
+        ByteBuffer dup = buf.duplicate();
+
+        dup.limit(pos + n).position(pos);
+        return dup;
+    }
+
+    private void tee(ByteBuffer data) {
+        if (mFailed) {
+            return;
+        }
+        try {
+            mWriter.append(data);
+        }
+        catch (IOException e) {
+            Log.e(TAG, "capture failed, no longer capturing: %s", e.getMessage());
+            mFailed = true;
+        }
+    }
+}
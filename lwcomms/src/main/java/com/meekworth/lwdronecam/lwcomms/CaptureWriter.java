@@ -0,0 +1,217 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import com.meekworth.lwdronecam.record.WriteBehindFile;
+import com.meekworth.lwdronecam.utils.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/*
+ * Writes the bytes received from the camera to a capture file, one record per command.
+ * All values are little endian:
+ *
+ *   file header   magic "lwcap01\0", long capture start (epoch ms)
+ *   record        int command length, long arrival (ns since capture start),
+ *                 the raw command (lewei_cmd header + body, as received)
+ *   index         on close: per record {long file offset, long arrival ns, int type},
+ *                 then int record count, long index offset, magic "lwcapidx"
+ *
+ * Records are only ever appended, so a capture cut short by a crash is still readable up to
+ * its last whole record; CaptureReplayer rebuilds the index by scanning when it's missing.
+ *
+ * The writer is fed the received byte stream in whatever pieces the transport reads it, and
+ * finds the command boundaries itself from the body length in each header. It's fed on the
+ * stream's reader thread, so the disk writes go through a WriteBehindFile and a slow card
+ * never holds up the reads. If the disk falls so far behind that the write-behind buffers are
+ * full, the capture stops there, without an index, rather than leave a hole in the stream.
+ */
+class CaptureWriter implements Closeable {
+    private static final String TAG = "LWDroneCam/lwcomms.CaptureWriter";
+    static final byte[] FILE_MAGIC = "lwcap01\0".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] INDEX_MAGIC = "lwcapidx".getBytes(StandardCharsets.US_ASCII);
+    static final int FILE_HDR_LEN = FILE_MAGIC.length + Long.BYTES;
+    static final int RECORD_HDR_LEN = Integer.BYTES + Long.BYTES;
+    static final int INDEX_ENTRY_LEN = 2 * Long.BYTES + Integer.BYTES;
+    static final int INDEX_TRAILER_LEN = Integer.BYTES + Long.BYTES + INDEX_MAGIC.length;
+
+    // where the type and body length sit in a lewei_cmd header
+    static final int CMD_HDR_LEN = Command.HDR_LEN;
+    static final int CMD_TYPE_OFF = Command.TYPE_OFF;
+    static final int CMD_BODY_LEN_OFF = CMD_TYPE_OFF + Integer.BYTES * (1 + Command.ARG_BODY_LEN);
+    static final int MAX_BODY_LEN = Command.MAX_BODY_LEN;
+
+    private static final int WRITE_BUF_LEN = 256 * 1024;
+    // 4MB, a few seconds of the stream
+    private static final int WRITE_BEHIND_CHUNKS = 16;
+
+    private final File mFile;
+    private final WriteBehindFile mWriter;
+    private final ByteBuffer mOut;
+    // the disk fell behind, so nothing more is written
+    private boolean mStopped;
+    private final long mStartNanos;
+    private long mOffset;
+
+    // the command currently being received
+    private final ByteBuffer mCmdHdr;
+    private int mBodyLeft;
+
+    // index, kept in memory until close
+    private long[] mIdxOffsets = new long[1024];
+    private long[] mIdxNanos = new long[1024];
+    private int[] mIdxTypes = new int[1024];
+    private int mRecords;
+
+    CaptureWriter(File file) throws IOException {
+        // the writer opens it on its own thread, so a file that can't be made fails here
+        Files.newOutputStream(file.toPath()).close();
+        mFile = file;
+        mWriter = new WriteBehindFile(WRITE_BUF_LEN, WRITE_BEHIND_CHUNKS, "capture");
+        mWriter.open(file);
+        mOut = ByteBuffer.allocateDirect(WRITE_BUF_LEN).order(ByteOrder.LITTLE_ENDIAN);
+        mCmdHdr = ByteBuffer.allocate(CMD_HDR_LEN).order(ByteOrder.LITTLE_ENDIAN);
+        mStartNanos = System.nanoTime();
+
+        mOut.put(FILE_MAGIC).putLong(System.currentTimeMillis());
+        mOffset = FILE_HDR_LEN;
+    }
+
+    int getRecordCount() {
+        return mRecords;
+    }
+
+    /**
+     * Appends received bytes, from src's position to its limit. src is left unchanged.
+     */
+    void append(ByteBuffer src) throws IOException {
+        ByteBuffer in = src.duplicate();
+
+        while (in.hasRemaining()) {
+            if (mBodyLeft > 0) {
+                int n = Math.min(mBodyLeft, in.remaining());
+                int limit = in.limit();
+
+                in.limit(in.position() + n);
+                put(in);
+                in.limit(limit);
+                mBodyLeft -= n;
+                continue;
+            }
+
+            while (mCmdHdr.hasRemaining() && in.hasRemaining()) {
+                mCmdHdr.put(in.get());
+            }
+            if (!mCmdHdr.hasRemaining()) {
+                startRecord();
+            }
+        }
+    }
+
+    void append(byte[] b, int off, int len) throws IOException {
+        append(ByteBuffer.wrap(b, off, len));
+    }
+
+    private void startRecord() throws IOException {
+        long nanos = System.nanoTime() - mStartNanos;
+        int bodyLen = mCmdHdr.getInt(CMD_BODY_LEN_OFF);
+
+        // A header with a bad length can't be followed, so it's kept on its own and the next
+        // bytes are taken as a new header, the same as the reader will see them.
+        if (bodyLen < 0 || bodyLen > MAX_BODY_LEN) {
+            bodyLen = 0;
+        }
+
+        if (mRecords == mIdxOffsets.length) {
+            mIdxOffsets = Arrays.copyOf(mIdxOffsets, mRecords * 2);
+            mIdxNanos = Arrays.copyOf(mIdxNanos, mRecords * 2);
+            mIdxTypes = Arrays.copyOf(mIdxTypes, mRecords * 2);
+        }
+        mIdxOffsets[mRecords] = mOffset;
+        mIdxNanos[mRecords] = nanos;
+        mIdxTypes[mRecords] = mCmdHdr.getInt(CMD_TYPE_OFF);
+        mRecords++;
+
+        reserve(RECORD_HDR_LEN);
+        mOut.putInt(CMD_HDR_LEN + bodyLen).putLong(nanos);
+        mOffset += RECORD_HDR_LEN;
+        mCmdHdr.flip();
+        put(mCmdHdr);
+        mCmdHdr.clear();
+        mBodyLeft = bodyLen;
+    }
+
+    private void put(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            int n = Math.min(mOut.remaining(), src.remaining());
+            int limit = src.limit();
+
+            src.limit(src.position() + n);
+            mOut.put(src);
+            src.limit(limit);
+            mOffset += n;
+            if (!mOut.hasRemaining()) {
+                flush();
+            }
+        }
+    }
+
+    private void reserve(int n) throws IOException {
+        if (mOut.remaining() < n) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        mOut.flip();
+        if (!mStopped && !mWriter.write(mOut)) {
+            Log.e(TAG, "stopped capturing to %s, as the disk fell behind", mFile);
+            mStopped = true;
+        }
+        mOut.clear();
+    }
+
+    /**
+     * Ends the command being received, e.g. when the connection drops, so that the next bytes
+     * appended start a new command. A command cut off mid-body is padded out, so its record
+     * still has the announced length; a cut-off header is dropped.
+     */
+    void breakStream() throws IOException {
+        for (; mBodyLeft > 0; mBodyLeft--) {
+            reserve(1);
+            mOut.put((byte)0);
+            mOffset++;
+        }
+        mCmdHdr.clear();
+    }
+
+    /**
+     * Writes out any partly received command as it is, then the index. The file is finished
+     * and closed on the writer's thread, after this returns.
+     */
+    @Override
+    public void close() throws IOException {
+        long indexOffset;
+
+        try {
+            breakStream();
+
+            indexOffset = mOffset;
+            for (int i = 0; i < mRecords; i++) {
+                reserve(INDEX_ENTRY_LEN);
+                mOut.putLong(mIdxOffsets[i]).putLong(mIdxNanos[i]).putInt(mIdxTypes[i]);
+            }
+            reserve(INDEX_TRAILER_LEN);
+            mOut.putInt(mRecords).putLong(indexOffset).put(INDEX_MAGIC);
+            flush();
+        }
+        finally {
+            mWriter.close();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Transport over a non-blocking SocketChannel. Reads wait on a Selector with the read
+ * timeout, instead of relying on SO_TIMEOUT. Small reads are served from a direct staging
+ * buffer that is refilled with whatever the socket has ready, while large reads go
+ * straight from the channel into the destination buffers. Writes are bounded by the same
+ * timeout, so a stalled peer can't hold up the writer for good.
+ */
+class ChannelTransport implements Transport {
+    private static final int STAGING_LEN = 64 * 1024;
+
+    private final SocketChannel mChannel;
+    private final Selector mReadSelector;
+    private final Selector mWriteSelector;
+    private final ByteBuffer mStaging;
+    private final ByteBuffer[] mOneBuf = new ByteBuffer[1];
+    private int mReadTimeoutMs;
+
+    private ChannelTransport(SocketChannel channel, int readTimeoutMs) throws IOException {
+        mChannel = channel;
+        mReadTimeoutMs = readTimeoutMs;
+        mStaging = ByteBuffer.allocateDirect(STAGING_LEN);
+        mStaging.limit(0);
+
+        // separate selectors so a writer thread never races the reader's select()
+        mReadSelector = Selector.open();
+        mWriteSelector = Selector.open();
+        mChannel.configureBlocking(false);
+        mChannel.register(mReadSelector, SelectionKey.OP_READ);
+        mChannel.register(mWriteSelector, SelectionKey.OP_WRITE);
+    }
+
+    static ChannelTransport connect(InetSocketAddress addr, int connectTimeoutMs,
+                                    int readTimeoutMs) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+
+        try {
+            // connect in blocking mode so the socket's connect timeout applies
+            channel.socket().connect(addr, connectTimeoutMs);
+            return new ChannelTransport(channel, readTimeoutMs);
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void recvAll(byte[] buf) throws IOException {
+        mOneBuf[0] = ByteBuffer.wrap(buf);
+        recvAll(mOneBuf);
+        mOneBuf[0] = null;
+    }
+
+    @Override
+    public void recvAll(ByteBuffer buf, int n) throws IOException {
+        int limit = buf.limit();
+
+        buf.limit(buf.position() + n);
+        mOneBuf[0] = buf;
+        try {
+            recvAll(mOneBuf);
+        }
+        finally {
+            mOneBuf[0] = null;
+            buf.limit(limit);
+        }
+    }
+
+    @Override
+    public void recvAll(ByteBuffer[] bufs) throws IOException {
+        int first = 0;
+
+        while (first < bufs.length) {
+            ByteBuffer dst = bufs[first];
+            if (!dst.hasRemaining()) {
+                first++;
+                continue;
+            }
+
+            if (mStaging.hasRemaining()) {
+                drainStaging(dst);
+            }
+            else if (remaining(bufs, first) >= STAGING_LEN) {
+                // big enough to skip the staging copy; one scatter read fills all buffers
+                long nread = mChannel.read(bufs, first, bufs.length - first);
+                checkRead(nread);
+            }
+            else {
+                mStaging.clear();
+                int nread = mChannel.read(mStaging);
+                mStaging.flip();
+                checkRead(nread);
+            }
+        }
+    }
+
+    @Override
+    public void sendAll(byte[] b) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(b);
+        int timeoutMs = mReadTimeoutMs;
+        long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+
+        synchronized (mWriteSelector) {
+            try {
+                while (buf.hasRemaining()) {
+                    long leftMs;
+
+                    if (mChannel.write(buf) != 0) {
+                        continue;
+                    }
+                    leftMs = TimeUnit.NANOSECONDS.toMillis(deadlineNs - System.nanoTime());
+                    if (timeoutMs != 0 && leftMs <= 0) {
+                        throw new SocketTimeoutException("write timed out");
+                    }
+                    mWriteSelector.select(timeoutMs != 0 ? leftMs : 0);
+                    mWriteSelector.selectedKeys().clear();
+                }
+            }
+            catch (ClosedSelectorException e) {
+                // closed under us, e.g. by a reconnect; checked, so callers see it
+                throw new AsynchronousCloseException();
+            }
+        }
+    }
+
+    @Override
+    public void setReadTimeout(int ms) {
+        mReadTimeoutMs = ms;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            mReadSelector.close();
+            mWriteSelector.close();
+        }
+        finally {
+            mChannel.close();
+        }
+    }
+
+    private void drainStaging(ByteBuffer dst) {
+        int n = Math.min(mStaging.remaining(), dst.remaining());
+        int limit = mStaging.limit();
+
+        mStaging.limit(mStaging.position() + n);
+        dst.put(mStaging);
+        mStaging.limit(limit);
+    }
+
+    private void checkRead(long nread) throws IOException {
+        if (nread < 0) {
+            throw new EOFException("connection closed by camera");
+        }
+        if (nread == 0) {
+            int ready;
+
+            try {
+                ready = mReadSelector.select(mReadTimeoutMs);
+                mReadSelector.selectedKeys().clear();
+            }
+            catch (ClosedSelectorException e) {
+                throw new AsynchronousCloseException();
+            }
+            if (ready == 0) {
+                throw new SocketTimeoutException("read timed out");
+            }
+        }
+    }
+
+    private static long remaining(ByteBuffer[] bufs, int first) {
+        long tot = 0;
+
+        for (int i = first; i < bufs.length; i++) {
+            tot += bufs[i].remaining();
+        }
+        return tot;
+    }
+}
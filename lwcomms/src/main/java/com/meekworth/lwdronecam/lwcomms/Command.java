@@ -0,0 +1,250 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+public class Command {
+    private static final String TAG = "LWDroneCam/lwcomms.Command";
+    static final byte[] LEWEI_MAGIC = "lewei_cmd\0".getBytes(StandardCharsets.UTF_8);
+    static final int HDR_LEN = 0x2e;
+    static final int TYPE_OFF = LEWEI_MAGIC.length;
+
+    static final int NUM_ARGS = 8;
+    public static final int ARG_STATUS = 0;
+    public static final int ARG_BODY_LEN = 2;
+    public static final int ARG_STREAM_TYPE = 3;
+    public static final int ARG_STREAM_DEC1 = 4;
+    public static final int ARG_STREAM_DEC2 = 5;
+
+    // 10MiB should be WAY above what the camera should send. This is just used as a sanity
+    // check to prevent a large allocation if some other module version has the fields in
+    // different locations.
+    static final int MAX_BODY_LEN = 10 * 1024 * 1024;
+
+    public enum Type {
+        HEARTBEAT(0x01),
+        START_STREAM(0x02),
+        STOP_STREAM(0x03),
+        SET_TIME(0x04),
+        GET_RECORD_PLAN(0x06),
+        SET_RECORD_PLAN(0x11),
+        STREAM_FRAME(0x101);
+
+        private final int mCmdVal;
+        // indexed by command value, for every type but STREAM_FRAME
+        private static final Type[] BY_VALUE = new Type[0x12];
+
+        static {
+            for (Type t : Type.values()) {
+                if (t.mCmdVal < BY_VALUE.length) {
+                    BY_VALUE[t.mCmdVal] = t;
+                }
+            }
+        }
+
+        Type(int num) {
+            mCmdVal = num;
+        }
+
+        int getCommandValue() {
+            return mCmdVal;
+        }
+
+        /**
+         * Returns the type with the given command value, or null if there isn't one.
+         */
+        static Type lookup(int val) {
+            if (val == STREAM_FRAME.mCmdVal) {
+                return STREAM_FRAME;
+            }
+            return (0 <= val && val < BY_VALUE.length) ? BY_VALUE[val] : null;
+        }
+
+        static Type fromValue(int val) throws LwcommsException {
+            Type type = lookup(val);
+
+            if (type == null) {
+                throw new LwcommsException("type not found for value %d", val);
+            }
+
+            return type;
+        }
+    }
+
+    private final Type mType;
+    private final int[] mArgs;
+    private byte[] mBody;
+
+    Command(Type type) {
+        this(type, new int[NUM_ARGS], new byte[0]);
+    }
+
+    Command(Type type, int status) {
+        this(type);
+        this.setArgument(ARG_STATUS, status);
+    }
+
+    Command(Type type, byte[] body) {
+        this(type, new int[NUM_ARGS], body);
+    }
+
+    Command(Type type, int[] args, byte[] body) {
+        mType = type;
+        mBody = body;
+        mArgs = args;
+    }
+
+    int getArgument(int n) {
+        return mArgs[n];
+    }
+
+    byte[] getBody() {
+        return mBody;
+    }
+
+    /**
+     * Length of the body as announced in the header. This is valid before the body has been
+     * read, which lets frame bodies be read straight into a caller's buffer.
+     */
+    int getBodyLength() {
+        return mBody != null ? mBody.length : mArgs[ARG_BODY_LEN];
+    }
+
+    Type getType() {
+        return mType;
+    }
+
+    void setArgument(int arg, int value) {
+        mArgs[arg] = value;
+    }
+
+    byte[] toBytes() {
+        ByteBuffer buf = ByteBuffer.allocate(HDR_LEN + mBody.length)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .put(LEWEI_MAGIC)
+                .putInt(mType.getCommandValue());
+        mArgs[ARG_BODY_LEN] = mBody.length;
+        for (int arg : mArgs) {
+            buf.putInt(arg);
+        }
+        if (mBody.length > 0) {
+            buf.put(mBody);
+        }
+        return buf.array();
+    }
+
+    private static Command headerFromBytes(byte[] data) throws LwcommsException {
+        ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        Type type;
+        int[] args = new int[NUM_ARGS];
+        int bodyLen;
+
+        if (data.length < Command.HDR_LEN) {
+            throw new LwcommsException("not enough data for response");
+        }
+
+        for (int i = 0; i < Command.LEWEI_MAGIC.length; i++) {
+            if (buf.get(i) != Command.LEWEI_MAGIC[i]) {
+                throw new LwcommsException("invalid magic bytes");
+            }
+        }
+
+        buf.position(TYPE_OFF);
+        type = Type.fromValue(buf.getInt());
+        for (int i = 0; i < args.length; i++) {
+            args[i] = buf.getInt();
+        }
+        bodyLen = args[ARG_BODY_LEN];
+
+        if (bodyLen < 0 || bodyLen > MAX_BODY_LEN) {
+            throw new LwcommsException("invalid body len %d", bodyLen);
+        }
+
+        // body is left unset until readBody() so that frame bodies can skip this allocation
+        return new Command(type, args, null);
+    }
+
+    /**
+     * Reads and parses only the command header. The body is left in the stream, and either
+     * readBody() or a type-specific reader (e.g. StreamFrame.readFrom()) must consume it.
+     */
+    static Command headerFromStream(Transport in) throws LwcommsException, IOException {
+        byte[] hdr = new byte[HDR_LEN];
+
+        in.recvAll(hdr);
+        return headerFromBytes(hdr);
+    }
+
+    void readBody(Transport in) throws IOException {
+        mBody = new byte[mArgs[ARG_BODY_LEN]];
+
+        if (mBody.length > 0) {
+            in.recvAll(mBody);
+        }
+    }
+
+    /**
+     * Parses a whole command from buf at its position, advancing past it. The body is copied
+     * out, so buf may be read-only (e.g. a mapped capture file).
+     */
+    static Command fromBuffer(ByteBuffer buf) throws LwcommsException {
+        byte[] hdr = new byte[HDR_LEN];
+        Command cmd;
+
+        if (buf.remaining() < HDR_LEN) {
+            throw new LwcommsException("not enough data for command header");
+        }
+        buf.get(hdr);
+        cmd = headerFromBytes(hdr);
+
+        if (buf.remaining() < cmd.mArgs[ARG_BODY_LEN]) {
+            throw new LwcommsException("not enough data for command body");
+        }
+        cmd.mBody = new byte[cmd.mArgs[ARG_BODY_LEN]];
+        buf.get(cmd.mBody);
+        return cmd;
+    }
+
+    static Command fromStream(Transport in) throws LwcommsException, IOException {
+        Command cmd = headerFromStream(in);
+
+        cmd.readBody(in);
+        return cmd;
+    }
+
+    /**
+     * Reads a whole command from in, throwing its body away, e.g. one a viewer sent to the
+     * relay.
+     * @return  The command's type.
+     */
+    public static Type readType(InputStream in) throws LwcommsException, IOException {
+        return fromStream(new StreamTransport(in, null)).getType();
+    }
+
+    /**
+     * The bytes of a reply carrying only a status, the way the camera sends it.
+     * @param status  0 for success, anything else for failure.
+     */
+    public static byte[] statusReply(Type type, int status) {
+        return new Command(type, status).toBytes();
+    }
+
+    /**
+     * The bytes of a reply carrying body, the way the camera sends it.
+     */
+    public static byte[] reply(Type type, byte[] body) {
+        return new Command(type, body).toBytes();
+    }
+
+    /**
+     * The bytes of a reply to a heartbeat.
+     * @param hb  The camera's reply to pass on, or null for an empty one (no SD card, no
+     *            clients, a zero clock), e.g. before the camera has sent any.
+     */
+    public static byte[] heartbeatReply(Heartbeat hb) {
+        return reply(Type.HEARTBEAT, hb != null ? hb.getBytes() : new byte[Heartbeat.LEN]);
+    }
+}
@@ -0,0 +1,124 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/*
+ * A list of commands that CamConnection.sendBatch() writes in a single flush, before
+ * collecting the responses in order. Each add method returns a typed Result that holds the
+ * command's response once the batch has been sent.
+ *
+ *   CommandBatch batch = new CommandBatch();
+ *   CommandBatch.Result<StatusResponse> plan = batch.setRecordPlan(RecordPlan.getDefault(true));
+ *   CommandBatch.Result<RecordPlan> check = batch.getRecordPlan();
+ *   conn.sendBatch(batch);
+ *   boolean recording = check.get().isActive();
+ */
+public class CommandBatch {
+    private final List<Result<?>> mResults = new ArrayList<>();
+
+    public static class Result<T extends Response> {
+        // builds the command each time it's sent, so a resent SET_TIME has the time of sending
+        private final Supplier<Command> mSource;
+        private final Class<T> mClass;
+        private Command mCmd;
+        private T mResponse;
+
+        private Result(Supplier<Command> source, Class<T> cls) {
+            mSource = source;
+            mCmd = source.get();
+            mClass = cls;
+        }
+
+        /**
+         * Returns the response, or throws IllegalStateException if the batch hasn't
+         * completed.
+         */
+        public T get() {
+            if (mResponse == null) {
+                throw new IllegalStateException("no response for " + mCmd.getType());
+            }
+            return mResponse;
+        }
+
+        public boolean isDone() {
+            return mResponse != null;
+        }
+
+        Command getCommand() {
+            return mCmd;
+        }
+
+        Command rebuild() {
+            mCmd = mSource.get();
+            return mCmd;
+        }
+
+        void set(Response resp) throws LwcommsException {
+            if (!mClass.isInstance(resp)) {
+                throw new LwcommsException("unexpected response for %s", mCmd.getType());
+            }
+            mResponse = mClass.cast(resp);
+        }
+
+        void clear() {
+            mResponse = null;
+        }
+    }
+
+    public Result<Heartbeat> heartbeat() {
+        return add(new Command(Command.Type.HEARTBEAT), Heartbeat.class);
+    }
+
+    public Result<StatusResponse> setCurrentTime() {
+        return add(CamConnection::createSetTimeCommand, StatusResponse.class);
+    }
+
+    public Result<RecordPlan> getRecordPlan() {
+        return add(new Command(Command.Type.GET_RECORD_PLAN), RecordPlan.class);
+    }
+
+    public Result<StatusResponse> setRecordPlan(RecordPlan plan) {
+        return add(new Command(Command.Type.SET_RECORD_PLAN, plan.toBytes()),
+                StatusResponse.class);
+    }
+
+    public int size() {
+        return mResults.size();
+    }
+
+    <T extends Response> Result<T> add(Command cmd, Class<T> cls) {
+        return add(() -> cmd, cls);
+    }
+
+    <T extends Response> Result<T> add(Supplier<Command> source, Class<T> cls) {
+        Result<T> result = new Result<>(source, cls);
+        mResults.add(result);
+        return result;
+    }
+
+    List<Result<?>> getResults() {
+        return mResults;
+    }
+
+    void clearResults() {
+        for (Result<?> result : mResults) {
+            result.clear();
+        }
+    }
+
+    // all commands that don't have a response yet, built afresh and back to back
+    byte[] pendingToBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for (Result<?> result : mResults) {
+            if (!result.isDone()) {
+                byte[] b = result.rebuild().toBytes();
+                out.write(b, 0, b.length);
+            }
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,176 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import com.meekworth.lwdronecam.utils.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*
+ * Reads command headers off a transport, recovering from corruption instead of failing.
+ *
+ * The reader works on a header-sized window. A window that doesn't hold a valid header is
+ * slid forward to the next place the magic could start, topped up from the transport and
+ * checked again, until a good header turns up. Commands with a valid header but an unknown
+ * type are skipped by their body length. Only whole headers are ever read, so once a header
+ * is returned, its body is next on the transport and can be read straight into a frame.
+ *
+ * One reader serves one connection and isn't thread safe; the counters may be read from
+ * anywhere. Everything read also goes into the shared Metrics.
+ */
+class CommandReader {
+    private static final String TAG = "LWDroneCam/lwcomms.CommandReader";
+    private static final int SKIP_BUF_LEN = 4096;
+
+    private final byte[] mWin = new byte[Command.HDR_LEN];
+    private final ByteBuffer mWinBuf = ByteBuffer.wrap(mWin).order(ByteOrder.LITTLE_ENDIAN);
+    private ByteBuffer mSkipBuf;
+
+    private volatile long mResyncs;
+    private volatile long mDiscarded;
+    private volatile long mSkipped;
+
+    private final Metrics.Counter mBytesMetric = Metrics.getDefault().counter("net.bytes");
+    private final Metrics.Counter mResyncMetric = Metrics.getDefault().counter("net.resyncs");
+    private final Metrics.Counter mDiscardMetric =
+            Metrics.getDefault().counter("net.discarded_bytes");
+    private final Metrics.Counter mUnknownMetric =
+            Metrics.getDefault().counter("net.unknown_commands");
+    // from a header's last byte arriving to it being parsed
+    private final Histogram mParseMetric = Metrics.getDefault().histogram("read.header_parse");
+
+    /**
+     * Times the reader lost its place and had to scan for the next header.
+     */
+    long getResyncCount() {
+        return mResyncs;
+    }
+
+    /**
+     * Bytes thrown away while scanning for headers.
+     */
+    long getDiscardedBytes() {
+        return mDiscarded;
+    }
+
+    /**
+     * Commands skipped because their type is unknown.
+     */
+    long getSkippedCount() {
+        return mSkipped;
+    }
+
+    /**
+     * Reads up to and including the next valid command header, and returns the command
+     * without its body. Corrupt data and unknown commands before it are skipped.
+     */
+    Command next(Transport in) throws IOException {
+        int have = 0;
+        long discarded = 0;
+
+        for (;;) {
+            int shift;
+            Command.Type type;
+            int bodyLen;
+            long readNs;
+
+            mWinBuf.position(have);
+            in.recvAll(mWinBuf, mWin.length - have);
+            readNs = System.nanoTime();
+            mBytesMetric.add(mWin.length - have);
+            have = 0;
+
+            if (startsWithMagic(0)) {
+                type = Command.Type.lookup(mWinBuf.getInt(Command.TYPE_OFF));
+                bodyLen = mWinBuf.getInt(Command.TYPE_OFF + Integer.BYTES
+                        + Command.ARG_BODY_LEN * Integer.BYTES);
+
+                if (isValid(type, bodyLen)) {
+                    if (discarded > 0) {
+                        Log.d(TAG, "resynced after discarding %d bytes", discarded);
+                    }
+                    Command cmd = parse(type);
+                    mParseMetric.recordSince(readNs);
+                    return cmd;
+                }
+                if (type == null && 0 <= bodyLen && bodyLen <= Command.MAX_BODY_LEN) {
+                    Log.v(TAG, "skipping unknown command %d (%d bytes)",
+                            mWinBuf.getInt(Command.TYPE_OFF), bodyLen);
+                    skip(in, bodyLen);
+                    mSkipped++;
+                    mUnknownMetric.increment();
+                    continue;
+                }
+            }
+
+            // Not a header we can use. Keep whatever could be the start of the next one.
+            if (discarded == 0) {
+                mResyncs++;
+                mResyncMetric.increment();
+            }
+            shift = 1;
+            while (shift < mWin.length && !startsWithMagic(shift)) {
+                shift++;
+            }
+            have = mWin.length - shift;
+            System.arraycopy(mWin, shift, mWin, 0, have);
+            discarded += shift;
+            mDiscarded += shift;
+            mDiscardMetric.add(shift);
+        }
+    }
+
+    /**
+     * Reads and throws away the body of a command returned by next().
+     */
+    void skipBody(Command cmd, Transport in) throws IOException {
+        skip(in, cmd.getBodyLength());
+    }
+
+    private void skip(Transport in, int n) throws IOException {
+        if (mSkipBuf == null) {
+            mSkipBuf = ByteBuffer.allocate(SKIP_BUF_LEN);
+        }
+        while (n > 0) {
+            int chunk = Math.min(n, SKIP_BUF_LEN);
+            mSkipBuf.clear();
+            in.recvAll(mSkipBuf, chunk);
+            mBytesMetric.add(chunk);
+            n -= chunk;
+        }
+    }
+
+    private static boolean isValid(Command.Type type, int bodyLen) {
+        if (type == null || bodyLen < 0 || bodyLen > Command.MAX_BODY_LEN) {
+            return false;
+        }
+        // a frame too short for its own header can only be garbage
+        return type != Command.Type.STREAM_FRAME || bodyLen >= StreamFrame.HDR_LEN;
+    }
+
+    /*
+     * True if the window from off on matches the magic, as far as the window goes. A partial
+     * match at the end is the start of a header that hasn't been read yet.
+     */
+    private boolean startsWithMagic(int off) {
+        byte[] magic = Command.LEWEI_MAGIC;
+        int n = Math.min(magic.length, mWin.length - off);
+
+        for (int i = 0; i < n; i++) {
+            if (mWin[off + i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Command parse(Command.Type type) {
+        int[] args = new int[Command.NUM_ARGS];
+
+        mWinBuf.position(Command.TYPE_OFF + Integer.BYTES);
+        for (int i = 0; i < args.length; i++) {
+            args[i] = mWinBuf.getInt();
+        }
+        return new Command(type, args, null);
+    }
+}
@@ -0,0 +1,316 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import com.meekworth.lwdronecam.utils.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Long-lived session on the camera's command port. A single session thread owns the
+ * connection, runs queued command batches one at a time, reconnects when the connection
+ * drops, and sends heartbeats while idle so the camera keeps the connection open. The public
+ * methods block the caller (never the main thread) until all responses have arrived. A batch
+ * is only tried, reconnecting included, within the caller's timeout. The caller and the
+ * session thread race to claim a batch, so the caller only reports a timeout as not sent if it
+ * claimed the batch before the session thread started sending it; otherwise it waits for the
+ * session thread's result, which the timeout bounds too.
+ */
+public class CommandSession implements Closeable {
+    private static final String TAG = "LWDroneCam/lwcomms.CommandSession";
+    private static final long HB_INTERVAL_MS = 3000;
+    // long enough to cover a reconnect and a response on a slow link
+    private static final long RESPONSE_TIMEOUT_MS = 10000;
+    private static final long[] RECONNECT_DELAYS_MS = {0, 250, 1000};
+
+    private final String mHost;
+    private final int mPort;
+    private final Telemetry mTelemetry;
+    private final LinkedBlockingQueue<Request> mQueue;
+    private final Thread mThread;
+    private volatile boolean mRunning;
+
+    // only used from the session thread
+    private CamConnection mConn;
+
+    private static class Request {
+        static final int QUEUED = 0;
+        static final int SENDING = 1;
+        static final int CANCELLED = 2;
+
+        final CommandBatch mBatch;
+        final CompletableFuture<Void> mResult = new CompletableFuture<>();
+        final AtomicInteger mState = new AtomicInteger(QUEUED);
+        final long mDeadlineNs;
+
+        Request(CommandBatch batch, long timeoutMs) {
+            mBatch = batch;
+            mDeadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        }
+
+        long getMillisLeft() {
+            return TimeUnit.NANOSECONDS.toMillis(mDeadlineNs - System.nanoTime());
+        }
+    }
+
+    public CommandSession(String host, int port) {
+        this(host, port, new Telemetry());
+    }
+
+    /**
+     * @param telemetry  Gets every heartbeat reply the session reads, including keep-alives.
+     */
+    public CommandSession(String host, int port, Telemetry telemetry) {
+        mHost = host;
+        mPort = port;
+        mTelemetry = telemetry;
+        mQueue = new LinkedBlockingQueue<>();
+        mRunning = true;
+        mThread = new Thread(this::run, "CommandSession");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public String getHost() {
+        return mHost;
+    }
+
+    public int getPort() {
+        return mPort;
+    }
+
+    @Override
+    public void close() {
+        mRunning = false;
+        mThread.interrupt();
+    }
+
+    public Heartbeat getHeartbeat() throws LwcommsException, IOException {
+        CommandBatch batch = new CommandBatch();
+        CommandBatch.Result<Heartbeat> hb = batch.heartbeat();
+        sendBatch(batch);
+        return hb.get();
+    }
+
+    /**
+     * The camera's status from the telemetry, only asking the camera if it's older than
+     * maxAgeMs.
+     */
+    public Heartbeat getStatus(long maxAgeMs) throws LwcommsException, IOException {
+        Heartbeat hb = mTelemetry.getLatest(maxAgeMs);
+        return hb != null ? hb : getHeartbeat();
+    }
+
+    public Telemetry getTelemetry() {
+        return mTelemetry;
+    }
+
+    public boolean isRecording() throws LwcommsException, IOException {
+        CommandBatch batch = new CommandBatch();
+        CommandBatch.Result<RecordPlan> plan = batch.getRecordPlan();
+        sendBatch(batch);
+        return plan.get().isActive();
+    }
+
+    public void setCurrentTime() throws LwcommsException, IOException {
+        CommandBatch batch = new CommandBatch();
+        batch.setCurrentTime();
+        sendBatch(batch);
+    }
+
+    public boolean startRecording() throws LwcommsException, IOException {
+        return setRecordPlan(RecordPlan.getDefault(true));
+    }
+
+    public boolean stopRecording() throws LwcommsException, IOException {
+        return setRecordPlan(RecordPlan.getDefault(false));
+    }
+
+    /**
+     * Syncs the camera clock, enables the record plan and reads the plan back, all in one
+     * pipelined round trip.
+     * @return  true if the camera accepted the plan and reports it as active.
+     */
+    public boolean syncTimeAndStartRecording() throws LwcommsException, IOException {
+        CommandBatch batch = new CommandBatch();
+        batch.setCurrentTime();
+        CommandBatch.Result<StatusResponse> set =
+                batch.setRecordPlan(RecordPlan.getDefault(true));
+        CommandBatch.Result<RecordPlan> check = batch.getRecordPlan();
+        sendBatch(batch);
+        return set.get().getStatus() == 0 && check.get().isActive();
+    }
+
+    private boolean setRecordPlan(RecordPlan plan) throws LwcommsException, IOException {
+        CommandBatch batch = new CommandBatch();
+        CommandBatch.Result<StatusResponse> resp = batch.setRecordPlan(plan);
+        sendBatch(batch);
+        return resp.get().getStatus() == 0;
+    }
+
+    /**
+     * Queues the batch on the session's connection and waits for all of its responses.
+     */
+    public void sendBatch(CommandBatch batch) throws LwcommsException, IOException {
+        Request req = new Request(batch, RESPONSE_TIMEOUT_MS);
+
+        batch.clearResults();
+
+        if (!mRunning) {
+            throw new IOException("command session closed");
+        }
+        mQueue.add(req);
+
+        try {
+            try {
+                req.mResult.get(RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException e) {
+                // still queued, so the session thread will skip it
+                if (req.mState.compareAndSet(Request.QUEUED, Request.CANCELLED)) {
+                    throw new IOException("timeout waiting for command responses");
+                }
+                // it's being sent, and the session thread gives up on it at the deadline
+                req.mResult.get();
+            }
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof LwcommsException) {
+                throw (LwcommsException)cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            throw new IOException(cause);
+        }
+        catch (InterruptedException e) {
+            req.mState.compareAndSet(Request.QUEUED, Request.CANCELLED);
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting for command responses");
+        }
+    }
+
+    private void run() {
+        // connect up front so the first command doesn't pay for the handshake
+        try {
+            connect();
+        }
+        catch (IOException e) {
+            Log.d(TAG, "initial connect to [%s]:%d failed: %s", mHost, mPort, e.getMessage());
+        }
+
+        while (mRunning) {
+            Request req;
+
+            try {
+                req = mQueue.poll(HB_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+
+            if (req == null) {
+                keepAlive();
+            }
+            else {
+                execute(req);
+            }
+        }
+
+        disconnect();
+        for (Request req : mQueue) {
+            req.mResult.completeExceptionally(new IOException("command session closed"));
+        }
+    }
+
+    private void execute(Request req) {
+        // given up on by the caller while queued
+        if (!req.mState.compareAndSet(Request.QUEUED, Request.SENDING)) {
+            return;
+        }
+
+        for (int i = 0; i < RECONNECT_DELAYS_MS.length; i++) {
+            long leftMs = req.getMillisLeft();
+
+            if (leftMs <= (mConn == null ? RECONNECT_DELAYS_MS[i] : 0)) {
+                req.mResult.completeExceptionally(
+                        new IOException("timeout waiting for command responses"));
+                return;
+            }
+
+            try {
+                if (mConn == null) {
+                    Thread.sleep(RECONNECT_DELAYS_MS[i]);
+                    connect((int)(leftMs - RECONNECT_DELAYS_MS[i]));
+                }
+                // after a dropped connection, only the unanswered commands are resent
+                mConn.sendPending(req.mBatch, req.mDeadlineNs);
+                req.mResult.complete(null);
+                return;
+            }
+            catch (LwcommsException e) {
+                // the stream may be out of sync after a bad response, so start over
+                disconnect();
+                req.mResult.completeExceptionally(e);
+                return;
+            }
+            catch (IOException e) {
+                Log.d(TAG, "batch of %d failed (attempt %d): %s", req.mBatch.size(), i + 1,
+                        e.getMessage());
+                disconnect();
+                if (i == RECONNECT_DELAYS_MS.length - 1) {
+                    req.mResult.completeExceptionally(e);
+                }
+            }
+            catch (InterruptedException e) {
+                req.mResult.completeExceptionally(new IOException("command session closed"));
+                mRunning = false;
+                return;
+            }
+        }
+    }
+
+    private void keepAlive() {
+        if (mConn == null) {
+            // reconnect lazily on the next command rather than polling an absent camera
+            return;
+        }
+
+        try {
+            mConn.getHeartbeat();
+        }
+        catch (IOException | LwcommsException e) {
+            Log.d(TAG, "heartbeat failed: %s", e.getMessage());
+            disconnect();
+        }
+    }
+
+    private void connect() throws IOException {
+        mConn = CamConnection.createAndConnect(mHost, mPort);
+        mConn.setTelemetry(mTelemetry);
+    }
+
+    private void connect(int maxConnectMs) throws IOException {
+        mConn = CamConnection.createAndConnect(mHost, mPort,
+                CamConnection.TransportType.SOCKET, maxConnectMs);
+        mConn.setTelemetry(mTelemetry);
+    }
+
+    private void disconnect() {
+        if (mConn != null) {
+            try {
+                mConn.close();
+            }
+            catch (IOException e) {
+                Log.d(TAG, "error closing command connection: %s", e.getMessage());
+            }
+            mConn = null;
+        }
+    }
+}
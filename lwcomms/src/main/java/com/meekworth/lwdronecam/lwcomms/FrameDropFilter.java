@@ -0,0 +1,136 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import com.meekworth.lwdronecam.utils.Log;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Wraps a StreamingTarget and drops frames when the target falls behind, trading frames for
+ * latency. The target's backlog comes from its getPendingFrames(). Dropping a frame that
+ * other frames reference would corrupt the picture, so after such a drop nothing is passed
+ * on again until the next IDR frame. Parameter-set-only frames are never dropped.
+ */
+public class FrameDropFilter implements StreamingTarget {
+    private static final String TAG = "LWDroneCam/lwcomms.FrameDropFilter";
+
+    public enum Mode {
+        // pass every frame on
+        NONE,
+        // when behind, drop only frames nothing references; never breaks decoding
+        DROP_NON_REF,
+        // when behind, drop everything up to the next IDR frame
+        SKIP_TO_IDR
+    }
+
+    public enum Reason {
+        // disposable frame dropped while behind
+        NON_REF,
+        // reference frame dropped while behind, which starts a skip to the next IDR
+        BEHIND,
+        // frame dropped while waiting for an IDR frame
+        AWAIT_IDR
+    }
+
+    private final StreamingTarget mTarget;
+    private final Mode mMode;
+    private final int mMaxPending;
+    private final AtomicLongArray mDropped;
+    private final Metrics.Counter mDroppedMetric = Metrics.getDefault().counter("filter.dropped");
+    private boolean mAwaitIdr;
+
+    /**
+     * @param target      Target to pass frames on to.
+     * @param mode        When and what to drop.
+     * @param maxPending  Backlog, in frames, above which the target counts as behind.
+     */
+    public FrameDropFilter(StreamingTarget target, Mode mode, int maxPending) {
+        mTarget = target;
+        mMode = mode;
+        mMaxPending = maxPending;
+        mDropped = new AtomicLongArray(Reason.values().length);
+    }
+
+    @Override
+    public void sendFrame(StreamFrame frame) {
+        Reason reason = checkDrop(frame, mTarget.getPendingFrames());
+
+        if (reason != null) {
+            mDropped.incrementAndGet(reason.ordinal());
+            mDroppedMetric.increment();
+            return;
+        }
+        mTarget.sendFrame(frame);
+    }
+
+    @Override
+    public void finished() {
+        Log.d(TAG, "dropped %d frames (non-ref %d, behind %d, awaiting idr %d)",
+                getDropped(),
+                getDropped(Reason.NON_REF),
+                getDropped(Reason.BEHIND),
+                getDropped(Reason.AWAIT_IDR));
+        mTarget.finished();
+    }
+
+    @Override
+    public int getPendingFrames() {
+        return mTarget.getPendingFrames();
+    }
+
+    @Override
+    public FrameRing.Overflow getOverflowPolicy() {
+        return mTarget.getOverflowPolicy();
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    public long getDropped(Reason reason) {
+        return mDropped.get(reason.ordinal());
+    }
+
+    public long getDropped() {
+        long tot = 0;
+
+        for (int i = 0; i < mDropped.length(); i++) {
+            tot += mDropped.get(i);
+        }
+        return tot;
+    }
+
+    /**
+     * Decides whether to drop the frame, given the target's current backlog.
+     * @return  Why the frame should be dropped, or null to pass it on.
+     */
+    Reason checkDrop(StreamFrame frame, int pending) {
+        if (mMode == Mode.NONE || !frame.hasPicture()) {
+            return null;
+        }
+
+        if (mAwaitIdr) {
+            if (!frame.isKeyFrame()) {
+                return Reason.AWAIT_IDR;
+            }
+            mAwaitIdr = false;
+        }
+
+        switch (mMode) {
+            case DROP_NON_REF:
+                if (pending > mMaxPending && frame.isDisposable()) {
+                    return Reason.NON_REF;
+                }
+                return null;
+
+            case SKIP_TO_IDR:
+                if (pending > mMaxPending && !frame.isKeyFrame()) {
+                    mAwaitIdr = !frame.isDisposable();
+                    return Reason.BEHIND;
+                }
+                return null;
+
+            default:
+                return null;
+        }
+    }
+}
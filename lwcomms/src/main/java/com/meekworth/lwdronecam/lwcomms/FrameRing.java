@@ -0,0 +1,145 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Lock-free single-producer/multi-consumer ring of frames. The producer (the network reader)
+ * never waits: publishing always overwrites the oldest slot, and consumers that fall a full
+ * ring behind find out they were lapped and skip ahead according to their overflow policy.
+ *
+ * The ring holds one reference to each frame in it. A consumer takes its own reference with
+ * tryRetain() and then re-checks that the producer hasn't started overwriting the slot, which
+ * is what makes reading safe without a lock.
+ */
+public class FrameRing {
+    public enum Overflow {
+        // jump to the newest frame, accepting artifacts until the next IDR frame
+        SKIP_TO_NEWEST,
+        // resume from the newest key frame still in the ring, or wait for the next one
+        SKIP_TO_KEYFRAME
+    }
+
+    private final AtomicReferenceArray<StreamFrame> mSlots;
+    private final int mMask;
+    // one past the highest sequence the producer has started writing
+    private final AtomicLong mClaimed = new AtomicLong();
+    // one past the highest sequence consumers may read
+    private volatile long mPublished;
+    private volatile boolean mClosed;
+    // consumer threads parked in await(), indexed by consumer id
+    private final AtomicReferenceArray<Thread> mWaiters;
+
+    /**
+     * @param capacity      Number of frames kept, rounded up to a power of two.
+     * @param maxConsumers  Number of consumer threads that may wait on this ring.
+     */
+    FrameRing(int capacity, int maxConsumers) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+
+        mSlots = new AtomicReferenceArray<>(size);
+        mMask = size - 1;
+        mWaiters = new AtomicReferenceArray<>(maxConsumers);
+    }
+
+    int getCapacity() {
+        return mMask + 1;
+    }
+
+    long getPublished() {
+        return mPublished;
+    }
+
+    boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Publishes a frame, taking over the caller's reference. Only called by the producer.
+     */
+    void publish(StreamFrame frame) {
+        long seq = mPublished;
+        StreamFrame old;
+
+        mClaimed.set(seq + 1);
+        old = mSlots.getAndSet((int)seq & mMask, frame);
+        if (old != null) {
+            old.release();
+        }
+        mPublished = seq + 1;
+        wakeConsumers();
+    }
+
+    /**
+     * Returns the frame at seq with a reference held for the caller, or null if the producer
+     * has already overwritten (or is overwriting) that slot.
+     */
+    StreamFrame read(long seq) {
+        StreamFrame frame;
+
+        if (isLapped(seq)) {
+            return null;
+        }
+        frame = mSlots.get((int)seq & mMask);
+        if (frame == null || !frame.tryRetain()) {
+            return null;
+        }
+        if (isLapped(seq)) {
+            frame.release();
+            return null;
+        }
+        return frame;
+    }
+
+    boolean isLapped(long seq) {
+        return mClaimed.get() - seq > mSlots.length();
+    }
+
+    /**
+     * Oldest sequence that is still safe to read.
+     */
+    long getOldest() {
+        return Math.max(0, mClaimed.get() - mSlots.length());
+    }
+
+    void close() {
+        mClosed = true;
+        wakeConsumers();
+    }
+
+    /**
+     * Drops the ring's references. Only call once all consumers have stopped.
+     */
+    void clear() {
+        for (int i = 0; i < mSlots.length(); i++) {
+            StreamFrame frame = mSlots.getAndSet(i, null);
+            if (frame != null) {
+                frame.release();
+            }
+        }
+    }
+
+    /**
+     * Parks the calling consumer until a frame is published after seq, the ring is closed, or
+     * the timeout passes.
+     */
+    void await(int consumerId, long seq, long timeoutNs) {
+        // Register before checking mPublished, and publish() checks the waiters after bumping
+        // mPublished, so one side always sees the other and a wakeup can't be lost.
+        mWaiters.set(consumerId, Thread.currentThread());
+        if (mPublished <= seq && !mClosed) {
+            LockSupport.parkNanos(this, timeoutNs);
+        }
+        mWaiters.set(consumerId, null);
+    }
+
+    private void wakeConsumers() {
+        for (int i = 0; i < mWaiters.length(); i++) {
+            Thread t = mWaiters.get(i);
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+    }
+}
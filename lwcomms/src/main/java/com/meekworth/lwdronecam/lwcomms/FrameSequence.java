@@ -0,0 +1,163 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+/*
+ * Follows the camera's frame counter across a stream, to tell frames the camera never got to
+ * us (gaps in the counter) apart from frames the app dropped itself (which never touch the
+ * counter, as it's checked as frames come off the connection). Frames that did get here but
+ * were dropped as corrupt are counted on their own with dropped(), as a corrupt frame's
+ * counter can't be trusted, and taken out of the gap they leave.
+ *
+ * A gap counts the missing frames as lost, and its length goes into a loss-burst histogram. A
+ * repeated count is a duplicate. A count that goes backwards, or leaps further ahead than any
+ * real gap could, means the camera's counter started over, and is counted as such rather than
+ * as loss. restart() forgets the last count, e.g. after a reconnect, where the frames missed
+ * during the outage are the outage's and not the link's.
+ *
+ * Fed from the one streaming thread; the getters may be read from anywhere.
+ */
+public class FrameSequence {
+    // ten seconds at 30fps; a longer gap is taken as the counter starting over
+    private static final long MAX_GAP = 300;
+
+    private boolean mStarted;
+    private long mLast;
+    // corrupt frames since the last good one, which account for that much of the next gap
+    private long mPendingCorrupt;
+    private volatile long mReceived;
+    private volatile long mCorrupt;
+    private volatile long mLost;
+    private volatile long mGaps;
+    private volatile long mDuplicates;
+    private volatile long mBackwards;
+    private volatile long mJumps;
+
+    private final Metrics.Counter mReceivedMetric = Metrics.getDefault().counter("seq.frames");
+    private final Metrics.Counter mLostMetric = Metrics.getDefault().counter("seq.lost");
+    private final Metrics.Counter mGapsMetric = Metrics.getDefault().counter("seq.gaps");
+    private final Metrics.Counter mDuplicatesMetric =
+            Metrics.getDefault().counter("seq.duplicates");
+    private final Metrics.Counter mBackwardsMetric =
+            Metrics.getDefault().counter("seq.backwards");
+    private final Metrics.Counter mJumpsMetric = Metrics.getDefault().counter("seq.jumps");
+    private final Metrics.Counter mCorruptMetric = Metrics.getDefault().counter("seq.corrupt");
+    // frames lost in each gap
+    private final Histogram mBurstMetric =
+            Metrics.getDefault().histogram("seq.loss_burst", Histogram.Unit.COUNT);
+
+    /**
+     * Checks a frame's counter against the last one.
+     */
+    public void update(StreamFrame frame) {
+        long count = frame.getCount();
+        long gap = count - mLast;
+
+        mReceived++;
+        mReceivedMetric.increment();
+        if (!mStarted) {
+            mStarted = true;
+        }
+        else if (gap == 0) {
+            mDuplicates++;
+            mDuplicatesMetric.increment();
+        }
+        else if (gap < 0) {
+            mBackwards++;
+            mBackwardsMetric.increment();
+        }
+        else if (gap > MAX_GAP) {
+            mJumps++;
+            mJumpsMetric.increment();
+        }
+        else if (gap - 1 > mPendingCorrupt) {
+            long lost = gap - 1 - mPendingCorrupt;
+
+            mGaps++;
+            mLost += lost;
+            mGapsMetric.increment();
+            mLostMetric.add(lost);
+            mBurstMetric.record(lost);
+        }
+        mLast = count;
+        mPendingCorrupt = 0;
+    }
+
+    /**
+     * Notes a frame that came off the connection but was dropped as corrupt, so the gap it
+     * leaves in the counter isn't put down to the camera.
+     */
+    public void dropped() {
+        mCorrupt++;
+        mPendingCorrupt++;
+        mCorruptMetric.increment();
+    }
+
+    /**
+     * Forgets the last count, so the next frame starts the sequence over without counting
+     * anything missed before it.
+     */
+    public void restart() {
+        mStarted = false;
+        mPendingCorrupt = 0;
+    }
+
+    public long getReceived() {
+        return mReceived;
+    }
+
+    /**
+     * Frames missing from the counter's sequence, besides those dropped as corrupt.
+     */
+    public long getLost() {
+        return mLost;
+    }
+
+    /**
+     * Frames that got here but were dropped as corrupt.
+     */
+    public long getCorrupt() {
+        return mCorrupt;
+    }
+
+    /**
+     * Times one or more frames in a row went missing.
+     */
+    public long getGaps() {
+        return mGaps;
+    }
+
+    public long getDuplicates() {
+        return mDuplicates;
+    }
+
+    /**
+     * Times the counter went backwards.
+     */
+    public long getBackwards() {
+        return mBackwards;
+    }
+
+    /**
+     * Times the counter leapt too far ahead to be a gap.
+     */
+    public long getJumps() {
+        return mJumps;
+    }
+
+    /**
+     * Lost frames as a percentage of the frames the camera sent, so far.
+     */
+    public double getLossPercent() {
+        return lossPercent(mReceived, mLost);
+    }
+
+    public static double lossPercent(long received, long lost) {
+        return received + lost > 0 ? 100.0 * lost / (received + lost) : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d frames, %d lost (%.2f%%) in %d gaps, %d corrupt,"
+                + " %d duplicates, %d backwards, %d jumps", mReceived, mLost, getLossPercent(),
+                mGaps, mCorrupt, mDuplicates, mBackwards, mJumps);
+    }
+}
@@ -0,0 +1,65 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Helpers for looking at the H.264 Annex-B byte stream the camera sends in each frame.
+ */
+public class H264 {
+    public static final int NAL_SLICE = 1;
+    public static final int NAL_IDR = 5;
+    public static final int NAL_SEI = 6;
+    public static final int NAL_SPS = 7;
+    public static final int NAL_PPS = 8;
+    public static final int NAL_AUD = 9;
+
+    private H264() {
+    }
+
+    public static int nalType(byte header) {
+        return header & 0x1f;
+    }
+
+    public static int nalRefIdc(byte header) {
+        return (header >> 5) & 0x3;
+    }
+
+    public static boolean isVcl(int nalType) {
+        return NAL_SLICE <= nalType && nalType <= NAL_IDR;
+    }
+
+    /**
+     * Finds the next 00 00 01 start code in buf between from and limit, using absolute reads.
+     * @return  Index of the NAL header byte following the start code, or -1 if none.
+     */
+    public static int nextNal(ByteBuffer buf, int from, int limit) {
+        for (int i = from; i + 2 < limit; i++) {
+            // skip quickly: a start code needs a 1 preceded by two zeroes
+            int b = buf.get(i + 2) & 0xff;
+            if (b > 1) {
+                i += 2;
+            }
+            else if (b == 1 && buf.get(i) == 0 && buf.get(i + 1) == 0) {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds where the NAL starting at nalStart ends, trimming the zero byte of a following
+     * four-byte start code.
+     */
+    public static int nalEnd(ByteBuffer buf, int nalStart, int limit) {
+        int next = nextNal(buf, nalStart, limit);
+
+        if (next < 0) {
+            return limit;
+        }
+        next -= 3;
+        if (next > nalStart && buf.get(next - 1) == 0) {
+            next--;
+        }
+        return next;
+    }
+}
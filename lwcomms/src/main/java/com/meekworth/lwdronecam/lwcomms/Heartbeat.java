@@ -4,15 +4,19 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Calendar;
 import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 
 public class Heartbeat implements Response {
-    private static final int LEN = 64;
+    static final int LEN = 64;
 
     private boolean mSdcMounted;
     private long mSdcSize;
     private long mSdcFree;
     private int mClientCount;
     private Calendar mDate;
+    private long mReceivedNs;
+    // the reply's body as it came, for passing on (see Command.heartbeatReply())
+    private byte[] mBytes;
 
     static Heartbeat fromBytes(byte[] data) throws LwcommsException {
         ByteBuffer buf;
@@ -32,10 +36,16 @@ public class Heartbeat implements Response {
         // cam returns epoch in GMT+8, so need TZ=-8 to get back to UTC
         hb.mDate = Calendar.getInstance(TimeZone.getTimeZone("GMT:-8:00"));
         hb.mDate.setTimeInMillis(buf.getLong() * 1000);
+        hb.mReceivedNs = System.nanoTime();
+        hb.mBytes = data;
 
         return hb;
     }
 
+    byte[] getBytes() {
+        return mBytes;
+    }
+
     public int getClientCount() {
         return mClientCount;
     }
@@ -55,4 +65,22 @@ public class Heartbeat implements Response {
     public long getSDCardSize() {
         return mSdcSize;
     }
+
+    /**
+     * Free space as a percentage of the card's size, or 0 if there's no card.
+     */
+    public double getSDCardFreePercent() {
+        return mSdcMounted && mSdcSize > 0 ? 100.0 * mSdcFree / mSdcSize : 0;
+    }
+
+    /**
+     * The System.nanoTime() when the reply was read.
+     */
+    public long getReceivedNanos() {
+        return mReceivedNs;
+    }
+
+    public long getAgeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mReceivedNs);
+    }
 }
@@ -0,0 +1,179 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * A fixed-size histogram of durations in nanoseconds, or of plain counts, with log-linear
+ * buckets in the style of HdrHistogram: values under 16 get a bucket each, and every power of
+ * two above that is split into 8 buckets, so a bucket is never more than 12.5% wide. Values up
+ * to 2^40 (about 18 minutes in nanoseconds) are kept apart; anything larger lands in the last
+ * bucket.
+ *
+ * record() takes no locks and allocates nothing, so it can sit on the streaming path and be
+ * called from any thread. snapshot() copies the counts out for reading.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // values below this each get their own bucket
+    private static final int LINEAR_MAX = 2 * SUB_BUCKETS;
+    private static final int LINEAR_BITS = 4;
+    // 2^40 ns is a little over 18 minutes
+    private static final int MAX_BITS = 40;
+    private static final int BUCKETS = LINEAR_MAX + (MAX_BITS - LINEAR_BITS) * SUB_BUCKETS;
+
+    public enum Unit {
+        NANOSECONDS,
+        // e.g. frames in a burst
+        COUNT
+    }
+
+    private final String mName;
+    private final Unit mUnit;
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    Histogram(String name, Unit unit) {
+        mName = name;
+        mUnit = unit;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public Unit getUnit() {
+        return mUnit;
+    }
+
+    /**
+     * Adds a value: a duration in nanoseconds, or a count. Negative values count as 0.
+     */
+    public void record(long value) {
+        long max;
+
+        value = Math.max(0, value);
+        mCounts.incrementAndGet(bucketOf(value));
+        mSum.addAndGet(value);
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+            // lost a race with another recorder; try again
+        }
+    }
+
+    /**
+     * Adds the time since startNs, a System.nanoTime().
+     */
+    public void recordSince(long startNs) {
+        record(System.nanoTime() - startNs);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mCounts.get(i);
+        }
+        return new Snapshot(mName, mUnit, counts, mSum.get(), mMax.get());
+    }
+
+    static int bucketOf(long value) {
+        int bits = 64 - Long.numberOfLeadingZeros(value);
+
+        if (bits <= LINEAR_BITS) {
+            return (int)value;
+        }
+        if (bits > MAX_BITS) {
+            return BUCKETS - 1;
+        }
+        // the top bit picks the power of two, the next SUB_BITS the bucket within it
+        return LINEAR_MAX + (bits - LINEAR_BITS - 1) * SUB_BUCKETS
+                + (int)((value >>> (bits - 1 - SUB_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    // the largest value that goes in the bucket
+    static long bucketTop(int bucket) {
+        int bits;
+        int sub;
+
+        if (bucket < LINEAR_MAX) {
+            return bucket;
+        }
+        bits = (bucket - LINEAR_MAX) / SUB_BUCKETS + LINEAR_BITS + 1;
+        sub = (bucket - LINEAR_MAX) % SUB_BUCKETS;
+        return ((long)(SUB_BUCKETS + sub + 1) << (bits - 1 - SUB_BITS)) - 1;
+    }
+
+    /*
+     * The histogram's counts at one moment. Counts taken while other threads record may be a
+     * value or two apart from the sum and max, which doesn't matter at this precision.
+     */
+    public static class Snapshot {
+        private final String mName;
+        private final Unit mUnit;
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mSum;
+        private final long mMax;
+
+        Snapshot(String name, Unit unit, long[] counts, long sum, long max) {
+            long count = 0;
+
+            for (long c : counts) {
+                count += c;
+            }
+            mName = name;
+            mUnit = unit;
+            mCounts = counts;
+            mCount = count;
+            mSum = sum;
+            mMax = max;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public Unit getUnit() {
+            return mUnit;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMean() {
+            return mCount > 0 ? mSum / mCount : 0;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        /**
+         * The value below which the given percentage of recorded values fall, to within a
+         * bucket, or 0 if nothing was recorded.
+         */
+        public long getPercentile(double percent) {
+            long rank = (long)Math.ceil(percent / 100 * mCount);
+            long seen = 0;
+
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(bucketTop(i), mMax);
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Estimates link quality from heartbeat round trips on the stream connection. The camera
+ * answers heartbeats in order, so each reply is matched to the oldest heartbeat still waiting
+ * for one. Round-trip times are smoothed as TCP does (RFC 6298): a mean (1/8 per sample) and a
+ * mean deviation (1/4 per sample), which together give the time by which a reply is overdue.
+ *
+ * An overdue reply is the early sign: replies queue behind frames on the same socket, so they
+ * slow down as soon as the link does, before the stream stalls outright. A heartbeat that
+ * gets no reply at all within the reply timeout counts as missed.
+ *
+ * Listeners hear of every new sample and every change in overdue or missed replies, on
+ * whichever thread noticed it (the streaming thread or the heartbeat timer).
+ */
+public class LinkMonitor {
+    private static final int MAX_PENDING = 16;
+    private static final long MIN_OVERDUE_NS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long REPLY_TIMEOUT_NS = TimeUnit.SECONDS.toNanos(3);
+
+    public interface Listener {
+        void linkQualityChanged(Quality quality);
+    }
+
+    // send times of the heartbeats waiting for replies, oldest at mHead; guarded by this
+    private final long[] mPending = new long[MAX_PENDING];
+    private int mHead;
+    private int mPendingCount;
+    private boolean mHaveRtt;
+    private long mRttNs;
+    private long mSrttNs;
+    private long mRttVarNs;
+    private long mSent;
+    private long mReplies;
+    private long mMissed;
+    private int mMissedInRow;
+    private boolean mOverdue;
+    private volatile Quality mQuality = new Quality(this, 0);
+
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private final Histogram mRttMetric = Metrics.getDefault().histogram("link.rtt");
+    // heartbeats sent or tried
+    private final Metrics.Counter mSentMetric = Metrics.getDefault().counter("link.heartbeats");
+    private final Metrics.Counter mMissedMetric = Metrics.getDefault().counter("link.missed");
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * The latest estimate.
+     */
+    public Quality getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * Notes a heartbeat sent at nowNs, a System.nanoTime().
+     */
+    void sent(long nowNs) {
+        synchronized (this) {
+            if (mPendingCount == MAX_PENDING) {
+                expireOldest();
+            }
+            mPending[(mHead + mPendingCount++) % MAX_PENDING] = nowNs;
+            mSent++;
+        }
+        mSentMetric.increment();
+    }
+
+    /**
+     * Takes back the last sent(), for a heartbeat that couldn't be sent after all.
+     */
+    synchronized void notSent() {
+        if (mPendingCount > 0) {
+            mPendingCount--;
+            mSent--;
+        }
+    }
+
+    /**
+     * Notes a heartbeat reply arriving at nowNs.
+     */
+    void replied(long nowNs) {
+        Quality quality;
+        long rttNs;
+
+        synchronized (this) {
+            if (mPendingCount == 0) {
+                // not one of ours, or its heartbeat was given up on already
+                return;
+            }
+            rttNs = nowNs - mPending[mHead];
+            mRttNs = rttNs;
+            mHead = (mHead + 1) % MAX_PENDING;
+            mPendingCount--;
+            mReplies++;
+            mMissedInRow = 0;
+
+            if (!mHaveRtt) {
+                mSrttNs = mRttNs;
+                mRttVarNs = mRttNs / 2;
+                mHaveRtt = true;
+            }
+            else {
+                mRttVarNs += (Math.abs(mSrttNs - mRttNs) - mRttVarNs) >> 2;
+                mSrttNs += (mRttNs - mSrttNs) >> 3;
+            }
+            mOverdue = isOldestOverdue(nowNs);
+            quality = update(nowNs);
+        }
+        mRttMetric.record(rttNs);
+        notifyListeners(quality);
+    }
+
+    /**
+     * Gives up on heartbeats past the reply timeout and checks for overdue replies. Listeners
+     * are only told if something changed.
+     */
+    void check(long nowNs) {
+        Quality quality = null;
+
+        synchronized (this) {
+            long missed = mMissed;
+            boolean overdue;
+
+            while (mPendingCount > 0 && nowNs - mPending[mHead] > REPLY_TIMEOUT_NS) {
+                expireOldest();
+            }
+            overdue = isOldestOverdue(nowNs);
+            if (overdue != mOverdue || missed != mMissed) {
+                mOverdue = overdue;
+                quality = update(nowNs);
+            }
+        }
+        if (quality != null) {
+            notifyListeners(quality);
+        }
+    }
+
+    /**
+     * Forgets the heartbeats waiting for replies without counting them missed, e.g. when
+     * their connection was replaced.
+     */
+    synchronized void clearPending() {
+        mPendingCount = 0;
+        mOverdue = false;
+    }
+
+    private void expireOldest() {
+        mHead = (mHead + 1) % MAX_PENDING;
+        mPendingCount--;
+        mMissed++;
+        mMissedInRow++;
+        mMissedMetric.increment();
+    }
+
+    private boolean isOldestOverdue(long nowNs) {
+        return mPendingCount > 0 && nowNs - mPending[mHead] > overdueNs();
+    }
+
+    private long overdueNs() {
+        return mHaveRtt ? Math.max(MIN_OVERDUE_NS, mSrttNs + 4 * mRttVarNs) : REPLY_TIMEOUT_NS;
+    }
+
+    private Quality update(long nowNs) {
+        long waitingNs = mPendingCount > 0 ? nowNs - mPending[mHead] : 0;
+
+        mQuality = new Quality(this, waitingNs);
+        return mQuality;
+    }
+
+    private void notifyListeners(Quality quality) {
+        for (Listener l : mListeners) {
+            l.linkQualityChanged(quality);
+        }
+    }
+
+    /*
+     * The monitor's estimate at one moment.
+     */
+    public static class Quality {
+        private final long mRttNs;
+        private final long mSrttNs;
+        private final long mRttVarNs;
+        private final long mSent;
+        private final long mReplies;
+        private final long mMissed;
+        private final int mMissedInRow;
+        private final boolean mOverdue;
+        private final long mWaitingNs;
+
+        // called with the monitor locked
+        private Quality(LinkMonitor m, long waitingNs) {
+            mRttNs = m.mRttNs;
+            mSrttNs = m.mSrttNs;
+            mRttVarNs = m.mRttVarNs;
+            mSent = m.mSent;
+            mReplies = m.mReplies;
+            mMissed = m.mMissed;
+            mMissedInRow = m.mMissedInRow;
+            mOverdue = m.mOverdue;
+            mWaitingNs = waitingNs;
+        }
+
+        /**
+         * The last round trip, or 0 before the first reply.
+         */
+        public long getRttNanos() {
+            return mRttNs;
+        }
+
+        public long getSmoothedRttNanos() {
+            return mSrttNs;
+        }
+
+        /**
+         * Mean deviation of the round trip.
+         */
+        public long getRttVarNanos() {
+            return mRttVarNs;
+        }
+
+        public long getSent() {
+            return mSent;
+        }
+
+        public long getReplies() {
+            return mReplies;
+        }
+
+        /**
+         * Heartbeats that never got a reply.
+         */
+        public long getMissed() {
+            return mMissed;
+        }
+
+        /**
+         * Heartbeats missed since the last reply.
+         */
+        public int getMissedInRow() {
+            return mMissedInRow;
+        }
+
+        /**
+         * How long the oldest unanswered heartbeat had been waiting, or 0 if none was.
+         */
+        public long getWaitingNanos() {
+            return mWaitingNs;
+        }
+
+        /**
+         * True if a reply is overdue or missing, the sign of a stall on the way.
+         */
+        public boolean isDegraded() {
+            return mOverdue || mMissedInRow > 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("rtt %.1f ms (smoothed %.1f, var %.1f), %d/%d replies,"
+                    + " %d missed%s", mRttNs / 1e6, mSrttNs / 1e6, mRttVarNs / 1e6, mReplies,
+                    mSent, mMissed, isDegraded() ? ", degraded" : "");
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Named counters and latency histograms for the streaming pipeline, from the socket reads
+ * through to the display. Components look up their metrics once, when they're created, and
+ * then only touch atomics, so the metrics stay on in normal use. snapshot() reads them all
+ * for showing or saving.
+ *
+ * Names are "<stage>.<what>", e.g. "net.frames" or "codec.decode", and a name always gives
+ * back the same metric, so every connection adds to the same totals. Histograms record
+ * nanoseconds unless made with another unit.
+ */
+public class Metrics {
+    private static final Metrics DEFAULT = new Metrics();
+
+    private final Map<String, Counter> mCounters = new TreeMap<>();
+    private final Map<String, Histogram> mHistograms = new TreeMap<>();
+    private long mResetMs = System.currentTimeMillis();
+
+    /**
+     * The registry the streaming classes record into.
+     */
+    public static Metrics getDefault() {
+        return DEFAULT;
+    }
+
+    public synchronized Counter counter(String name) {
+        Counter counter = mCounters.get(name);
+
+        if (counter == null) {
+            counter = new Counter(name);
+            mCounters.put(name, counter);
+        }
+        return counter;
+    }
+
+    /**
+     * A histogram of durations, in nanoseconds.
+     */
+    public Histogram histogram(String name) {
+        return histogram(name, Histogram.Unit.NANOSECONDS);
+    }
+
+    /**
+     * A histogram of the given unit. The unit only matters the first time a name is used.
+     */
+    public synchronized Histogram histogram(String name, Histogram.Unit unit) {
+        Histogram histogram = mHistograms.get(name);
+
+        if (histogram == null) {
+            histogram = new Histogram(name, unit);
+            mHistograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Zeroes every metric. Anything recorded while this runs may or may not survive it.
+     */
+    public synchronized void reset() {
+        for (Counter c : mCounters.values()) {
+            c.reset();
+        }
+        for (Histogram h : mHistograms.values()) {
+            h.reset();
+        }
+        mResetMs = System.currentTimeMillis();
+    }
+
+    public synchronized Snapshot snapshot() {
+        List<Histogram.Snapshot> histograms = new ArrayList<>(mHistograms.size());
+        Map<String, Long> counters = new TreeMap<>();
+
+        for (Counter c : mCounters.values()) {
+            counters.put(c.getName(), c.get());
+        }
+        for (Histogram h : mHistograms.values()) {
+            histograms.add(h.snapshot());
+        }
+        return new Snapshot(mResetMs, System.currentTimeMillis(), counters, histograms);
+    }
+
+    public static class Counter {
+        private final String mName;
+        private final AtomicLong mValue = new AtomicLong();
+
+        Counter(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public void increment() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(long n) {
+            mValue.addAndGet(n);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+
+        void reset() {
+            mValue.set(0);
+        }
+    }
+
+    /*
+     * Every metric's value at one moment, sorted by name.
+     */
+    public static class Snapshot {
+        private final long mStartMs;
+        private final long mTakenMs;
+        private final Map<String, Long> mCounters;
+        private final List<Histogram.Snapshot> mHistograms;
+
+        Snapshot(long startMs, long takenMs, Map<String, Long> counters,
+                 List<Histogram.Snapshot> histograms) {
+            mStartMs = startMs;
+            mTakenMs = takenMs;
+            mCounters = Collections.unmodifiableMap(counters);
+            mHistograms = Collections.unmodifiableList(histograms);
+        }
+
+        /**
+         * A counter's value, or 0 if there's no such counter.
+         */
+        public long getCounter(String name) {
+            Long value = mCounters.get(name);
+            return value != null ? value : 0;
+        }
+
+        public Map<String, Long> getCounters() {
+            return mCounters;
+        }
+
+        public List<Histogram.Snapshot> getHistograms() {
+            return mHistograms;
+        }
+
+        /**
+         * A histogram's snapshot, or null if there's no such histogram.
+         */
+        public Histogram.Snapshot getHistogram(String name) {
+            for (Histogram.Snapshot h : mHistograms) {
+                if (h.getName().equals(name)) {
+                    return h;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Writes the snapshot as a plain text table.
+         */
+        public void writeTo(File file) throws IOException {
+            try (Writer out = new OutputStreamWriter(
+                    new FileOutputStream(file), StandardCharsets.UTF_8)) {
+                out.write(toString());
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+
+            sb.append(String.format("%tF %<tT, over %d s%n", new Date(mTakenMs),
+                    TimeUnit.MILLISECONDS.toSeconds(mTakenMs - mStartMs)));
+            for (Map.Entry<String, Long> e : mCounters.entrySet()) {
+                sb.append(String.format("%-22s %10d%n", e.getKey(), e.getValue()));
+            }
+            sb.append(String.format("%n%-22s %8s %8s %8s %8s %8s%n",
+                    "", "count", "p50", "p90", "p99", "max"));
+            for (Histogram.Snapshot h : mHistograms) {
+                sb.append(String.format("%-22s %8d %8s %8s %8s %8s%n", h.getName(),
+                        h.getCount(),
+                        format(h, h.getPercentile(50)),
+                        format(h, h.getPercentile(90)),
+                        format(h, h.getPercentile(99)),
+                        format(h, h.getMax())));
+            }
+            return sb.toString();
+        }
+
+        private static String format(Histogram.Snapshot h, long value) {
+            return h.getUnit() == Histogram.Unit.NANOSECONDS
+                    ? formatNanos(value) : Long.toString(value);
+        }
+
+        private static String formatNanos(long ns) {
+            if (ns < TimeUnit.MICROSECONDS.toNanos(1)) {
+                return ns + "ns";
+            }
+            if (ns < TimeUnit.MILLISECONDS.toNanos(1)) {
+                return String.format("%.1fus", ns / 1e3);
+            }
+            if (ns < TimeUnit.SECONDS.toNanos(1)) {
+                return String.format("%.1fms", ns / 1e6);
+            }
+            return String.format("%.2fs", ns / 1e9);
+        }
+    }
+}
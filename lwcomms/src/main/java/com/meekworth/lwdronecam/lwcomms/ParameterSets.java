@@ -0,0 +1,129 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import com.meekworth.lwdronecam.utils.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * Keeps the most recent SPS and PPS seen in the stream, each as an Annex-B NAL unit with a
+ * four-byte start code. With them, a decoder can be configured (csd-0 and csd-1 for
+ * MediaCodec) before the stream next repeats them, and they outlive any one connection.
+ *
+ * Updated from the streaming thread and read from others, so access is synchronized; it only
+ * happens on frames that carry parameter sets.
+ */
+public class ParameterSets {
+    private static final String TAG = "LWDroneCam/lwcomms.ParameterSets";
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private byte[] mSps;
+    private byte[] mPps;
+    // mSps parsed, or null if it couldn't be
+    private Sps mParsedSps;
+
+    /**
+     * Picks up any SPS and PPS in the frame.
+     * @return  true if either differs from what was cached.
+     */
+    public boolean update(StreamFrame frame) {
+        if (!frame.hasParameterSets()) {
+            return false;
+        }
+
+        ByteBuffer buf = frame.getBuffer();
+        int len = frame.getLength();
+        boolean changed = false;
+        int pos = H264.nextNal(buf, 0, len);
+
+        synchronized (this) {
+            while (0 <= pos && pos < len) {
+                int type = H264.nalType(buf.get(pos));
+                int end = H264.nalEnd(buf, pos, len);
+
+                if (type == H264.NAL_SPS && !matches(mSps, buf, pos, end)) {
+                    mSps = copyNal(buf, pos, end);
+                    mParsedSps = parse(mSps);
+                    changed = true;
+                }
+                else if (type == H264.NAL_PPS && !matches(mPps, buf, pos, end)) {
+                    mPps = copyNal(buf, pos, end);
+                    changed = true;
+                }
+                else if (H264.isVcl(type)) {
+                    // parameter sets come before the picture
+                    break;
+                }
+                pos = H264.nextNal(buf, end, len);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * True once both an SPS and a PPS have been seen.
+     */
+    public synchronized boolean isComplete() {
+        return mSps != null && mPps != null;
+    }
+
+    /**
+     * The SPS NAL with its start code, or null if none was seen yet.
+     */
+    public synchronized byte[] getSps() {
+        return mSps != null ? mSps.clone() : null;
+    }
+
+    /**
+     * The cached SPS parsed, or null if there is none or it couldn't be parsed.
+     */
+    public synchronized Sps getParsedSps() {
+        return mParsedSps;
+    }
+
+    /**
+     * The PPS NAL with its start code, or null if none was seen yet.
+     */
+    public synchronized byte[] getPps() {
+        return mPps != null ? mPps.clone() : null;
+    }
+
+    public synchronized void clear() {
+        mSps = null;
+        mPps = null;
+        mParsedSps = null;
+    }
+
+    private static Sps parse(byte[] nal) {
+        try {
+            Sps sps = Sps.fromBytes(nal);
+            Log.d(TAG, "new SPS: %s", sps);
+            return sps;
+        }
+        catch (LwcommsException e) {
+            Log.e(TAG, "can't parse SPS: %s", e.getMessage());
+            return null;
+        }
+    }
+
+    private static boolean matches(byte[] cached, ByteBuffer buf, int start, int end) {
+        if (cached == null || cached.length != START_CODE.length + end - start) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (cached[START_CODE.length + i - start] != buf.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] copyNal(ByteBuffer buf, int start, int end) {
+        byte[] nal = Arrays.copyOf(START_CODE, START_CODE.length + end - start);
+
+        for (int i = start; i < end; i++) {
+            nal[START_CODE.length + i - start] = buf.get(i);
+        }
+        return nal;
+    }
+}
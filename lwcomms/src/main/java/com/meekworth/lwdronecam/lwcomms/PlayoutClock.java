@@ -0,0 +1,146 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Gives stream frames presentation timestamps and decides when each should be shown.
+ *
+ * Timestamps follow the camera's frame counter at the frame interval measured from arrival
+ * times, so they advance steadily through lost frames and whatever the network does to the
+ * arrivals. A frame is due at its timestamp plus the smallest transit seen (arrival minus
+ * timestamp, allowed to creep up so clock drift can't wedge it), plus a playout delay that
+ * absorbs arrival jitter. The delay follows the measured jitter, growing at once and shrinking
+ * slowly, and no frame is ever scheduled later than the latency cap after its arrival.
+ *
+ * Used from the one thread feeding the decoder; the getters may be read from anywhere.
+ */
+public class PlayoutClock {
+    private static final long DEFAULT_FRAME_NS = TimeUnit.SECONDS.toNanos(1) / 30;
+    private static final long MIN_FRAME_NS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long MAX_FRAME_NS = TimeUnit.MILLISECONDS.toNanos(500);
+    // a counter jump bigger than this (or going backwards) is taken as a new stream
+    private static final long MAX_COUNT_GAP = 300;
+    // how fast the frame interval follows the arrivals, as a shift (1/256 per frame)
+    private static final int FRAME_NS_SHIFT = 8;
+    // RFC 3550 style jitter smoothing, 1/16 per frame
+    private static final int JITTER_SHIFT = 4;
+    // the delay covers this many times the mean jitter
+    private static final int JITTER_MULT = 3;
+    // the delay shrinks by 1/64 of the excess per frame
+    private static final int SHRINK_SHIFT = 6;
+    // how fast the transit floor creeps up, per frame
+    private static final long TRANSIT_DRIFT_NS = TimeUnit.MICROSECONDS.toNanos(20);
+
+    private final long mMaxLatencyNs;
+    private boolean mStarted;
+    private long mLastCount;
+    private long mLastArrivalNs;
+    private long mLastPtsNs;
+    private long mLastTransitNs;
+    private long mLastDueNs;
+    private long mFrameNs = DEFAULT_FRAME_NS;
+    private long mMinTransitNs;
+    private volatile long mJitterNs;
+    private volatile long mDelayNs;
+    private long mDueNs;
+
+    /**
+     * @param maxLatencyMs  Longest a frame may be held between arriving and being due.
+     */
+    public PlayoutClock(int maxLatencyMs) {
+        mMaxLatencyNs = TimeUnit.MILLISECONDS.toNanos(maxLatencyMs);
+    }
+
+    /**
+     * Forgets the timeline, e.g. for a new stream. Timestamps still never go backwards.
+     */
+    public void reset() {
+        mStarted = false;
+    }
+
+    /**
+     * Works out the frame's timestamp and due time.
+     * @return  the presentation timestamp, in microseconds; see getDueNanos() for when.
+     */
+    public long schedule(StreamFrame frame) {
+        long count = frame.getCount();
+        long arrivalNs = frame.getArrivalNanos();
+        long gap = count - mLastCount;
+        long ptsNs;
+        long transitNs;
+
+        if (arrivalNs == 0) {
+            arrivalNs = System.nanoTime();
+        }
+
+        if (!mStarted || gap <= 0 || gap > MAX_COUNT_GAP) {
+            // a new timeline, carrying on a frame after the last one
+            ptsNs = mStarted || mLastPtsNs != 0 ? mLastPtsNs + mFrameNs : 0;
+            mMinTransitNs = arrivalNs - ptsNs;
+            mLastTransitNs = mMinTransitNs;
+            mStarted = true;
+        }
+        else {
+            long sample = (arrivalNs - mLastArrivalNs) / gap;
+
+            sample = Math.max(MIN_FRAME_NS, Math.min(MAX_FRAME_NS, sample));
+            mFrameNs += (sample - mFrameNs) >> FRAME_NS_SHIFT;
+            ptsNs = mLastPtsNs + gap * mFrameNs;
+        }
+
+        transitNs = arrivalNs - ptsNs;
+        mMinTransitNs = Math.min(mMinTransitNs + TRANSIT_DRIFT_NS, transitNs);
+        mJitterNs += (Math.abs(transitNs - mLastTransitNs) - mJitterNs) >> JITTER_SHIFT;
+        updateDelay();
+
+        // keep due times in order, unless that breaks the latency cap
+        mDueNs = Math.max(ptsNs + mMinTransitNs + mDelayNs, mLastDueNs);
+        mDueNs = Math.min(mDueNs, arrivalNs + mMaxLatencyNs);
+
+        mLastCount = count;
+        mLastArrivalNs = arrivalNs;
+        mLastPtsNs = ptsNs;
+        mLastTransitNs = transitNs;
+        mLastDueNs = mDueNs;
+        return TimeUnit.NANOSECONDS.toMicros(ptsNs);
+    }
+
+    private void updateDelay() {
+        long target = Math.min(JITTER_MULT * mJitterNs, mMaxLatencyNs);
+
+        if (target > mDelayNs) {
+            mDelayNs = target;
+        }
+        else {
+            mDelayNs -= (mDelayNs - target) >> SHRINK_SHIFT;
+        }
+    }
+
+    /**
+     * The System.nanoTime() at which the last scheduled frame should be shown.
+     */
+    public long getDueNanos() {
+        return mDueNs;
+    }
+
+    /**
+     * Current playout delay on top of the fastest transit.
+     */
+    public long getDelayNanos() {
+        return mDelayNs;
+    }
+
+    /**
+     * Mean arrival jitter.
+     */
+    public long getJitterNanos() {
+        return mJitterNs;
+    }
+
+    /**
+     * Frame interval measured from the arrivals.
+     */
+    public long getFrameNanos() {
+        return mFrameNs;
+    }
+}
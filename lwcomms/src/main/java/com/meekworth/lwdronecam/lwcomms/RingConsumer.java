@@ -0,0 +1,132 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import com.meekworth.lwdronecam.utils.Log;
+
+/*
+ * Feeds one StreamingTarget from a FrameRing on its own thread, with its own cursor, so a
+ * slow target only ever delays itself.
+ */
+class RingConsumer implements Runnable {
+    private static final String TAG = "LWDroneCam/lwcomms.RingConsumer";
+    private static final long WAIT_NS = 50 * 1000 * 1000;
+
+    private final FrameRing mRing;
+    private final int mId;
+    private final StreamingTarget mTarget;
+    private final FrameRing.Overflow mOverflow;
+    private final Thread mThread;
+    private long mNext;
+    private boolean mAwaitKey;
+    private long mOverflows;
+    private long mSkipped;
+
+    // from a frame arriving to its target getting it
+    private final Histogram mWaitMetric = Metrics.getDefault().histogram("ring.wait");
+    private final Metrics.Counter mSkippedMetric = Metrics.getDefault().counter("ring.skipped");
+
+    RingConsumer(FrameRing ring, int id, StreamingTarget target) {
+        mRing = ring;
+        mId = id;
+        mTarget = target;
+        mOverflow = target.getOverflowPolicy();
+        mNext = ring.getPublished();
+        mThread = new Thread(this, "RingConsumer-" + id);
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    void join() throws InterruptedException {
+        mThread.join();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                if (mNext >= mRing.getPublished()) {
+                    if (mRing.isClosed()) {
+                        break;
+                    }
+                    mRing.await(mId, mNext, WAIT_NS);
+                    continue;
+                }
+
+                StreamFrame frame = mRing.read(mNext);
+                if (frame == null) {
+                    handleOverflow();
+                    continue;
+                }
+
+                try {
+                    if (mAwaitKey && !frame.isKeyFrame() && frame.hasPicture()) {
+                        mSkipped++;
+                        mSkippedMetric.increment();
+                    }
+                    else {
+                        mAwaitKey = false;
+                        mWaitMetric.recordSince(frame.getArrivalNanos());
+                        mTarget.sendFrame(frame);
+                    }
+                }
+                finally {
+                    frame.release();
+                }
+                mNext++;
+            }
+        }
+        finally {
+            if (mOverflows > 0) {
+                Log.d(TAG, "consumer %d overflowed %d times, skipped %d frames", mId,
+                        mOverflows, mSkipped);
+            }
+            mTarget.finished();
+        }
+    }
+
+    /*
+     * Called when the producer lapped this consumer.
+     */
+    private void handleOverflow() {
+        long newest = mRing.getPublished() - 1;
+        long resume = newest;
+
+        mOverflows++;
+        if (mOverflow == FrameRing.Overflow.SKIP_TO_KEYFRAME) {
+            resume = findNewestKeyFrame(newest);
+            mAwaitKey = (resume < 0);
+            if (resume < 0) {
+                // nothing to resume from yet; skip to the newest and wait for a key frame
+                resume = newest;
+            }
+        }
+
+        mSkipped += resume - mNext;
+        mSkippedMetric.add(resume - mNext);
+        mNext = resume;
+    }
+
+    private long findNewestKeyFrame(long newest) {
+        for (long seq = newest; seq >= mRing.getOldest() && seq >= mNext; seq--) {
+            StreamFrame frame = mRing.read(seq);
+            if (frame == null) {
+                break;
+            }
+            boolean key = frame.isKeyFrame();
+            frame.release();
+            if (key) {
+                return seq;
+            }
+        }
+        return -1;
+    }
+
+    long getOverflows() {
+        return mOverflows;
+    }
+
+    long getSkipped() {
+        return mSkipped;
+    }
+}
@@ -0,0 +1,46 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/*
+ * Transport over a plain blocking Socket with buffered streams, using SO_TIMEOUT as the read
+ * timeout.
+ */
+class SocketTransport extends StreamTransport {
+    private final Socket mSocket;
+
+    private SocketTransport(Socket socket) throws IOException {
+        super(new BufferedInputStream(socket.getInputStream()),
+                new BufferedOutputStream(socket.getOutputStream()));
+        mSocket = socket;
+    }
+
+    static SocketTransport connect(InetSocketAddress addr, int connectTimeoutMs,
+                                   int readTimeoutMs) throws IOException {
+        Socket socket = new Socket();
+
+        try {
+            socket.connect(addr, connectTimeoutMs);
+            socket.setSoTimeout(readTimeoutMs);
+            return new SocketTransport(socket);
+        }
+        catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void setReadTimeout(int ms) throws IOException {
+        mSocket.setSoTimeout(ms);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSocket.close();
+    }
+}
@@ -0,0 +1,222 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+/*
+ * The parts of an H.264 sequence parameter set (spec 7.3.2.1.1) that size the decoder and the
+ * view: profile, level and the picture size after cropping. Parsing stops after the cropping
+ * fields, so the VUI is never read.
+ */
+public class Sps {
+    private int mProfile;
+    private int mLevel;
+    private int mWidth;
+    private int mHeight;
+
+    /**
+     * Parses an SPS NAL unit, with or without a leading start code.
+     */
+    public static Sps fromBytes(byte[] nal) throws LwcommsException {
+        BitReader in = new BitReader(nal, skipStartCode(nal));
+        Sps sps = new Sps();
+        int chromaFormat = 1;
+        boolean separatePlanes = false;
+        boolean frameMbsOnly;
+        int widthMbs;
+        int heightMapUnits;
+        int cropLeft = 0;
+        int cropRight = 0;
+        int cropTop = 0;
+        int cropBottom = 0;
+
+        if (H264.nalType((byte)in.readBits(8)) != H264.NAL_SPS) {
+            throw new LwcommsException("not an SPS");
+        }
+        sps.mProfile = in.readBits(8);
+        in.readBits(8);     // constraint flags
+        sps.mLevel = in.readBits(8);
+        in.readUe();        // seq_parameter_set_id
+
+        if (hasChromaInfo(sps.mProfile)) {
+            chromaFormat = in.readUe();
+            if (chromaFormat == 3) {
+                separatePlanes = in.readBit();
+            }
+            in.readUe();    // bit_depth_luma_minus8
+            in.readUe();    // bit_depth_chroma_minus8
+            in.readBit();   // qpprime_y_zero_transform_bypass_flag
+            if (in.readBit()) {
+                for (int i = 0; i < (chromaFormat != 3 ? 8 : 12); i++) {
+                    if (in.readBit()) {
+                        skipScalingList(in, i < 6 ? 16 : 64);
+                    }
+                }
+            }
+        }
+
+        in.readUe();        // log2_max_frame_num_minus4
+        switch (in.readUe()) {
+            case 0:
+                in.readUe();    // log2_max_pic_order_cnt_lsb_minus4
+                break;
+
+            case 1:
+                in.readBit();   // delta_pic_order_always_zero_flag
+                in.readSe();    // offset_for_non_ref_pic
+                in.readSe();    // offset_for_top_to_bottom_field
+                for (int i = in.readUe(); i > 0; i--) {
+                    in.readSe();
+                }
+                break;
+
+            default:
+                break;
+        }
+        in.readUe();        // max_num_ref_frames
+        in.readBit();       // gaps_in_frame_num_value_allowed_flag
+        widthMbs = in.readUe() + 1;
+        heightMapUnits = in.readUe() + 1;
+        frameMbsOnly = in.readBit();
+        if (!frameMbsOnly) {
+            in.readBit();   // mb_adaptive_frame_field_flag
+        }
+        in.readBit();       // direct_8x8_inference_flag
+        if (in.readBit()) {
+            cropLeft = in.readUe();
+            cropRight = in.readUe();
+            cropTop = in.readUe();
+            cropBottom = in.readUe();
+        }
+
+        // crop offsets are in chroma samples, and in field pairs for interlaced video
+        int cropUnitX = 1;
+        int cropUnitY = frameMbsOnly ? 1 : 2;
+        if (chromaFormat != 0 && !separatePlanes) {
+            cropUnitX *= (chromaFormat == 3) ? 1 : 2;
+            cropUnitY *= (chromaFormat == 1) ? 2 : 1;
+        }
+        sps.mWidth = widthMbs * 16 - cropUnitX * (cropLeft + cropRight);
+        sps.mHeight = (frameMbsOnly ? 1 : 2) * heightMapUnits * 16
+                - cropUnitY * (cropTop + cropBottom);
+        if (sps.mWidth <= 0 || sps.mHeight <= 0) {
+            throw new LwcommsException("bad SPS picture size %dx%d", sps.mWidth, sps.mHeight);
+        }
+        return sps;
+    }
+
+    public int getProfile() {
+        return mProfile;
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%dx%d profile %d level %d", mWidth, mHeight, mProfile, mLevel);
+    }
+
+    // the profiles whose SPS carries chroma format, bit depth and scaling matrices
+    private static boolean hasChromaInfo(int profile) {
+        switch (profile) {
+            case 44: case 83: case 86: case 100: case 110: case 118:
+            case 122: case 128: case 134: case 135: case 138: case 139: case 244:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void skipScalingList(BitReader in, int size) throws LwcommsException {
+        int last = 8;
+        int next = 8;
+
+        for (int i = 0; i < size; i++) {
+            if (next != 0) {
+                next = (last + in.readSe() + 256) % 256;
+            }
+            last = (next == 0) ? last : next;
+        }
+    }
+
+    private static int skipStartCode(byte[] nal) {
+        int i = 0;
+
+        while (i < nal.length && nal[i] == 0) {
+            i++;
+        }
+        return (i >= 2 && i < nal.length && nal[i] == 1) ? i + 1 : 0;
+    }
+
+    /*
+     * Reads bits MSB first, dropping the emulation prevention bytes (00 00 03) as it goes.
+     */
+    private static class BitReader {
+        private final byte[] mData;
+        private int mPos;
+        private int mBit;
+        private int mCur;
+        private int mZeros;
+
+        BitReader(byte[] data, int start) {
+            mData = data;
+            mPos = start;
+        }
+
+        boolean readBit() throws LwcommsException {
+            if (mBit == 0) {
+                nextByte();
+            }
+            mBit--;
+            return ((mCur >> mBit) & 1) != 0;
+        }
+
+        int readBits(int n) throws LwcommsException {
+            int val = 0;
+
+            for (int i = 0; i < n; i++) {
+                val = (val << 1) | (readBit() ? 1 : 0);
+            }
+            return val;
+        }
+
+        // unsigned Exp-Golomb
+        int readUe() throws LwcommsException {
+            int zeros = 0;
+
+            while (!readBit()) {
+                if (++zeros > 31) {
+                    throw new LwcommsException("bad Exp-Golomb code in SPS");
+                }
+            }
+            return (int)((1L << zeros) - 1 + readBits(zeros));
+        }
+
+        // signed Exp-Golomb
+        int readSe() throws LwcommsException {
+            int k = readUe();
+            return (k & 1) != 0 ? (k + 1) / 2 : -(k / 2);
+        }
+
+        private void nextByte() throws LwcommsException {
+            if (mPos >= mData.length) {
+                throw new LwcommsException("SPS too short");
+            }
+            mCur = mData[mPos++] & 0xff;
+            if (mZeros >= 2 && mCur == 3) {
+                mZeros = 0;
+                nextByte();
+                return;
+            }
+            mZeros = (mCur == 0) ? mZeros + 1 : 0;
+            mBit = 8;
+        }
+    }
+}
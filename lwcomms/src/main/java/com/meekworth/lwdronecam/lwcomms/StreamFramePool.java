@@ -0,0 +1,91 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/*
+ * Pool of reusable StreamFrames. acquire() hands out a frame with a reference count of one,
+ * and the frame comes back here once every holder has called release(). The pool grows when
+ * it runs dry, so the high-water mark shows how many frames a pipeline really needs.
+ */
+public class StreamFramePool {
+    private final ArrayDeque<StreamFrame> mFree;
+    private final int mBufferCapacity;
+    private int mAllocated;
+    private int mOutstanding;
+    private int mHighWater;
+
+    public StreamFramePool() {
+        this(0, 0);
+    }
+
+    /**
+     * @param initialSize     Number of frames to allocate up front.
+     * @param bufferCapacity  Initial payload capacity of each frame, in bytes. Frames grow
+     *                        their buffer as needed, so this only avoids early reallocations.
+     */
+    public StreamFramePool(int initialSize, int bufferCapacity) {
+        mFree = new ArrayDeque<>(Math.max(initialSize, 8));
+        mBufferCapacity = bufferCapacity;
+
+        for (int i = 0; i < initialSize; i++) {
+            mFree.push(newFrame());
+        }
+    }
+
+    public StreamFrame acquire() {
+        StreamFrame frame;
+
+        synchronized (mFree) {
+            frame = mFree.poll();
+            if (frame == null) {
+                frame = newFrame();
+            }
+            mOutstanding++;
+            mHighWater = Math.max(mHighWater, mOutstanding);
+        }
+        frame.reset();
+
+        return frame;
+    }
+
+    void recycle(StreamFrame frame) {
+        synchronized (mFree) {
+            mOutstanding--;
+            mFree.push(frame);
+        }
+    }
+
+    /**
+     * Total number of frames this pool has created.
+     */
+    public int getAllocated() {
+        synchronized (mFree) {
+            return mAllocated;
+        }
+    }
+
+    /**
+     * Number of frames currently acquired and not yet fully released.
+     */
+    public int getOutstanding() {
+        synchronized (mFree) {
+            return mOutstanding;
+        }
+    }
+
+    /**
+     * Largest number of frames that have been outstanding at the same time.
+     */
+    public int getHighWaterMark() {
+        synchronized (mFree) {
+            return mHighWater;
+        }
+    }
+
+    // only called with mFree locked, or from the constructor
+    private StreamFrame newFrame() {
+        mAllocated++;
+        return new StreamFrame(ByteBuffer.allocate(mBufferCapacity), this);
+    }
+}
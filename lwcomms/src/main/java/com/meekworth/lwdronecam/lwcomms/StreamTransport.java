@@ -0,0 +1,66 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import com.meekworth.lwdronecam.utils.ReceiveAllStream;
+import com.meekworth.lwdronecam.utils.SendAllStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/*
+ * Transport over a pair of blocking streams. Used directly for in-memory connections (e.g.
+ * benchmarks and replays), and as the base of SocketTransport.
+ */
+class StreamTransport implements Transport {
+    private final InputStream mInStream;
+    private final OutputStream mOutStream;
+    private final ReceiveAllStream mIn;
+    private final SendAllStream mOut;
+
+    StreamTransport(InputStream in, OutputStream out) {
+        mInStream = in;
+        mOutStream = out;
+        mIn = new ReceiveAllStream(in);
+        mOut = new SendAllStream(out);
+    }
+
+    @Override
+    public void recvAll(byte[] buf) throws IOException {
+        mIn.recvAll(buf);
+    }
+
+    @Override
+    public void recvAll(ByteBuffer buf, int n) throws IOException {
+        mIn.recvAll(buf, n);
+    }
+
+    @Override
+    public void recvAll(ByteBuffer[] bufs) throws IOException {
+        for (ByteBuffer buf : bufs) {
+            mIn.recvAll(buf, buf.remaining());
+        }
+    }
+
+    @Override
+    public void sendAll(byte[] b) throws IOException {
+        mOut.sendAll(b);
+    }
+
+    /**
+     * Plain streams have no timeout of their own; reads block as the stream does.
+     */
+    @Override
+    public void setReadTimeout(int ms) throws IOException {
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            mInStream.close();
+        }
+        finally {
+            mOutStream.close();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+/*
+ * Targets are each fed from their own thread by CamConnection.streamVideo(), and finished()
+ * is called on that same thread.
+ */
+public interface StreamingTarget {
+    /*
+     * The frame is only guaranteed valid until this returns. Targets that queue it for later
+     * must call frame.retain() here and frame.release() when they're done with it.
+     */
+    void sendFrame(StreamFrame frame);
+    void finished();
+
+    /*
+     * Number of frames the target has accepted but not yet finished with (e.g. frames inside
+     * a decoder). Used by FrameDropFilter to tell when a target is falling behind.
+     */
+    default int getPendingFrames() {
+        return 0;
+    }
+
+    /*
+     * What to do when the target falls so far behind that the network reader laps it.
+     */
+    default FrameRing.Overflow getOverflowPolicy() {
+        return FrameRing.Overflow.SKIP_TO_KEYFRAME;
+    }
+}
@@ -0,0 +1,52 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+/*
+ * The camera's latest status (SD card, connected clients and clock), from whichever heartbeat
+ * reply came in last. While streaming, the stream connection's own heartbeats keep it fresh
+ * at no cost; otherwise the command session's keep-alives do, every few seconds. Anything
+ * that wants the status reads it from here and only asks the camera when it's too old (see
+ * CommandSession.getStatus()).
+ *
+ * Share one between the stream connection and the command session; it may be updated and
+ * read from any thread.
+ */
+public class Telemetry {
+    private Heartbeat mLatest;
+
+    private final Metrics.Counter mUpdatesMetric =
+            Metrics.getDefault().counter("telemetry.updates");
+
+    /**
+     * Takes a heartbeat reply as the latest status, unless a newer one is already here.
+     */
+    public void update(Heartbeat hb) {
+        synchronized (this) {
+            if (mLatest != null && hb.getReceivedNanos() - mLatest.getReceivedNanos() < 0) {
+                return;
+            }
+            mLatest = hb;
+        }
+        mUpdatesMetric.increment();
+    }
+
+    /**
+     * Forgets the status, e.g. when connecting to a different camera.
+     */
+    public synchronized void clear() {
+        mLatest = null;
+    }
+
+    /**
+     * The latest status, or null if there's none yet.
+     */
+    public synchronized Heartbeat getLatest() {
+        return mLatest;
+    }
+
+    /**
+     * The latest status if it's no older than maxAgeMs, otherwise null.
+     */
+    public synchronized Heartbeat getLatest(long maxAgeMs) {
+        return mLatest != null && mLatest.getAgeMillis() <= maxAgeMs ? mLatest : null;
+    }
+}
@@ -0,0 +1,33 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Byte transport under a CamConnection. All reads block until the requested amount has
+ * arrived, or throw once the connection's read timeout passes without any data.
+ */
+interface Transport extends Closeable {
+    /**
+     * Fills buf completely.
+     */
+    void recvAll(byte[] buf) throws IOException;
+
+    /**
+     * Reads n bytes into buf at its current position, advancing the position.
+     */
+    void recvAll(ByteBuffer buf, int n) throws IOException;
+
+    /**
+     * Scatter read: fills the remaining space of each buffer, in order.
+     */
+    void recvAll(ByteBuffer[] bufs) throws IOException;
+
+    void sendAll(byte[] b) throws IOException;
+
+    /**
+     * Changes how long a read may go without any data before it fails.
+     */
+    void setReadTimeout(int ms) throws IOException;
+}
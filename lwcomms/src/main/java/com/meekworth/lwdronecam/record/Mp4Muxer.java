@@ -0,0 +1,514 @@
+package com.meekworth.lwdronecam.record;
+
+import com.meekworth.lwdronecam.lwcomms.H264;
+import com.meekworth.lwdronecam.lwcomms.StreamFrame;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Muxes the stream's H.264 frames into fragmented MP4 (ISO/IEC 14496-12). It's plain Java with
+ * no file or Android code in it, so it runs (and can be checked) anywhere.
+ *
+ * A file is an init segment (ftyp, and a moov whose avcC holds the stream's SPS and PPS), a
+ * fragment (moof + mdat) per GOP, starting at each key frame or sooner if a GOP runs past
+ * two seconds, and on finish() an mfra box with the time and offset of every fragment
+ * that starts with a key frame, which is what players seek with. A file cut short (e.g. by a
+ * crash) is missing only the fragment being built and the mfra, and still plays.
+ *
+ * Samples are converted from Annex-B to AVCC (four-byte NAL lengths), leaving out parameter
+ * sets and access unit delimiters, which the avcC covers. The camera sends no B-frames, so
+ * decode and presentation times are the same and come straight from the caller.
+ *
+ * Everything goes out through an Output, which may refuse it (e.g. a writer with no room
+ * left). A refused fragment is left out of the file, and the file carries on at the next key
+ * frame.
+ *
+ * Not thread safe.
+ */
+public class Mp4Muxer {
+    public static final int TIMESCALE = 90000;
+    private static final long MAX_FRAGMENT_TICKS = 2 * TIMESCALE;
+    private static final int MAX_FRAGMENT_SAMPLES = 128;
+    private static final int TRACK_ID = 1;
+    // sample_depends_on = 2 (an I picture)
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    // sample_depends_on = 1, sample_is_non_sync_sample
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+    private static final int[] MATRIX = {0x10000, 0, 0, 0, 0x10000, 0, 0, 0, 0x40000000};
+    // "und", packed as three 5-bit letters
+    private static final int LANGUAGE_UND = 0x55c4;
+    private static final int START_CODE_LEN = 4;
+    // room for a moof's fixed boxes and the mdat header, besides the per-sample entries
+    private static final int MOOF_HDR_LEN = 128;
+
+    public interface Output {
+        /**
+         * Takes all of the buffers, each from its position to its limit, in order, or none of
+         * them. They're only valid until this returns.
+         * @return  false if the data was refused.
+         */
+        boolean write(ByteBuffer... data);
+    }
+
+    private final Output mOut;
+    // boxes are built here before going out
+    private ByteBuffer mBuf = ByteBuffer.allocate(16 * 1024);
+    private boolean mStarted;
+    private long mFileBytes;
+    private int mSequence;
+    private boolean mNeedKey;
+    private long mDroppedFrames;
+
+    // the fragment being built: sample data in AVCC, and each sample's size and decode time
+    private ByteBuffer mMdat = ByteBuffer.allocate(256 * 1024);
+    private final int[] mSizes = new int[MAX_FRAGMENT_SAMPLES];
+    private final long[] mTimes = new long[MAX_FRAGMENT_SAMPLES];
+    private int mSamples;
+    private boolean mFirstIsKey;
+    // for the last sample of the file, which has no next sample to end it
+    private long mLastDuration = TIMESCALE / 30;
+    // each file's timeline starts at 0 from its first key frame
+    private long mBaseTime;
+    private long mEndTime;
+
+    // fragments starting with a key frame, for the mfra
+    private long[] mKeyTimes = new long[256];
+    private long[] mKeyOffsets = new long[256];
+    private int mKeys;
+
+    public Mp4Muxer(Output out) {
+        mOut = out;
+    }
+
+    /**
+     * Starts a new file with its init segment. The file's first sample is the next key frame.
+     * @param sps  The SPS NAL with its start code, as ParameterSets.getSps() gives it.
+     * @param pps  The PPS NAL with its start code.
+     * @return  false if the output refused the init segment, leaving no file started.
+     */
+    public boolean start(byte[] sps, byte[] pps, int width, int height) {
+        ByteBuffer b = buffer(MOOF_HDR_LEN * 8 + sps.length + pps.length);
+
+        writeFtyp(b);
+        writeMoov(b, sps, pps, width, height);
+        b.flip();
+        mStarted = mOut.write(b);
+        mFileBytes = mStarted ? b.limit() : 0;
+        mSequence = 0;
+        mSamples = 0;
+        mMdat.clear();
+        mKeys = 0;
+        mBaseTime = -1;
+        mEndTime = 0;
+        mNeedKey = false;
+        return mStarted;
+    }
+
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    /**
+     * Adds a frame to the file, finishing the fragment before it if it starts a new one.
+     * Frames without a picture (e.g. only parameter sets) are ignored.
+     * @param timeUs  The frame's timestamp, in microseconds. Timestamps must not go backwards.
+     */
+    public void add(StreamFrame frame, long timeUs) {
+        if (frame.hasPicture()) {
+            add(frame.getBuffer(), 0, frame.getLength(), frame.isKeyFrame(), timeUs);
+        }
+    }
+
+    /**
+     * Adds a frame's payload from data[off, off + len), which must hold a picture. It's read
+     * with absolute gets, so the buffer's position and limit don't matter and aren't changed.
+     */
+    public void add(ByteBuffer data, int off, int len, boolean key, long timeUs) {
+        long time = timeUs * TIMESCALE / TimeUnit.SECONDS.toMicros(1);
+
+        if (!mStarted) {
+            return;
+        }
+        if (mBaseTime < 0) {
+            if (!key) {
+                mDroppedFrames++;
+                return;
+            }
+            mBaseTime = time;
+        }
+        time -= mBaseTime;
+
+        if (mSamples > 0 && (key || mSamples == MAX_FRAGMENT_SAMPLES
+                || time - mTimes[0] >= MAX_FRAGMENT_TICKS)) {
+            writeFragment(time);
+        }
+        if (mNeedKey && !key) {
+            mDroppedFrames++;
+            return;
+        }
+        mNeedKey = false;
+        addSample(data, off, off + len, time, key);
+    }
+
+    /**
+     * Ends the file: writes the last fragment and the index.
+     * @return  false if the output refused any of it.
+     */
+    public boolean finish() {
+        boolean ok = true;
+
+        if (!mStarted) {
+            return false;
+        }
+        if (mSamples > 0) {
+            ok = writeFragment(mTimes[mSamples - 1] + mLastDuration);
+        }
+        ok &= writeMfra();
+        mStarted = false;
+        return ok;
+    }
+
+    /**
+     * Bytes that have gone out for the current file, or the last one after finish().
+     */
+    public long getFileBytes() {
+        return mFileBytes;
+    }
+
+    /**
+     * Length of the video written to the current file so far, in microseconds.
+     */
+    public long getFileDurationUs() {
+        return mEndTime * TimeUnit.SECONDS.toMicros(1) / TIMESCALE;
+    }
+
+    /**
+     * Frames left out, over every file, because their fragment was refused or they came
+     * before the key frame that followed it.
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * Sample data held for the fragment being built, which goes out with its next key frame
+     * (or sooner, see the class comment).
+     */
+    public int getPendingBytes() {
+        return mMdat.position();
+    }
+
+    private void addSample(ByteBuffer src, int off, int limit, long time, boolean key) {
+        ByteBuffer in = src.duplicate();
+        int start = mMdat.position();
+        int pos = H264.nextNal(src, off, limit);
+
+        while (0 <= pos && pos < limit) {
+            int type = H264.nalType(src.get(pos));
+            int end = H264.nalEnd(src, pos, limit);
+
+            if (type != H264.NAL_SPS && type != H264.NAL_PPS && type != H264.NAL_AUD) {
+                ensureMdat(Integer.BYTES + end - pos);
+                mMdat.putInt(end - pos);
+                in.limit(end);
+                in.position(pos);
+                mMdat.put(in);
+            }
+            pos = H264.nextNal(src, end, limit);
+        }
+
+        if (mSamples == 0) {
+            mFirstIsKey = key;
+        }
+        mSizes[mSamples] = mMdat.position() - start;
+        mTimes[mSamples] = time;
+        mSamples++;
+    }
+
+    private void ensureMdat(int n) {
+        if (mMdat.remaining() < n) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(mMdat.capacity() * 2,
+                    mMdat.position() + n));
+            mMdat.flip();
+            bigger.put(mMdat);
+            mMdat = bigger;
+        }
+    }
+
+    /*
+     * Writes out the samples so far as one fragment. nextTime ends the last sample.
+     */
+    private boolean writeFragment(long nextTime) {
+        ByteBuffer b = buffer(MOOF_HDR_LEN + 2 * Integer.BYTES * mSamples);
+        int moof = begin(b, "moof");
+        int traf;
+        int box;
+        int dataOffsetAt;
+        long duration = mLastDuration;
+        boolean ok;
+
+        box = beginFull(b, "mfhd", 0, 0);
+        b.putInt(mSequence + 1);
+        end(b, box);
+
+        traf = begin(b, "traf");
+        // default-base-is-moof, default-sample-flags-present
+        box = beginFull(b, "tfhd", 0, 0x020020);
+        b.putInt(TRACK_ID);
+        b.putInt(SAMPLE_FLAGS_NON_SYNC);
+        end(b, box);
+        box = beginFull(b, "tfdt", 1, 0);
+        b.putLong(mTimes[0]);
+        end(b, box);
+        // data-offset, first-sample-flags, sample-duration and sample-size present
+        box = beginFull(b, "trun", 0, 0x000305);
+        b.putInt(mSamples);
+        dataOffsetAt = b.position();
+        b.putInt(0);
+        b.putInt(mFirstIsKey ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+        for (int i = 0; i < mSamples; i++) {
+            long next = i + 1 < mSamples ? mTimes[i + 1] : nextTime;
+
+            duration = Math.max(1, next - mTimes[i]);
+            b.putInt((int)duration);
+            b.putInt(mSizes[i]);
+        }
+        end(b, box);
+        end(b, traf);
+        end(b, moof);
+
+        // the data starts just past the mdat header, and goes out straight from mMdat
+        b.putInt(dataOffsetAt, b.position() - moof + 2 * Integer.BYTES);
+        b.putInt(2 * Integer.BYTES + mMdat.position());
+        putType(b, "mdat");
+        b.flip();
+        mMdat.flip();
+
+        ok = mOut.write(b, mMdat);
+        if (ok) {
+            if (mFirstIsKey) {
+                addKey(mTimes[0], mFileBytes);
+            }
+            mEndTime = mTimes[mSamples - 1] + duration;
+            mFileBytes += b.limit() + mMdat.limit();
+            mSequence++;
+            mLastDuration = duration;
+        }
+        else {
+            mDroppedFrames += mSamples;
+            mNeedKey = true;
+        }
+        mSamples = 0;
+        mMdat.clear();
+        return ok;
+    }
+
+    private void addKey(long time, long offset) {
+        if (mKeys == mKeyTimes.length) {
+            mKeyTimes = Arrays.copyOf(mKeyTimes, mKeys * 2);
+            mKeyOffsets = Arrays.copyOf(mKeyOffsets, mKeys * 2);
+        }
+        mKeyTimes[mKeys] = time;
+        mKeyOffsets[mKeys] = offset;
+        mKeys++;
+    }
+
+    private boolean writeMfra() {
+        // each tfra entry is two longs and three one-byte numbers
+        ByteBuffer b = buffer(MOOF_HDR_LEN + (2 * Long.BYTES + 3) * mKeys);
+        int mfra = begin(b, "mfra");
+        int box;
+        boolean ok;
+
+        box = beginFull(b, "tfra", 1, 0);
+        b.putInt(TRACK_ID);
+        // traf, trun and sample numbers are one byte each
+        b.putInt(0);
+        b.putInt(mKeys);
+        for (int i = 0; i < mKeys; i++) {
+            b.putLong(mKeyTimes[i]);
+            b.putLong(mKeyOffsets[i]);
+            b.put((byte)1).put((byte)1).put((byte)1);
+        }
+        end(b, box);
+        // mfro holds the size of the whole mfra, itself included
+        box = beginFull(b, "mfro", 0, 0);
+        b.putInt(b.position() + Integer.BYTES - mfra);
+        end(b, box);
+        end(b, mfra);
+        b.flip();
+
+        ok = mOut.write(b);
+        if (ok) {
+            mFileBytes += b.limit();
+        }
+        return ok;
+    }
+
+    private static void writeFtyp(ByteBuffer b) {
+        int ftyp = begin(b, "ftyp");
+
+        putType(b, "isom");
+        b.putInt(0x200);
+        putType(b, "isom");
+        putType(b, "iso6");
+        putType(b, "avc1");
+        putType(b, "mp41");
+        end(b, ftyp);
+    }
+
+    private static void writeMoov(ByteBuffer b, byte[] sps, byte[] pps, int width,
+                                  int height) {
+        int moov = begin(b, "moov");
+        int box;
+
+        box = beginFull(b, "mvhd", 0, 0);
+        // creation and modification times, timescale, duration (unknown until the fragments)
+        b.putInt(0).putInt(0).putInt(1000).putInt(0);
+        // rate 1.0, volume 1.0, reserved
+        b.putInt(0x10000).putShort((short)0x100).putShort((short)0).putLong(0);
+        putMatrix(b);
+        // pre_defined
+        for (int i = 0; i < 6; i++) {
+            b.putInt(0);
+        }
+        b.putInt(TRACK_ID + 1);
+        end(b, box);
+
+        int trak = begin(b, "trak");
+        // track enabled and in the movie
+        box = beginFull(b, "tkhd", 0, 0x3);
+        b.putInt(0).putInt(0).putInt(TRACK_ID).putInt(0).putInt(0).putLong(0);
+        // layer, alternate group, volume (none for video), reserved
+        b.putShort((short)0).putShort((short)0).putShort((short)0).putShort((short)0);
+        putMatrix(b);
+        b.putInt(width << 16).putInt(height << 16);
+        end(b, box);
+
+        int mdia = begin(b, "mdia");
+        box = beginFull(b, "mdhd", 0, 0);
+        b.putInt(0).putInt(0).putInt(TIMESCALE).putInt(0);
+        b.putShort((short)LANGUAGE_UND).putShort((short)0);
+        end(b, box);
+        box = beginFull(b, "hdlr", 0, 0);
+        b.putInt(0);
+        putType(b, "vide");
+        b.putInt(0).putInt(0).putInt(0);
+        b.put("VideoHandler\0".getBytes(StandardCharsets.US_ASCII));
+        end(b, box);
+
+        int minf = begin(b, "minf");
+        box = beginFull(b, "vmhd", 0, 0x1);
+        b.putShort((short)0).putShort((short)0).putShort((short)0).putShort((short)0);
+        end(b, box);
+        int dinf = begin(b, "dinf");
+        int dref = beginFull(b, "dref", 0, 0);
+        b.putInt(1);
+        // the data is in this file
+        box = beginFull(b, "url ", 0, 0x1);
+        end(b, box);
+        end(b, dref);
+        end(b, dinf);
+
+        int stbl = begin(b, "stbl");
+        int stsd = beginFull(b, "stsd", 0, 0);
+        b.putInt(1);
+        writeAvc1(b, sps, pps, width, height);
+        end(b, stsd);
+        // the samples are all in the fragments, so the tables are empty
+        for (String type : new String[] {"stts", "stsc", "stco"}) {
+            box = beginFull(b, type, 0, 0);
+            b.putInt(0);
+            end(b, box);
+        }
+        box = beginFull(b, "stsz", 0, 0);
+        b.putInt(0).putInt(0);
+        end(b, box);
+        end(b, stbl);
+        end(b, minf);
+        end(b, mdia);
+        end(b, trak);
+
+        int mvex = begin(b, "mvex");
+        box = beginFull(b, "trex", 0, 0);
+        // sample description 1; the fragments give durations, sizes and flags
+        b.putInt(TRACK_ID).putInt(1).putInt(0).putInt(0).putInt(0);
+        end(b, box);
+        end(b, mvex);
+        end(b, moov);
+    }
+
+    private static void writeAvc1(ByteBuffer b, byte[] sps, byte[] pps, int width,
+                                  int height) {
+        int avc1 = begin(b, "avc1");
+        int avcC;
+        int spsLen = sps.length - START_CODE_LEN;
+        int ppsLen = pps.length - START_CODE_LEN;
+
+        // reserved, data reference 1, pre_defined and reserved
+        b.putInt(0).putShort((short)0).putShort((short)1);
+        b.putLong(0).putLong(0);
+        b.putShort((short)width).putShort((short)height);
+        // 72 dpi both ways, reserved, one frame per sample
+        b.putInt(0x480000).putInt(0x480000).putInt(0).putShort((short)1);
+        // compressor name, empty
+        b.put(new byte[32]);
+        // depth 24, pre_defined -1
+        b.putShort((short)0x18).putShort((short)-1);
+
+        avcC = begin(b, "avcC");
+        // version, then profile, compatibility and level straight from the SPS
+        b.put((byte)1);
+        b.put(sps, START_CODE_LEN + 1, 3);
+        // four-byte NAL lengths, one SPS
+        b.put((byte)0xff).put((byte)0xe1);
+        b.putShort((short)spsLen).put(sps, START_CODE_LEN, spsLen);
+        b.put((byte)1);
+        b.putShort((short)ppsLen).put(pps, START_CODE_LEN, ppsLen);
+        end(b, avcC);
+        end(b, avc1);
+    }
+
+    private static void putMatrix(ByteBuffer b) {
+        for (int m : MATRIX) {
+            b.putInt(m);
+        }
+    }
+
+    private ByteBuffer buffer(int len) {
+        if (mBuf.capacity() < len) {
+            mBuf = ByteBuffer.allocate(Math.max(mBuf.capacity() * 2, len));
+        }
+        mBuf.clear();
+        return mBuf;
+    }
+
+    private static int begin(ByteBuffer b, String type) {
+        int start = b.position();
+
+        // the size is filled in by end()
+        b.putInt(0);
+        putType(b, type);
+        return start;
+    }
+
+    private static int beginFull(ByteBuffer b, String type, int version, int flags) {
+        int start = begin(b, type);
+
+        b.putInt(version << 24 | flags);
+        return start;
+    }
+
+    private static void end(ByteBuffer b, int start) {
+        b.putInt(start, b.position() - start);
+    }
+
+    private static void putType(ByteBuffer b, String type) {
+        for (int i = 0; i < 4; i++) {
+            b.put((byte)type.charAt(i));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.meekworth.lwdronecam.record;
+
+import com.meekworth.lwdronecam.lwcomms.Metrics;
+import com.meekworth.lwdronecam.lwcomms.ParameterSets;
+import com.meekworth.lwdronecam.lwcomms.PlayoutClock;
+import com.meekworth.lwdronecam.lwcomms.Sps;
+import com.meekworth.lwdronecam.lwcomms.StreamFrame;
+import com.meekworth.lwdronecam.lwcomms.StreamingTarget;
+import com.meekworth.lwdronecam.utils.Log;
+
+import java.io.File;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Records the stream into fragmented MP4 files (see Mp4Muxer) in a folder on the phone. A new
+ * file is started at the first key frame after the current one gets too big or too long, or
+ * when the stream's SPS or PPS changes; files are named after when recording started, and
+ * numbered.
+ *
+ * Files are written through a WriteBehindFile, so a slow disk costs recorded frames and never
+ * streamed ones: while its buffers are full, fragments are left out of the file. Timestamps
+ * follow the camera's frame counter (through a PlayoutClock), so frames lost on the way leave
+ * a gap of the right length rather than speeding the video up.
+ */
+public class Mp4Recorder implements StreamingTarget {
+    private static final String TAG = "LWDroneCam/record.Mp4Recorder";
+    public static final long DEFAULT_MAX_FILE_BYTES = 512L * 1024 * 1024;
+    public static final long DEFAULT_MAX_FILE_MS = TimeUnit.MINUTES.toMillis(10);
+    // only the clock's timestamps are used, so its latency cap doesn't matter
+    private static final int CLOCK_MAX_LATENCY_MS = 1000;
+    // how long finished() waits for the disk to take what's queued
+    private static final long FINISH_WAIT_MS = 5000;
+
+    private final File mDir;
+    private final String mName;
+    private final long mMaxFileBytes;
+    private final long mMaxFileUs;
+    private final WriteBehindFile mWriter = new WriteBehindFile();
+    private final Mp4Muxer mMuxer = new Mp4Muxer(mWriter::write);
+    private final ParameterSets mParamSets = new ParameterSets();
+    private final PlayoutClock mClock = new PlayoutClock(CLOCK_MAX_LATENCY_MS);
+    private File mFile;
+    private int mFiles;
+    private long mFrames;
+    private boolean mFailed;
+
+    private final Metrics.Counter mFilesMetric = Metrics.getDefault().counter("record.files");
+    private final Metrics.Counter mFramesMetric = Metrics.getDefault().counter("record.frames");
+
+    public Mp4Recorder(File dir) {
+        this(dir, DEFAULT_MAX_FILE_BYTES, DEFAULT_MAX_FILE_MS);
+    }
+
+    /**
+     * @param maxFileBytes  Size after which the next key frame starts a new file.
+     * @param maxFileMs     Length of video after which the next key frame starts a new file.
+     */
+    public Mp4Recorder(File dir, long maxFileBytes, long maxFileMs) {
+        mDir = dir;
+        mName = String.format("rec-%tY%<tm%<td-%<tH%<tM%<tS", new Date());
+        mMaxFileBytes = maxFileBytes;
+        mMaxFileUs = TimeUnit.MILLISECONDS.toMicros(maxFileMs);
+    }
+
+    @Override
+    public void sendFrame(StreamFrame frame) {
+        boolean newParams = mParamSets.update(frame);
+        long timeUs = mClock.schedule(frame);
+
+        if (mFailed) {
+            return;
+        }
+        if (mWriter.getError() != null) {
+            Log.e(TAG, "stopped recording to %s: %s", mFile, mWriter.getError().getMessage());
+            mFile = null;
+            mFailed = true;
+            return;
+        }
+
+        if (frame.isKeyFrame() && mParamSets.isComplete()
+                && (mFile == null || newParams || isFull())) {
+            if (mFile != null) {
+                closeFile();
+            }
+            openFile();
+        }
+
+        if (mFile != null) {
+            mMuxer.add(frame, timeUs);
+            mFrames++;
+            mFramesMetric.increment();
+        }
+    }
+
+    @Override
+    public void finished() {
+        if (mFile != null) {
+            closeFile();
+        }
+        if (!mWriter.close(FINISH_WAIT_MS)) {
+            Log.e(TAG, "gave up waiting for the last file to be written");
+        }
+        Log.i(TAG, "recorded %d frames into %d files, %d left out", mFrames, mFiles,
+                mMuxer.getDroppedFrames());
+    }
+
+    private boolean isFull() {
+        return mMuxer.getFileBytes() >= mMaxFileBytes
+                || mMuxer.getFileDurationUs() >= mMaxFileUs;
+    }
+
+    private void openFile() {
+        Sps sps = mParamSets.getParsedSps();
+        File file = new File(mDir, String.format("%s-%03d.mp4", mName, mFiles + 1));
+
+        mWriter.open(file);
+        if (!mMuxer.start(mParamSets.getSps(), mParamSets.getPps(),
+                sps != null ? sps.getWidth() : 0, sps != null ? sps.getHeight() : 0)) {
+            // the writer is behind, so try again at the next key frame
+            Log.d(TAG, "no room to start %s", file);
+            mWriter.closeFile();
+            return;
+        }
+        mFile = file;
+        mFiles++;
+        mFilesMetric.increment();
+        Log.i(TAG, "recording to %s", file);
+    }
+
+    private void closeFile() {
+        if (!mMuxer.finish()) {
+            Log.e(TAG, "%s is missing its end, as the disk fell behind", mFile);
+        }
+        mWriter.closeFile();
+        Log.i(TAG, "finished %s, %d bytes", mFile, mMuxer.getFileBytes());
+        mFile = null;
+    }
+}
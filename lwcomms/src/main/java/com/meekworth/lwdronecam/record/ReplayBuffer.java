@@ -0,0 +1,360 @@
+package com.meekworth.lwdronecam.record;
+
+import com.meekworth.lwdronecam.lwcomms.Histogram;
+import com.meekworth.lwdronecam.lwcomms.Metrics;
+import com.meekworth.lwdronecam.lwcomms.ParameterSets;
+import com.meekworth.lwdronecam.lwcomms.PlayoutClock;
+import com.meekworth.lwdronecam.lwcomms.Sps;
+import com.meekworth.lwdronecam.lwcomms.StreamFrame;
+import com.meekworth.lwdronecam.lwcomms.StreamingTarget;
+import com.meekworth.lwdronecam.utils.Log;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Keeps the last stretch of the stream in memory, so it can be saved after the fact with
+ * dump() without recording the whole flight.
+ *
+ * Frames are copied into one direct buffer used as a ring, each kept in one piece (a frame that
+ * won't fit before the end of the buffer goes at the start), with their offsets, lengths and
+ * timestamps in arrays of the same fixed size. The history always starts at a key frame and is
+ * dropped a GOP at a time, from the front, by moving its start to the next GOP's first frame,
+ * whatever the GOP's size. It's cut back whenever more than the window is held, or the buffer
+ * or the frame arrays are full. Nothing is allocated per frame.
+ *
+ * A dump is written out on the stream's own target thread, a few frames with each new frame,
+ * through a Mp4Muxer and a WriteBehindFile, so live frames keep coming in while it's saved and
+ * the disk never holds them up. It covers what was held when it started. History that gets
+ * dropped before the dump reaches it is skipped, so a dump keeps ahead of the window. The
+ * SPS or PPS changing drops the history, as a file can only have one of each.
+ *
+ * dump() may be called from any thread; everything else happens on the target thread.
+ */
+public class ReplayBuffer implements StreamingTarget {
+    private static final String TAG = "LWDroneCam/record.ReplayBuffer";
+    // the frame arrays have room for the window at this rate
+    private static final int MAX_FPS = 60;
+    // only the clock's timestamps are used, so its latency cap doesn't matter
+    private static final int CLOCK_MAX_LATENCY_MS = 1000;
+    private static final int DUMP_CHUNK_LEN = 64 * 1024;
+    private static final int DUMP_CHUNKS = 32;
+    // frames handed to the muxer for every live frame
+    private static final int DUMP_FRAMES_PER_FRAME = 8;
+    // room kept in the writer for the fragment headers
+    private static final int DUMP_MARGIN = 16 * 1024;
+    // how long finished() waits between tries for room in the writer
+    private static final long DUMP_WAIT_MS = 10;
+    // how long finished() waits for the disk to take the rest of the dump
+    private static final long FINISH_WAIT_MS = 5000;
+
+    public interface Listener {
+        /**
+         * Called on the target thread once the whole dump has been handed to the writer.
+         */
+        void replaySaved(File file, long durationMs);
+
+        /**
+         * Called on the target thread if nothing was held to save, or writing failed.
+         */
+        void replayFailed(File file);
+    }
+
+    private final long mWindowUs;
+    private final ByteBuffer mData;
+    // the same buffer, positioned for copying frames in
+    private final ByteBuffer mDataIn;
+    private final int mFrameCap;
+    private final int[] mOffsets;
+    private final int[] mLengths;
+    private final long[] mTimes;
+    private final boolean[] mKeys;
+    // numbers of the key frames that start each GOP held
+    private final long[] mGops;
+    private final ParameterSets mParamSets = new ParameterSets();
+    private final PlayoutClock mClock = new PlayoutClock(CLOCK_MAX_LATENCY_MS);
+    private final Listener mListener;
+
+    // Frames held are numbered [mFirst, mNext), and GOPs [mFirstGop, mNextGop). Entry n is
+    // at n % mFrameCap in the arrays.
+    private long mFirst;
+    private long mNext;
+    private long mFirstGop;
+    private long mNextGop;
+    // where the next frame's data goes if there's room
+    private int mWritePos;
+    private boolean mNeedKey = true;
+
+    // a dump asked for or under way; it's cleared when the dump is done
+    private final AtomicReference<File> mDumpRequest = new AtomicReference<>();
+    private final WriteBehindFile mWriter = new WriteBehindFile(DUMP_CHUNK_LEN, DUMP_CHUNKS);
+    private final Mp4Muxer mMuxer = new Mp4Muxer(mWriter::write);
+    private File mDumpFile;
+    private long mDumpNext;
+    private long mDumpEnd;
+    private long mDumpSkipped;
+    private long mDumpStartNs;
+
+    private final Metrics.Counter mEvictedMetric =
+            Metrics.getDefault().counter("replay.evicted_gops");
+    private final Metrics.Counter mOverflowMetric =
+            Metrics.getDefault().counter("replay.overflows");
+    private final Metrics.Counter mDumpsMetric = Metrics.getDefault().counter("replay.dumps");
+    // from starting a dump to handing the writer its end
+    private final Histogram mDumpTimeMetric = Metrics.getDefault().histogram("replay.dump");
+
+    /**
+     * @param windowMs  How much of the stream to keep, at least. A little more is kept, back
+     *                  to the key frame before.
+     * @param maxBytes  Size of the buffer. If the window's frames don't fit, less is kept.
+     */
+    public ReplayBuffer(long windowMs, int maxBytes, Listener listener) {
+        mWindowUs = TimeUnit.MILLISECONDS.toMicros(windowMs);
+        mData = ByteBuffer.allocateDirect(maxBytes);
+        mDataIn = mData.duplicate();
+        mFrameCap = (int)Math.max(1, (windowMs + 1000) * MAX_FPS / 1000);
+        mOffsets = new int[mFrameCap];
+        mLengths = new int[mFrameCap];
+        mTimes = new long[mFrameCap];
+        mKeys = new boolean[mFrameCap];
+        mGops = new long[mFrameCap];
+        mListener = listener;
+    }
+
+    /**
+     * Saves what's held to an MP4 file, which is written while the stream goes on. The
+     * listener hears how it went.
+     * @return  false if a dump is already under way, leaving this one undone.
+     */
+    public boolean dump(File file) {
+        return mDumpRequest.compareAndSet(null, file);
+    }
+
+    @Override
+    public void sendFrame(StreamFrame frame) {
+        boolean newParams = mParamSets.update(frame);
+        long timeUs = mClock.schedule(frame);
+
+        if (newParams && mNext > mFirst) {
+            Log.d(TAG, "parameter sets changed, dropping %d frames", mNext - mFirst);
+            clear();
+        }
+        if (frame.hasPicture()) {
+            store(frame, timeUs);
+        }
+
+        if (mDumpFile == null && mDumpRequest.get() != null) {
+            startDump(mDumpRequest.get());
+        }
+        pumpDump(false);
+    }
+
+    @Override
+    public void finished() {
+        if (mDumpFile == null && mDumpRequest.get() != null) {
+            startDump(mDumpRequest.get());
+        }
+        pumpDump(true);
+        if (!mWriter.close(FINISH_WAIT_MS)) {
+            Log.e(TAG, "gave up waiting for the replay to be written");
+        }
+    }
+
+    private void store(StreamFrame frame, long timeUs) {
+        boolean key = frame.isKeyFrame();
+        int len = frame.getLength();
+        int off;
+        int i;
+
+        if (mNeedKey && !key) {
+            return;
+        }
+
+        // a key frame starts a GOP, so all the others may go to make room for it
+        while ((off = place(len)) < 0 || mNext - mFirst == mFrameCap) {
+            if (mNextGop - mFirstGop > (key ? 0 : 1)) {
+                evictGop();
+            }
+            else {
+                // the GOP under way doesn't fit by itself, so start again at the next one
+                Log.d(TAG, "buffer overflowed at frame %d, dropping its GOP", frame.getCount());
+                mOverflowMetric.increment();
+                clear();
+                return;
+            }
+        }
+
+        mDataIn.limit(off + len).position(off);
+        frame.copyTo(mDataIn);
+        i = (int)(mNext % mFrameCap);
+        mOffsets[i] = off;
+        mLengths[i] = len;
+        mTimes[i] = timeUs;
+        mKeys[i] = key;
+        if (key) {
+            mGops[(int)(mNextGop % mFrameCap)] = mNext;
+            mNextGop++;
+            mNeedKey = false;
+        }
+        mNext++;
+        mWritePos = off + len;
+
+        // the oldest GOP can go once the next one reaches back far enough by itself
+        while (mNextGop - mFirstGop > 1
+                && timeUs - mTimes[(int)(gopStart(mFirstGop + 1) % mFrameCap)] >= mWindowUs) {
+            evictGop();
+        }
+    }
+
+    /*
+     * Where a frame of len bytes can go without overwriting anything held, or -1 if there's
+     * no room. Held data runs from the first frame's offset up to mWritePos, wrapping around.
+     */
+    private int place(int len) {
+        int capacity = mData.capacity();
+        int tail;
+
+        if (mFirst == mNext) {
+            return len <= capacity ? 0 : -1;
+        }
+        tail = mOffsets[(int)(mFirst % mFrameCap)];
+        if (mWritePos > tail) {
+            if (mWritePos + len <= capacity) {
+                return mWritePos;
+            }
+            return len <= tail ? 0 : -1;
+        }
+        if (mWritePos < tail && mWritePos + len <= tail) {
+            return mWritePos;
+        }
+        return -1;
+    }
+
+    private long gopStart(long gop) {
+        return mGops[(int)(gop % mFrameCap)];
+    }
+
+    private void evictGop() {
+        mFirstGop++;
+        mFirst = mFirstGop < mNextGop ? gopStart(mFirstGop) : mNext;
+        mEvictedMetric.increment();
+    }
+
+    private void clear() {
+        mFirst = mNext;
+        mFirstGop = mNextGop;
+        mWritePos = 0;
+        mNeedKey = true;
+    }
+
+    private void startDump(File file) {
+        Sps sps = mParamSets.getParsedSps();
+
+        mDumpFile = file;
+        mDumpStartNs = System.nanoTime();
+        if (mFirst == mNext) {
+            Log.e(TAG, "nothing held to save to %s", file);
+            endDump(false);
+            return;
+        }
+
+        mWriter.open(file);
+        if (!mMuxer.start(mParamSets.getSps(), mParamSets.getPps(),
+                sps != null ? sps.getWidth() : 0, sps != null ? sps.getHeight() : 0)) {
+            Log.e(TAG, "no room to start %s", file);
+            mWriter.closeFile();
+            endDump(false);
+            return;
+        }
+        mDumpNext = mFirst;
+        mDumpEnd = mNext;
+        mDumpSkipped = 0;
+        mDumpsMetric.increment();
+        Log.i(TAG, "saving %d frames to %s", mDumpEnd - mDumpNext, file);
+    }
+
+    /*
+     * Hands the muxer the dump's next few frames, as many as the writer has room for, or with
+     * wait set, all that are left, waiting for room as needed.
+     */
+    private void pumpDump(boolean wait) {
+        int frames = 0;
+
+        if (mDumpFile == null) {
+            return;
+        }
+
+        while (mDumpNext < mDumpEnd && (wait || frames < DUMP_FRAMES_PER_FRAME)) {
+            int i = (int)(mDumpNext % mFrameCap);
+
+            if (mWriter.getError() != null) {
+                endDump(false);
+                return;
+            }
+            if (mDumpNext < mFirst) {
+                // dropped before the dump got to it
+                mDumpSkipped += Math.min(mFirst, mDumpEnd) - mDumpNext;
+                mDumpNext = mFirst;
+                continue;
+            }
+            if (!hasRoom(mLengths[i])) {
+                if (!wait) {
+                    return;
+                }
+                try {
+                    Thread.sleep(DUMP_WAIT_MS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    endDump(false);
+                    return;
+                }
+                continue;
+            }
+
+            mMuxer.add(mData, mOffsets[i], mLengths[i], mKeys[i], mTimes[i]);
+            mDumpNext++;
+            frames++;
+        }
+
+        if (mDumpNext >= mDumpEnd) {
+            endDump(true);
+        }
+    }
+
+    /*
+     * True if the writer can take the fragment being built with a frame of len bytes added,
+     * or it has nothing queued, so waiting won't help.
+     */
+    private boolean hasRoom(int len) {
+        long free = mWriter.getFreeBytes();
+
+        return free >= mMuxer.getPendingBytes() + len + DUMP_MARGIN
+                || free == (long)DUMP_CHUNK_LEN * DUMP_CHUNKS;
+    }
+
+    private void endDump(boolean ok) {
+        File file = mDumpFile;
+
+        if (mMuxer.isStarted()) {
+            ok &= mMuxer.finish();
+            mWriter.closeFile();
+        }
+        ok &= mWriter.getError() == null;
+        mDumpTimeMetric.recordSince(mDumpStartNs);
+        mDumpFile = null;
+        mDumpRequest.set(null);
+
+        if (ok) {
+            Log.i(TAG, "saved %s, %d bytes, %d frames skipped", file, mMuxer.getFileBytes(),
+                    mDumpSkipped);
+            mListener.replaySaved(file,
+                    TimeUnit.MICROSECONDS.toMillis(mMuxer.getFileDurationUs()));
+        }
+        else {
+            mListener.replayFailed(file);
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package com.meekworth.lwdronecam.record;
+
+import com.meekworth.lwdronecam.lwcomms.Histogram;
+import com.meekworth.lwdronecam.lwcomms.Metrics;
+import com.meekworth.lwdronecam.utils.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Appends to files from a thread of its own, so a slow or stalled disk holds up that thread
+ * and never the caller. write() copies the data into a fixed pool of chunks, which the thread
+ * writes out and hands back. When every chunk is waiting for the disk, write() refuses the data
+ * rather than wait, and it's up to the caller what to leave out.
+ *
+ * While there's nothing to write, the thread grows the file with zeros a little ahead of the
+ * data, so the writes that matter mostly land in space the filesystem has already allocated.
+ * (Java has no fallocate(), and growing a file with setLength() leaves it sparse on most
+ * filesystems.) That isn't free: every byte of the file goes to the disk twice, once as a
+ * zero, so the look-ahead is kept to 1MB, and a file left by a crash ends in up to that much
+ * of zeros. Closing a file cuts it back to the data.
+ *
+ * open(), write() and closeFile() take effect in order. They're meant to be called from one
+ * thread, as write() counts on nothing else taking chunks.
+ */
+public class WriteBehindFile implements Closeable {
+    private static final String TAG = "LWDroneCam/record.WriteBehindFile";
+    private static final int DEFAULT_CHUNK_LEN = 64 * 1024;
+    // 4MB, several seconds of the camera's video
+    private static final int DEFAULT_CHUNKS = 64;
+    // how far the file is grown ahead of the data, a step at a time while idle
+    private static final long PREALLOC_AHEAD = 1024 * 1024;
+    private static final int PREALLOC_STEP = 256 * 1024;
+    private static final long IDLE_MS = 50;
+
+    private enum Kind {
+        OPEN,
+        DATA,
+        CLOSE,
+        STOP
+    }
+
+    private static class Op {
+        final Kind mKind;
+        final ByteBuffer mChunk;
+        final File mFile;
+
+        Op(Kind kind, ByteBuffer chunk, File file) {
+            mKind = kind;
+            mChunk = chunk;
+            mFile = file;
+        }
+    }
+
+    private final int mChunkLen;
+    private final ArrayBlockingQueue<ByteBuffer> mFree;
+    private final LinkedBlockingQueue<Op> mQueue = new LinkedBlockingQueue<>();
+    private final Thread mThread;
+    private volatile IOException mError;
+
+    // only used on the writer thread
+    private FileChannel mChannel;
+    private File mFile;
+    private long mPos;
+    private long mAllocated;
+    private ByteBuffer mZeros;
+
+    private final Metrics.Counter mBytesMetric;
+    private final Metrics.Counter mRefusedMetric;
+    // one chunk to the disk
+    private final Histogram mWriteMetric;
+
+    public WriteBehindFile() {
+        this(DEFAULT_CHUNK_LEN, DEFAULT_CHUNKS);
+    }
+
+    public WriteBehindFile(int chunkLen, int chunks) {
+        this(chunkLen, chunks, "record");
+    }
+
+    /**
+     * @param metricsName  What the metrics are named under, e.g. "record" for record.bytes.
+     */
+    public WriteBehindFile(int chunkLen, int chunks, String metricsName) {
+        mBytesMetric = Metrics.getDefault().counter(metricsName + ".bytes");
+        mRefusedMetric = Metrics.getDefault().counter(metricsName + ".refused_writes");
+        mWriteMetric = Metrics.getDefault().histogram(metricsName + ".write");
+        mChunkLen = chunkLen;
+        mFree = new ArrayBlockingQueue<>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            mFree.add(ByteBuffer.allocateDirect(chunkLen));
+        }
+        // not a daemon, so what's queued still reaches the disk if the app is on its way out
+        mThread = new Thread(this::run, "WriteBehind");
+        mThread.start();
+    }
+
+    /**
+     * Starts a new file, replacing any there is, closing the current one first.
+     */
+    public void open(File file) {
+        mQueue.add(new Op(Kind.OPEN, null, file));
+    }
+
+    /**
+     * Queues the buffers, each from its position to its limit, to be appended to the file.
+     * They're left unchanged.
+     * @return  false if there wasn't room for all of them, or writing has failed; nothing was
+     *          queued then.
+     */
+    public boolean write(ByteBuffer... data) {
+        ByteBuffer chunk = null;
+        long len = 0;
+
+        for (ByteBuffer d : data) {
+            len += d.remaining();
+        }
+        if (mError != null || (len + mChunkLen - 1) / mChunkLen > mFree.size()) {
+            mRefusedMetric.increment();
+            return false;
+        }
+
+        // packed into as few chunks as will hold it
+        for (ByteBuffer d : data) {
+            ByteBuffer in = d.duplicate();
+
+            while (in.hasRemaining()) {
+                int limit = in.limit();
+
+                if (chunk == null) {
+                    chunk = mFree.poll();
+                    chunk.clear();
+                }
+                in.limit(in.position() + Math.min(chunk.remaining(), in.remaining()));
+                chunk.put(in);
+                in.limit(limit);
+                if (!chunk.hasRemaining()) {
+                    queue(chunk);
+                    chunk = null;
+                }
+            }
+        }
+        if (chunk != null) {
+            queue(chunk);
+        }
+        return true;
+    }
+
+    private void queue(ByteBuffer chunk) {
+        chunk.flip();
+        mQueue.add(new Op(Kind.DATA, chunk, null));
+    }
+
+    /**
+     * Closes the file once what's queued for it is written.
+     */
+    public void closeFile() {
+        mQueue.add(new Op(Kind.CLOSE, null, null));
+    }
+
+    /**
+     * Room left in the chunks, which is what write() can take right now.
+     */
+    public long getFreeBytes() {
+        return (long)mFree.size() * mChunkLen;
+    }
+
+    /**
+     * The error that stopped writing, or null. Once writing fails, everything after is
+     * refused.
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    /**
+     * Closes the file and stops the thread once everything queued is written. Doesn't wait
+     * for it.
+     */
+    @Override
+    public void close() {
+        mQueue.add(new Op(Kind.STOP, null, null));
+    }
+
+    /**
+     * Closes the file and stops the thread, waiting up to waitMs for everything queued to be
+     * written, e.g. so the process doesn't exit with a file half done.
+     * @return  false if the thread hadn't finished in time (it carries on), or the wait was
+     *          interrupted.
+     */
+    public boolean close(long waitMs) {
+        close();
+        try {
+            mThread.join(waitMs);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !mThread.isAlive();
+    }
+
+    private void run() {
+        for (;;) {
+            Op op;
+
+            try {
+                op = mQueue.poll(IDLE_MS, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+
+            if (op == null) {
+                preallocate();
+                continue;
+            }
+            if (op.mKind == Kind.STOP) {
+                break;
+            }
+
+            try {
+                switch (op.mKind) {
+                    case OPEN:
+                        closeChannel();
+                        openChannel(op.mFile);
+                        break;
+                    case DATA:
+                        writeChunk(op.mChunk);
+                        break;
+                    case CLOSE:
+                        closeChannel();
+                        break;
+                }
+            }
+            catch (IOException e) {
+                fail(e);
+            }
+            finally {
+                if (op.mChunk != null) {
+                    mFree.add(op.mChunk);
+                }
+            }
+        }
+
+        try {
+            closeChannel();
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void openChannel(File file) throws IOException {
+        mFile = file;
+        mChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        mPos = 0;
+        mAllocated = 0;
+        Log.d(TAG, "opened %s", file);
+    }
+
+    private void writeChunk(ByteBuffer chunk) throws IOException {
+        long startNs = System.nanoTime();
+        int len = chunk.remaining();
+
+        if (mChannel == null) {
+            // its file failed to open
+            return;
+        }
+        while (chunk.hasRemaining()) {
+            mPos += mChannel.write(chunk, mPos);
+        }
+        mAllocated = Math.max(mAllocated, mPos);
+        mWriteMetric.recordSince(startNs);
+        mBytesMetric.add(len);
+    }
+
+    /*
+     * Grows the file by a step if it isn't far enough ahead of the data.
+     */
+    private void preallocate() {
+        if (mChannel == null || mAllocated - mPos >= PREALLOC_AHEAD) {
+            return;
+        }
+        if (mZeros == null) {
+            mZeros = ByteBuffer.allocateDirect(PREALLOC_STEP);
+        }
+
+        mZeros.clear();
+        try {
+            while (mZeros.hasRemaining()) {
+                mAllocated += mChannel.write(mZeros, mAllocated);
+            }
+        }
+        catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void closeChannel() throws IOException {
+        if (mChannel == null) {
+            return;
+        }
+
+        try {
+            mChannel.truncate(mPos);
+        }
+        finally {
+            mChannel.close();
+            mChannel = null;
+        }
+        Log.d(TAG, "closed %s, %d bytes", mFile, mPos);
+        if (mPos == 0 && !mFile.delete()) {
+            Log.d(TAG, "failed to delete empty %s", mFile);
+        }
+    }
+
+    private void fail(IOException e) {
+        Log.e(TAG, "writing %s failed: %s", mFile, e.getMessage());
+        mError = e;
+        try {
+            closeChannel();
+        }
+        catch (IOException e2) {
+            Log.d(TAG, "error closing %s: %s", mFile, e2.getMessage());
+        }
+    }
+}
@@ -0,0 +1,455 @@
+package com.meekworth.lwdronecam.relay;
+
+import com.meekworth.lwdronecam.lwcomms.Command;
+import com.meekworth.lwdronecam.lwcomms.Histogram;
+import com.meekworth.lwdronecam.lwcomms.LwcommsException;
+import com.meekworth.lwdronecam.lwcomms.Metrics;
+import com.meekworth.lwdronecam.lwcomms.ParameterSets;
+import com.meekworth.lwdronecam.lwcomms.RecordPlan;
+import com.meekworth.lwdronecam.lwcomms.StreamFrame;
+import com.meekworth.lwdronecam.lwcomms.StreamingTarget;
+import com.meekworth.lwdronecam.lwcomms.Telemetry;
+import com.meekworth.lwdronecam.utils.Log;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Serves the stream on to other viewers, so they share this app's one connection to the
+ * camera instead of each taking a share of its little bandwidth. It speaks the camera's side
+ * of the lewei_cmd protocol on every port it listens on (see ViewerConnection), so apps made
+ * for the camera can connect to it as they are: viewers get the stream between START_STREAM
+ * and STOP_STREAM, and heartbeats are answered with the camera's latest reply (every one of
+ * them, as viewers match replies to their heartbeats in order). Commands that would change
+ * the camera (the time, the record plan) are refused with a failed status, and the record
+ * plan is reported as inactive, so viewers can watch but not control it.
+ *
+ * Each viewer has its own send queue and writer thread, and holds references to the frames
+ * queued for it, so a frame is shared by all of them and never copied. A viewer that lets its
+ * queue fill up loses what's queued and picks up again at the next key frame, and never holds
+ * up the stream or the other viewers. The current GOP is kept, from its key frame on, so a
+ * viewer that joins mid-GOP starts at once from that key frame, with the parameter sets put in
+ * front of it if it doesn't carry them.
+ *
+ * The relay outlives the camera connections that feed it, and is stopped with close(), so
+ * viewers stay connected while the app reconnects to the camera.
+ */
+public class RelayServer implements StreamingTarget, Closeable {
+    private static final String TAG = "LWDroneCam/relay.RelayServer";
+    // two seconds of the camera's video; also the longest GOP kept for joiners
+    public static final int DEFAULT_QUEUE_FRAMES = 60;
+    private static final int MAX_VIEWERS = 8;
+    private static final long QUEUE_POLL_MS = 100;
+    // the status the relay answers commands it won't carry out with
+    private static final int STATUS_REFUSED = -1;
+
+    private final ServerSocketChannel[] mServers;
+    private final Telemetry mTelemetry;
+    private final int mQueueFrames;
+    private final ParameterSets mParamSets = new ParameterSets();
+    private final Set<Viewer> mViewers = ConcurrentHashMap.newKeySet();
+    private volatile boolean mRunning;
+
+    // the GOP under way, from its key frame; only used on the target thread
+    private final StreamFrame[] mGop;
+    private int mGopLen;
+
+    private final Metrics.Counter mJoinsMetric = Metrics.getDefault().counter("relay.joins");
+    private final Metrics.Counter mSentMetric = Metrics.getDefault().counter("relay.frames");
+    private final Metrics.Counter mDroppedMetric =
+            Metrics.getDefault().counter("relay.dropped");
+    // one frame to one viewer
+    private final Histogram mSendMetric = Metrics.getDefault().histogram("relay.send");
+
+    public RelayServer(Telemetry telemetry, InetSocketAddress... addrs) throws IOException {
+        this(telemetry, DEFAULT_QUEUE_FRAMES, addrs);
+    }
+
+    /**
+     * Binds one listening socket per address. Every port speaks the whole protocol, as the
+     * camera's separate stream and command ports are only a convention of the apps.
+     * @param telemetry    Where the camera's heartbeat replies come from.
+     * @param queueFrames  Frames that may wait to go to a viewer before it has to skip ahead.
+     */
+    public RelayServer(Telemetry telemetry, int queueFrames, InetSocketAddress... addrs)
+            throws IOException {
+        mTelemetry = telemetry;
+        mQueueFrames = queueFrames;
+        mGop = new StreamFrame[queueFrames];
+        mServers = new ServerSocketChannel[addrs.length];
+
+        try {
+            for (int i = 0; i < addrs.length; i++) {
+                mServers[i] = ServerSocketChannel.open();
+                mServers[i].socket().setReuseAddress(true);
+                mServers[i].bind(addrs[i]);
+            }
+        }
+        catch (IOException e) {
+            closeServers();
+            throw e;
+        }
+    }
+
+    public int[] getPorts() {
+        int[] ports = new int[mServers.length];
+
+        for (int i = 0; i < mServers.length; i++) {
+            ports[i] = mServers[i].socket().getLocalPort();
+        }
+        return ports;
+    }
+
+    public int getViewerCount() {
+        return mViewers.size();
+    }
+
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+
+        for (ServerSocketChannel server : mServers) {
+            Thread t = new Thread(() -> acceptViewers(server),
+                    "RelayAccept-" + server.socket().getLocalPort());
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    @Override
+    public void sendFrame(StreamFrame frame) {
+        mParamSets.update(frame);
+        keep(frame);
+
+        for (Viewer v : mViewers) {
+            if (!v.mStreaming) {
+                if (v.mLive) {
+                    v.mLive = false;
+                    v.drain();
+                }
+                continue;
+            }
+            if (!v.mLive) {
+                // the kept GOP ends with this frame
+                v.mLive = true;
+                join(v);
+                continue;
+            }
+            forward(v, frame);
+        }
+    }
+
+    /**
+     * The camera connection ended. Viewers stay connected, so the relay may be fed by the next
+     * one, and pick its stream up at the first key frame.
+     */
+    @Override
+    public void finished() {
+        clearGop();
+        for (Viewer v : mViewers) {
+            // joins again, with what's kept by then, on the next connection's first frame
+            v.mLive = false;
+        }
+    }
+
+    /**
+     * Stops listening and disconnects every viewer.
+     */
+    @Override
+    public void close() {
+        mRunning = false;
+        closeServers();
+        for (Viewer v : mViewers) {
+            v.close();
+        }
+    }
+
+    /*
+     * Keeps the frame if it's part of the GOP under way. A GOP too long to keep is let go, and
+     * joiners wait for the next key frame instead.
+     */
+    private void keep(StreamFrame frame) {
+        if (frame.isKeyFrame()) {
+            clearGop();
+        }
+        else if (mGopLen == 0) {
+            return;
+        }
+        if (mGopLen == mGop.length) {
+            clearGop();
+            return;
+        }
+        mGop[mGopLen++] = frame.retain();
+    }
+
+    private void clearGop() {
+        for (int i = 0; i < mGopLen; i++) {
+            mGop[i].release();
+            mGop[i] = null;
+        }
+        mGopLen = 0;
+    }
+
+    private void join(Viewer v) {
+        Log.d(TAG, "%s joined with %d frames of the GOP", v, mGopLen);
+        mJoinsMetric.increment();
+        v.mNeedKey = true;
+        for (int i = 0; i < mGopLen; i++) {
+            forward(v, mGop[i]);
+        }
+    }
+
+    private void forward(Viewer v, StreamFrame frame) {
+        int dropped;
+
+        if (v.mNeedKey) {
+            if (!frame.isKeyFrame()) {
+                return;
+            }
+            v.mNeedKey = false;
+        }
+        if (!v.offer(frame)) {
+            dropped = v.drain() + 1;
+            v.mNeedKey = true;
+            mDroppedMetric.add(dropped);
+            Log.d(TAG, "%s fell behind, dropped %d frames", v, dropped);
+        }
+    }
+
+    private void acceptViewers(ServerSocketChannel server) {
+        while (mRunning) {
+            SocketChannel channel;
+
+            try {
+                channel = server.accept();
+            }
+            catch (IOException e) {
+                if (mRunning) {
+                    Log.e(TAG, "accept failed: %s", e.getMessage());
+                }
+                break;
+            }
+
+            try {
+                if (mViewers.size() >= MAX_VIEWERS) {
+                    Log.i(TAG, "turning away %s, already %d viewers",
+                            channel.getRemoteAddress(), mViewers.size());
+                    channel.close();
+                    continue;
+                }
+                Viewer v = new Viewer(new ViewerConnection(channel));
+                mViewers.add(v);
+                v.start();
+                Log.i(TAG, "viewer %s connected", v);
+            }
+            catch (IOException e) {
+                Log.e(TAG, "failed to set up viewer: %s", e.getMessage());
+            }
+        }
+    }
+
+    private void closeServers() {
+        for (ServerSocketChannel server : mServers) {
+            if (server == null) {
+                continue;
+            }
+            try {
+                server.close();
+            }
+            catch (IOException e) {
+                Log.d(TAG, "error closing server socket: %s", e.getMessage());
+            }
+        }
+    }
+
+    /*
+     * Parameter sets for a key frame that doesn't carry its own, as one Annex-B prefix.
+     */
+    private byte[] paramSetsFor(StreamFrame frame) {
+        byte[] sps;
+        byte[] pps;
+        byte[] both;
+
+        if (frame.hasParameterSets() || !mParamSets.isComplete()) {
+            return null;
+        }
+        sps = mParamSets.getSps();
+        pps = mParamSets.getPps();
+        both = new byte[sps.length + pps.length];
+        System.arraycopy(sps, 0, both, 0, sps.length);
+        System.arraycopy(pps, 0, both, sps.length, pps.length);
+        return both;
+    }
+
+    private class Viewer {
+        private final ViewerConnection mConn;
+        private final ArrayBlockingQueue<StreamFrame> mQueue;
+        // between START_STREAM and STOP_STREAM
+        volatile boolean mStreaming;
+        private volatile boolean mClosed;
+        // cleared by START_STREAM, so the first key frame comes with parameter sets
+        private volatile boolean mParamsSent;
+        // only used on the target thread
+        boolean mLive;
+        boolean mNeedKey;
+
+        Viewer(ViewerConnection conn) {
+            mConn = conn;
+            mQueue = new ArrayBlockingQueue<>(mQueueFrames);
+        }
+
+        void start() {
+            String name = "Relay-" + mConn.getAddress();
+            Thread reader = new Thread(this::readCommands, name + "-cmd");
+            Thread writer = new Thread(this::writeFrames, name + "-frames");
+
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+
+        /**
+         * Queues the frame, holding a reference to it, unless the queue is full.
+         */
+        boolean offer(StreamFrame frame) {
+            frame.retain();
+            if (!mQueue.offer(frame)) {
+                frame.release();
+                return false;
+            }
+            // the writer may have gone already, and left this one behind
+            if (mClosed) {
+                drain();
+            }
+            return true;
+        }
+
+        /**
+         * Lets go of everything queued.
+         * @return  The number of frames that were queued.
+         */
+        int drain() {
+            StreamFrame frame;
+            int n = 0;
+
+            while ((frame = mQueue.poll()) != null) {
+                frame.release();
+                n++;
+            }
+            return n;
+        }
+
+        private void readCommands() {
+            try {
+                while (!mClosed) {
+                    Command.Type type = mConn.readCommand();
+
+                    switch (type) {
+                        case HEARTBEAT:
+                            mConn.sendHeartbeat(mTelemetry.getLatest());
+                            break;
+
+                        case START_STREAM:
+                            mParamsSent = false;
+                            mStreaming = true;
+                            break;
+
+                        case STOP_STREAM:
+                            mStreaming = false;
+                            break;
+
+                        // The camera's settings aren't the viewer's to change, but it still
+                        // gets a reply, as a viewer waiting on one would hang.
+                        case SET_TIME:
+                            // fall through
+                        case SET_RECORD_PLAN:
+                            mConn.sendStatus(type, STATUS_REFUSED);
+                            break;
+
+                        case GET_RECORD_PLAN:
+                            // the relay doesn't ask the camera for its plan
+                            mConn.sendRecordPlan(RecordPlan.getDefault(false));
+                            break;
+
+                        default:
+                            Log.i(TAG, "ignoring %s command from %s", type, this);
+                            break;
+                    }
+                }
+            }
+            catch (EOFException | ClosedChannelException e) {
+                // viewer went away, or the relay was closed
+            }
+            catch (IOException | LwcommsException e) {
+                Log.i(TAG, "dropping viewer %s: %s", this, e.getMessage());
+            }
+            close();
+        }
+
+        private void writeFrames() {
+            try {
+                while (!mClosed) {
+                    StreamFrame frame = mQueue.poll(QUEUE_POLL_MS, TimeUnit.MILLISECONDS);
+
+                    if (frame != null) {
+                        try {
+                            send(frame);
+                        }
+                        finally {
+                            frame.release();
+                        }
+                    }
+                }
+            }
+            catch (IOException e) {
+                // the reader notices too, and closes the viewer
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            close();
+            drain();
+        }
+
+        private void send(StreamFrame frame) throws IOException {
+            long startNs = System.nanoTime();
+            byte[] prefix = null;
+
+            if (frame.isKeyFrame() && !mParamsSent) {
+                prefix = paramSetsFor(frame);
+                mParamsSent = true;
+            }
+            mConn.sendFrame(frame, prefix);
+            mSendMetric.recordSince(startNs);
+            mSentMetric.increment();
+        }
+
+        synchronized void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mStreaming = false;
+            mViewers.remove(this);
+            mConn.close();
+            Log.i(TAG, "viewer %s disconnected", this);
+        }
+
+        @Override
+        public String toString() {
+            return mConn.toString();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.meekworth.lwdronecam.relay;
+
+import com.meekworth.lwdronecam.lwcomms.Command;
+import com.meekworth.lwdronecam.lwcomms.Heartbeat;
+import com.meekworth.lwdronecam.lwcomms.LwcommsException;
+import com.meekworth.lwdronecam.lwcomms.RecordPlan;
+import com.meekworth.lwdronecam.lwcomms.StreamFrame;
+import com.meekworth.lwdronecam.utils.Log;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+/*
+ * The camera's side of a connection from a viewer, for serving the stream on to other apps
+ * the way the camera does (see RelayServer). Commands are read with readCommand(), on
+ * one thread, and replies and frames may be sent from any thread, as each command is written
+ * whole under a lock.
+ *
+ * Frames go out unmunged, as the stream type 0 the camera uses with munging off. Their
+ * payload is written straight from the frame's buffer, with the headers in a gathering write,
+ * so sending a frame to a viewer doesn't copy it.
+ */
+class ViewerConnection implements Closeable {
+    private static final String TAG = "LWDroneCam/relay.ViewerConnection";
+    private static final byte[] NO_PREFIX = new byte[0];
+
+    private final SocketChannel mChannel;
+    private final SocketAddress mAddress;
+    private final InputStream mIn;
+    // only used under the lock
+    private final ByteBuffer mHdr = ByteBuffer.allocate(StreamFrame.HEADERS_LEN);
+    private final ByteBuffer[] mGather = new ByteBuffer[3];
+
+    /**
+     * @param channel  A newly accepted connection, which is put in blocking mode.
+     */
+    ViewerConnection(SocketChannel channel) throws IOException {
+        mChannel = channel;
+        mChannel.configureBlocking(true);
+        mChannel.socket().setTcpNoDelay(true);
+        mAddress = channel.getRemoteAddress();
+        mIn = new BufferedInputStream(Channels.newInputStream(channel));
+    }
+
+    SocketAddress getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Reads the viewer's next command, throwing its body away.
+     * @return  The command's type.
+     */
+    Command.Type readCommand() throws LwcommsException, IOException {
+        return Command.readType(mIn);
+    }
+
+    /**
+     * Answers a heartbeat with the camera's reply to one of its own.
+     * @param hb  The reply to pass on, or null to answer with an empty one (no SD card, no
+     *            clients, a zero clock), e.g. before the camera has sent any.
+     */
+    void sendHeartbeat(Heartbeat hb) throws IOException {
+        sendCommand(Command.heartbeatReply(hb));
+    }
+
+    /**
+     * Answers a command that replies with only a status, e.g. SET_TIME.
+     * @param status  0 for success, anything else for failure.
+     */
+    void sendStatus(Command.Type type, int status) throws IOException {
+        sendCommand(Command.statusReply(type, status));
+    }
+
+    /**
+     * Answers GET_RECORD_PLAN.
+     */
+    void sendRecordPlan(RecordPlan plan) throws IOException {
+        sendCommand(Command.reply(Command.Type.GET_RECORD_PLAN, plan.toBytes()));
+    }
+
+    private void sendCommand(byte[] b) throws IOException {
+        synchronized (mHdr) {
+            writeAll(ByteBuffer.wrap(b));
+        }
+    }
+
+    /**
+     * Sends a frame, blocking until it's all written.
+     * @param prefix  Bytes to put in front of the payload (e.g. parameter sets the frame needs
+     *                and the viewer hasn't had), or null.
+     */
+    void sendFrame(StreamFrame frame, byte[] prefix) throws IOException {
+        int prefixLen = prefix != null ? prefix.length : 0;
+
+        synchronized (mHdr) {
+            mHdr.clear();
+            frame.putHeaders(mHdr, prefixLen);
+            mHdr.flip();
+            mGather[0] = mHdr;
+            mGather[1] = ByteBuffer.wrap(prefix != null ? prefix : NO_PREFIX);
+            // the same buffer is read by every target, so its position is left alone
+            mGather[2] = frame.getBuffer().duplicate();
+            writeAll(mGather);
+            mGather[2] = null;
+        }
+    }
+
+    private void writeAll(ByteBuffer... bufs) throws IOException {
+        long left = 0;
+
+        for (ByteBuffer b : bufs) {
+            left += b.remaining();
+        }
+        // a blocking write can still come back early, e.g. if the thread gets a signal
+        while (left > 0) {
+            left -= mChannel.write(bufs);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            mChannel.close();
+        }
+        catch (IOException e) {
+            Log.d(TAG, "error closing viewer %s: %s", mAddress, e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(mAddress);
+    }
+}
@@ -0,0 +1,51 @@
+package com.meekworth.lwdronecam.utils;
+
+/*
+ * Logging with string format args in the high-level call. Messages go to whatever sink is
+ * installed with setSink() (android.util.Log in the app, stderr in the ground station), and
+ * are dropped, without being formatted, while there's none. The levels have
+ * android.util.Log's values, so an Android sink can pass them straight on.
+ */
+public class Log {
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int ERROR = 6;
+
+    public interface Sink {
+        void log(int level, String tag, String msg);
+    }
+
+    private static volatile Sink sSink;
+
+    /**
+     * @param sink  Where messages go from now on, or null to drop them.
+     */
+    public static void setSink(Sink sink) {
+        sSink = sink;
+    }
+
+    public static void e(String tag, String fmt, Object... args) {
+        write(ERROR, tag, fmt, args);
+    }
+
+    public static void i(String tag, String fmt, Object... args) {
+        write(INFO, tag, fmt, args);
+    }
+
+    public static void d(String tag, String fmt, Object... args) {
+        write(DEBUG, tag, fmt, args);
+    }
+
+    public static void v(String tag, String fmt, Object... args) {
+        write(VERBOSE, tag, fmt, args);
+    }
+
+    private static void write(int level, String tag, String fmt, Object... args) {
+        Sink sink = sSink;
+
+        if (sink != null) {
+            sink.log(level, tag, String.format(fmt, args));
+        }
+    }
+}
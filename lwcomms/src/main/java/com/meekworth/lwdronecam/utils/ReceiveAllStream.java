@@ -0,0 +1,88 @@
+package com.meekworth.lwdronecam.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+public class ReceiveAllStream {
+    private static final int READ_BUF_LEN = 4096;
+
+    private final InputStream mIn;
+    private byte[] mScratch;
+
+    public ReceiveAllStream(InputStream in) {
+        mIn = in;
+    }
+
+    /**
+     * Calls input stream's read() until it fills up the given allocated buffer.
+     * @param buf  Buffer to write
+     * @throws IOException  Propagates socket's IOException
+     */
+    public void recvAll(byte[] buf) throws IOException {
+        recvAll(buf, 0, buf.length);
+    }
+
+    /**
+     * Calls input stream's read() until len bytes are written into buf starting at off.
+     * @param buf  Buffer to write
+     * @param off  Offset in buf to start writing at.
+     * @param len  Number of bytes to read.
+     * @throws IOException  Propagates socket's IOException
+     */
+    public void recvAll(byte[] buf, int off, int len) throws IOException {
+        int tot = 0;
+
+        while (tot < len) {
+            int nread = mIn.read(buf, off + tot, len - tot);
+            if (nread <= 0)
+                throw new IOException("failed to read all bytes");
+            tot += nread;
+        }
+    }
+
+    /**
+     * Reads n bytes into buf at its current position, advancing the position. Heap buffers
+     * are read into directly; direct buffers go through a small reused scratch array.
+     * @param buf  Buffer to write read bytes into.
+     * @param n    Number of bytes to read.
+     * @throws IOException  Propagates socket's IOException
+     */
+    public void recvAll(ByteBuffer buf, int n) throws IOException {
+        if (buf.hasArray()) {
+            recvAll(buf.array(), buf.arrayOffset() + buf.position(), n);
+            buf.position(buf.position() + n);
+            return;
+        }
+
+        if (mScratch == null) {
+            mScratch = new byte[READ_BUF_LEN];
+        }
+        while (n > 0) {
+            int chunk = Math.min(mScratch.length, n);
+            recvAll(mScratch, 0, chunk);
+            buf.put(mScratch, 0, chunk);
+            n -= chunk;
+        }
+    }
+
+    /**
+     * Calls input stream's read() until n bytes are read and written into the given buffer.
+     * @param buf  Buffer to write read bytes into.
+     * @param n    Number of bytes to read.
+     * @throws IOException  Propagates socket's IOException
+     */
+    public void recvAll(ByteArrayOutputStream buf, int n) throws IOException {
+        byte[] b = new byte[READ_BUF_LEN];
+        int tot = 0;
+
+        while (tot < n) {
+            int nread = mIn.read(b, 0, Math.min(b.length, n - tot));
+            if (nread <= 0)
+                throw new IOException("failed to read all bytes");
+            tot += nread;
+            buf.write(b, 0, nread);
+        }
+    }
+}
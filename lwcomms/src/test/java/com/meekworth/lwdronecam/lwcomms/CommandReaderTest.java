@@ -0,0 +1,135 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class CommandReaderTest {
+    private static final int BODY_LEN_OFF = Command.TYPE_OFF + Integer.BYTES
+            + Command.ARG_BODY_LEN * Integer.BYTES;
+
+    /*
+     * Hands out at most mMaxRead bytes a read, the way a socket may.
+     */
+    private static class TrickleStream extends ByteArrayInputStream {
+        private final int mMaxRead;
+
+        TrickleStream(byte[] b, int maxRead) {
+            super(b);
+            mMaxRead = maxRead;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, mMaxRead));
+        }
+    }
+
+    @Test
+    public void skipsGarbageBeforeHeader() throws IOException {
+        byte[] garbage = "\u0001\u0002lew\u0000lewei_x0123".getBytes(StandardCharsets.US_ASCII);
+        Transport in = transport(Integer.MAX_VALUE, garbage,
+                command(Command.Type.HEARTBEAT, new byte[0]),
+                command(Command.Type.STOP_STREAM, new byte[0]));
+        CommandReader reader = new CommandReader();
+
+        assertEquals(Command.Type.HEARTBEAT, reader.next(in).getType());
+        assertEquals(1, reader.getResyncCount());
+        assertEquals(garbage.length, reader.getDiscardedBytes());
+        // and it's in step from there on
+        assertEquals(Command.Type.STOP_STREAM, reader.next(in).getType());
+        assertEquals(1, reader.getResyncCount());
+        assertEquals(garbage.length, reader.getDiscardedBytes());
+    }
+
+    @Test
+    public void dropsHeaderWithBadBodyLength() throws IOException {
+        byte[] bad = command(Command.Type.SET_TIME, new byte[0]);
+        // a frame too short to hold its own frame header
+        byte[] shortFrame = command(Command.Type.STREAM_FRAME, new byte[4]);
+        byte[] body = new byte[20];
+        Transport in;
+        CommandReader reader = new CommandReader();
+        Command cmd;
+
+        ByteBuffer.wrap(bad).order(ByteOrder.LITTLE_ENDIAN).putInt(BODY_LEN_OFF, -5);
+        in = transport(Integer.MAX_VALUE, bad, shortFrame,
+                command(Command.Type.GET_RECORD_PLAN, body),
+                command(Command.Type.HEARTBEAT, new byte[0]));
+
+        cmd = reader.next(in);
+        assertEquals(Command.Type.GET_RECORD_PLAN, cmd.getType());
+        assertEquals(body.length, cmd.getBodyLength());
+        // one scan, through the bad header, then the short frame's header and its body
+        assertEquals(1, reader.getResyncCount());
+        assertEquals(2 * Command.HDR_LEN + 4, reader.getDiscardedBytes());
+
+        reader.skipBody(cmd, in);
+        assertEquals(Command.Type.HEARTBEAT, reader.next(in).getType());
+        assertEquals(1, reader.getResyncCount());
+    }
+
+    @Test
+    public void skipsUnknownCommandWithoutResync() throws IOException {
+        byte[] unknown = command(Command.Type.HEARTBEAT, new byte[10]);
+        Transport in;
+        CommandReader reader = new CommandReader();
+
+        ByteBuffer.wrap(unknown).order(ByteOrder.LITTLE_ENDIAN).putInt(Command.TYPE_OFF, 0x99);
+        in = transport(Integer.MAX_VALUE, unknown, command(Command.Type.START_STREAM,
+                new byte[0]));
+
+        assertEquals(Command.Type.START_STREAM, reader.next(in).getType());
+        assertEquals(1, reader.getSkippedCount());
+        assertEquals(0, reader.getResyncCount());
+        assertEquals(0, reader.getDiscardedBytes());
+    }
+
+    @Test
+    public void findsMagicSplitAcrossReads() throws IOException {
+        // ends in the start of a magic that goes nowhere, right before the real one
+        byte[] garbage = "0123456789abcdefghijklmnopqrstuvwxyzlewei".getBytes(
+                StandardCharsets.US_ASCII);
+        byte[] body = new byte[7];
+
+        for (int maxRead : new int[] {1, 3, 7}) {
+            Transport in = transport(maxRead, garbage,
+                    command(Command.Type.GET_RECORD_PLAN, body),
+                    garbage,
+                    command(Command.Type.HEARTBEAT, new byte[0]));
+            CommandReader reader = new CommandReader();
+            Command cmd = reader.next(in);
+
+            assertEquals(Command.Type.GET_RECORD_PLAN, cmd.getType());
+            assertEquals(body.length, cmd.getBodyLength());
+            assertEquals(1, reader.getResyncCount());
+            assertEquals(garbage.length, reader.getDiscardedBytes());
+
+            reader.skipBody(cmd, in);
+            assertEquals(Command.Type.HEARTBEAT, reader.next(in).getType());
+            assertEquals(2, reader.getResyncCount());
+            assertEquals(2 * garbage.length, reader.getDiscardedBytes());
+        }
+    }
+
+    private static byte[] command(Command.Type type, byte[] body) {
+        return new Command(type, body).toBytes();
+    }
+
+    private static Transport transport(int maxRead, byte[]... parts) {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+
+        for (byte[] p : parts) {
+            b.write(p, 0, p.length);
+        }
+        return new StreamTransport(new TrickleStream(b.toByteArray(), maxRead),
+                new ByteArrayOutputStream());
+    }
+}
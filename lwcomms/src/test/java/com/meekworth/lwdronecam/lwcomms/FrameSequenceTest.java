@@ -0,0 +1,94 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+
+public class FrameSequenceTest {
+    // where the frame header keeps the payload length and the counter
+    private static final int LEN_OFF = 4;
+    private static final int COUNT_OFF = 8;
+
+    @Test
+    public void countsGapsAsLost() throws LwcommsException {
+        FrameSequence seq = feed(1, 2, 3, 6, 7, 9);
+
+        assertEquals(6, seq.getReceived());
+        assertEquals(3, seq.getLost());
+        assertEquals(2, seq.getGaps());
+        assertEquals(0, seq.getDuplicates());
+        assertEquals(0, seq.getBackwards());
+        assertEquals(0, seq.getJumps());
+        assertEquals(100.0 * 3 / 9, seq.getLossPercent(), 1e-9);
+    }
+
+    @Test
+    public void tellsDuplicatesBackwardsAndJumps() throws LwcommsException {
+        // 1000 is too far ahead to be a gap, so the counter started over
+        FrameSequence seq = feed(10, 11, 11, 5, 6, 1000, 1001);
+
+        assertEquals(0, seq.getLost());
+        assertEquals(0, seq.getGaps());
+        assertEquals(1, seq.getDuplicates());
+        assertEquals(1, seq.getBackwards());
+        assertEquals(1, seq.getJumps());
+    }
+
+    @Test
+    public void restartForgetsLastCount() throws LwcommsException {
+        FrameSequence seq = feed(1, 2);
+
+        seq.restart();
+        seq.update(frame(50));
+        seq.update(frame(51));
+        assertEquals(4, seq.getReceived());
+        assertEquals(0, seq.getLost());
+        assertEquals(0, seq.getJumps());
+    }
+
+    @Test
+    public void leavesCorruptFramesOutOfLoss() throws LwcommsException {
+        FrameSequence seq = feed(1, 2);
+
+        // 3 and 4 got here corrupt, 5 never did
+        seq.dropped();
+        seq.dropped();
+        seq.update(frame(6));
+        assertEquals(1, seq.getLost());
+        assertEquals(1, seq.getGaps());
+        assertEquals(2, seq.getCorrupt());
+
+        // a gap that the corrupt frames cover completely isn't a gap
+        seq.dropped();
+        seq.update(frame(8));
+        assertEquals(1, seq.getLost());
+        assertEquals(1, seq.getGaps());
+        assertEquals(3, seq.getCorrupt());
+
+        // and they don't carry over to the next gap
+        seq.update(frame(9));
+        seq.update(frame(11));
+        assertEquals(2, seq.getLost());
+        assertEquals(2, seq.getGaps());
+    }
+
+    private static FrameSequence feed(long... counts) throws LwcommsException {
+        FrameSequence seq = new FrameSequence();
+
+        for (long c : counts) {
+            seq.update(frame(c));
+        }
+        return seq;
+    }
+
+    private static StreamFrame frame(long count) throws LwcommsException {
+        ByteBuffer body = ByteBuffer.allocate(StreamFrame.HDR_LEN)
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+        body.putInt(LEN_OFF, 0).putLong(COUNT_OFF, count);
+        return StreamFrame.fromBytes(new Command(Command.Type.STREAM_FRAME, body.array()));
+    }
+}
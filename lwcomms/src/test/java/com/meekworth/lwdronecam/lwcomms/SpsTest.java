@@ -0,0 +1,59 @@
+package com.meekworth.lwdronecam.lwcomms;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SpsTest {
+    /*
+     * SPS NALs from x264, but for the scaling lists one, which is the 1280x720 high profile
+     * SPS re-encoded with lists added (x264 puts its matrices in the PPS), and checked with
+     * ffprobe.
+     */
+    private static final Object[][] CASES = {
+            // name, SPS, profile, width, height
+            {"baseline, cropped to 360", "6742c01ed900a02ff970110000030001000003003c0f162e48",
+                    66, 640, 360},
+            {"main, cropped on the right", "674d401feca06c1ef3780880000003008000001e078c18cb",
+                    77, 854, 480},
+            {"high, cropped to 1080",
+                    "67640028acd940780227e5c044000003000400000300f03c60c658",
+                    100, 1920, 1080},
+            {"high, interlaced (frame_mbs_only 0)",
+                    "67640028acd94078044fde0220000003002000000783e2c5b2c0",
+                    100, 1920, 1080},
+            {"high 4:2:2", "677a001fbcd9405005bb0110000003001000000303c0f1831960",
+                    122, 1280, 720},
+            {"high, scaling lists", "6764001fad94747610e2315150884b5555555555555555555555555555"
+                    + "5556ca02802dd80880000003008000001e078c18cb",
+                    100, 1280, 720},
+    };
+
+    @Test
+    public void parsesDimensions() throws LwcommsException {
+        for (Object[] c : CASES) {
+            Sps sps = Sps.fromBytes(hex((String)c[1]));
+
+            assertEquals(c[0] + " profile", c[2], sps.getProfile());
+            assertEquals(c[0] + " width", c[3], sps.getWidth());
+            assertEquals(c[0] + " height", c[4], sps.getHeight());
+        }
+    }
+
+    @Test
+    public void skipsStartCode() throws LwcommsException {
+        Sps sps = Sps.fromBytes(hex("00000001" + CASES[0][1]));
+
+        assertEquals(640, sps.getWidth());
+        assertEquals(360, sps.getHeight());
+    }
+
+    private static byte[] hex(String s) {
+        byte[] b = new byte[s.length() / 2];
+
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte)Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return b;
+    }
+}
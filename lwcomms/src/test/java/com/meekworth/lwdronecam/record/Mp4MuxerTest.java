@@ -0,0 +1,281 @@
+package com.meekworth.lwdronecam.record;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Mp4MuxerTest {
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte)0xc0, 0x1e, (byte)0xda,
+            0x02, (byte)0x80, (byte)0xbf, (byte)0xe5, (byte)0x84};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte)0xce, 0x3c, (byte)0x80};
+    private static final long FRAME_US = 33333;
+    private static final List<String> CONTAINERS = Arrays.asList(
+            "moov", "trak", "mdia", "minf", "dinf", "stbl", "mvex", "moof", "traf", "mfra");
+
+    /*
+     * Collects everything written, refusing the writes numbered in refuse (from 1).
+     */
+    private static class ByteOutput implements Mp4Muxer.Output {
+        final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        final List<Integer> mRefuse = new ArrayList<>();
+        int mWrites;
+
+        @Override
+        public boolean write(ByteBuffer... data) {
+            if (mRefuse.contains(++mWrites)) {
+                return false;
+            }
+            for (ByteBuffer d : data) {
+                ByteBuffer in = d.duplicate();
+                byte[] b = new byte[in.remaining()];
+
+                in.get(b);
+                mBytes.write(b, 0, b.length);
+            }
+            return true;
+        }
+    }
+
+    private static class Box {
+        final String mType;
+        final int mStart;
+        final int mSize;
+        final List<Box> mChildren = new ArrayList<>();
+
+        Box(String type, int start, int size) {
+            mType = type;
+            mStart = start;
+            mSize = size;
+        }
+
+        Box child(String type) {
+            for (Box b : mChildren) {
+                if (b.mType.equals(type)) {
+                    return b;
+                }
+            }
+            throw new AssertionError("no " + type + " in " + mType);
+        }
+
+        // past the header, and the version and flags of a full box
+        int body(boolean full) {
+            return mStart + 8 + (full ? 4 : 0);
+        }
+    }
+
+    @Test
+    public void muxesGopsIntoFragments() {
+        ByteOutput out = new ByteOutput();
+        Mp4Muxer muxer = new Mp4Muxer(out);
+        List<Integer> sizes = new ArrayList<>();
+
+        assertTrue(muxer.start(SPS, PPS, 640, 360));
+        for (int i = 0; i < 30; i++) {
+            sizes.add(add(muxer, i, i % 10 == 0));
+        }
+        assertTrue(muxer.finish());
+        assertEquals(0, muxer.getDroppedFrames());
+
+        byte[] file = out.mBytes.toByteArray();
+        ByteBuffer buf = ByteBuffer.wrap(file);
+        List<Box> boxes = parse(buf, 0, file.length);
+
+        assertEquals(muxer.getFileBytes(), file.length);
+        assertEquals("ftyp moov moof mdat moof mdat moof mdat mfra", types(boxes));
+        checkAvcC(buf, boxes.get(1));
+
+        for (int f = 0; f < 3; f++) {
+            Box moof = boxes.get(2 + 2 * f);
+            Box mdat = boxes.get(3 + 2 * f);
+            Box traf = moof.child("traf");
+            int trun = traf.child("trun").body(true);
+            int count = buf.getInt(trun);
+            int dataSize = 0;
+
+            assertEquals(f + 1, buf.getInt(moof.child("mfhd").body(true)));
+            assertEquals(ticks(10 * f), buf.getLong(traf.child("tfdt").body(true)));
+            assertEquals(10, count);
+            // data_offset is from the moof, to just past the mdat header
+            assertEquals(mdat.mStart + 8, moof.mStart + buf.getInt(trun + 4));
+            for (int i = 0; i < count; i++) {
+                int size = buf.getInt(trun + 12 + 8 * i + 4);
+
+                assertEquals((int)sizes.get(10 * f + i), size);
+                dataSize += size;
+            }
+            assertEquals(mdat.mSize - 8, dataSize);
+        }
+
+        checkMfra(buf, boxes, new int[] {2, 4, 6}, new long[] {0, ticks(10), ticks(20)});
+    }
+
+    @Test
+    public void resumesAtKeyFrameAfterRefusedFragment() {
+        ByteOutput out = new ByteOutput();
+        Mp4Muxer muxer = new Mp4Muxer(out);
+
+        // the init segment goes through, and the first fragment, split from a three second
+        // GOP, is refused, which costs the rest of the GOP too
+        out.mRefuse.add(2);
+        assertTrue(muxer.start(SPS, PPS, 640, 360));
+        for (int i = 0; i < 100; i++) {
+            add(muxer, i, i % 90 == 0);
+        }
+        assertEquals(90, muxer.getDroppedFrames());
+        assertTrue(muxer.finish());
+
+        byte[] file = out.mBytes.toByteArray();
+        ByteBuffer buf = ByteBuffer.wrap(file);
+        List<Box> boxes = parse(buf, 0, file.length);
+        Box moof = boxes.get(2);
+        int trun = moof.child("traf").child("trun").body(true);
+
+        assertEquals("ftyp moov moof mdat mfra", types(boxes));
+        assertEquals(muxer.getFileBytes(), file.length);
+        assertEquals(1, buf.getInt(moof.child("mfhd").body(true)));
+        assertEquals(10, buf.getInt(trun));
+        // first-sample-flags marks it a sync sample
+        assertEquals(0x02000000, buf.getInt(trun + 8));
+        assertEquals(ticks(90), buf.getLong(moof.child("traf").child("tfdt").body(true)));
+        checkMfra(buf, boxes, new int[] {2}, new long[] {ticks(90)});
+    }
+
+    @Test
+    public void refusedInitSegmentStartsNoFile() {
+        ByteOutput out = new ByteOutput();
+        Mp4Muxer muxer = new Mp4Muxer(out);
+
+        out.mRefuse.add(1);
+        assertFalse(muxer.start(SPS, PPS, 640, 360));
+        assertFalse(muxer.isStarted());
+        add(muxer, 0, true);
+        assertFalse(muxer.finish());
+        assertEquals(0, out.mBytes.size());
+    }
+
+    /*
+     * Adds frame n of a synthetic stream: a key frame carries the parameter sets in front of
+     * its IDR slice, as the camera sends them.
+     * @return  The size the sample should have in the file, in AVCC.
+     */
+    private static int add(Mp4Muxer muxer, int n, boolean key) {
+        int sliceLen = 200 + 37 * (n % 13) + (key ? 1000 : 0);
+        byte[] slice = new byte[4 + sliceLen];
+        ByteBuffer frame;
+
+        slice[3] = 1;
+        slice[4] = (byte)(key ? 0x65 : 0x41);
+        for (int i = 5; i < slice.length; i++) {
+            // never zero, so no start code turns up inside
+            slice[i] = (byte)(1 + (n + i) % 250);
+        }
+        frame = ByteBuffer.allocate((key ? SPS.length + PPS.length : 0) + slice.length);
+        if (key) {
+            frame.put(SPS).put(PPS);
+        }
+        frame.put(slice).flip();
+
+        muxer.add(frame, 0, frame.limit(), key, n * FRAME_US);
+        // the parameter sets are left to the avcC, and the start code becomes a length
+        return sliceLen + 4;
+    }
+
+    private static long ticks(int frame) {
+        return frame * FRAME_US * Mp4Muxer.TIMESCALE / 1000000;
+    }
+
+    /*
+     * Parses the boxes in [from, to), checking they fill it exactly.
+     */
+    private static List<Box> parse(ByteBuffer buf, int from, int to) {
+        List<Box> boxes = new ArrayList<>();
+        int pos = from;
+
+        while (pos < to) {
+            int size = buf.getInt(pos);
+            Box box;
+
+            assertTrue("box at " + pos + " too small", size >= 8);
+            assertTrue("box at " + pos + " runs past its parent", pos + size <= to);
+            box = new Box(typeAt(buf, pos), pos, size);
+            if (CONTAINERS.contains(box.mType)) {
+                box.mChildren.addAll(parse(buf, pos + 8, pos + size));
+            }
+            boxes.add(box);
+            pos += size;
+        }
+        assertEquals(to, pos);
+        return boxes;
+    }
+
+    private static String types(List<Box> boxes) {
+        StringBuilder sb = new StringBuilder();
+
+        for (Box b : boxes) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(b.mType);
+        }
+        return sb.toString();
+    }
+
+    private static void checkAvcC(ByteBuffer buf, Box moov) {
+        Box stbl = moov.child("trak").child("mdia").child("minf").child("stbl");
+        // stsd's entry count, then the avc1 box, whose avcC follows its 78 bytes of fields
+        int avc1 = stbl.child("stsd").body(true) + 4;
+        int avcC = avc1 + 8 + 78;
+        int spsLen = SPS.length - 4;
+        byte[] sps = new byte[spsLen];
+
+        assertEquals("avc1", typeAt(buf, avc1));
+        assertEquals("avcC", typeAt(buf, avcC));
+        // profile, compatibility and level, from the SPS
+        assertEquals(SPS[5], buf.get(avcC + 9));
+        assertEquals(SPS[7], buf.get(avcC + 11));
+        assertEquals(spsLen, buf.getShort(avcC + 14));
+        for (int i = 0; i < spsLen; i++) {
+            sps[i] = buf.get(avcC + 16 + i);
+        }
+        assertArrayEquals(Arrays.copyOfRange(SPS, 4, SPS.length), sps);
+    }
+
+    /*
+     * Checks the mfra indexes the moofs at the given box indexes, with the given times, and
+     * that its mfro, the last thing in the file, gives its size.
+     */
+    private static void checkMfra(ByteBuffer buf, List<Box> boxes, int[] moofs, long[] times) {
+        Box mfra = boxes.get(boxes.size() - 1);
+        int tfra = mfra.child("tfra").body(true);
+
+        assertEquals(mfra.mSize, buf.getInt(buf.limit() - 4));
+        assertEquals(mfra.mSize, buf.getInt(mfra.child("mfro").body(true)));
+        assertEquals(moofs.length, buf.getInt(tfra + 8));
+        for (int i = 0; i < moofs.length; i++) {
+            int entry = tfra + 12 + 19 * i;
+
+            assertEquals(times[i], buf.getLong(entry));
+            assertEquals(boxes.get(moofs[i]).mStart, buf.getLong(entry + 8));
+            assertEquals("moof", typeAt(buf, (int)buf.getLong(entry + 8)));
+        }
+    }
+
+    private static String typeAt(ByteBuffer buf, int pos) {
+        byte[] type = new byte[4];
+
+        for (int i = 0; i < 4; i++) {
+            type[i] = buf.get(pos + 4 + i);
+        }
+        return new String(type, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,100 @@
+package com.meekworth.lwdronecam.record;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WriteBehindFileTest {
+    private static final long CLOSE_WAIT_MS = 5000;
+
+    @Rule
+    public TemporaryFolder mTmp = new TemporaryFolder();
+
+    @Test
+    public void packsWritesAcrossChunks() throws IOException {
+        File file = mTmp.newFile("packed");
+        WriteBehindFile writer = new WriteBehindFile(16, 8, "test");
+        byte[] expected = bytes(0, 100);
+        ByteBuffer src = ByteBuffer.wrap(expected);
+
+        writer.open(file);
+        // pieces that straddle the chunks, several to a write
+        assertTrue(writer.write(slice(src, 0, 10), slice(src, 10, 25)));
+        assertTrue(writer.write(slice(src, 35, 40)));
+        assertTrue(writer.write(slice(src, 75, 1), slice(src, 76, 24)));
+        assertEquals(0, src.position());
+        assertTrue(writer.close(CLOSE_WAIT_MS));
+
+        assertNull(writer.getError());
+        assertArrayEquals(expected, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void truncatesPreallocationOnClose() throws Exception {
+        File file = mTmp.newFile("truncated");
+        WriteBehindFile writer = new WriteBehindFile(1024, 4, "test");
+        byte[] expected = bytes(7, 3000);
+
+        writer.open(file);
+        assertTrue(writer.write(ByteBuffer.wrap(expected)));
+        // long enough idle for the writer to grow the file ahead of the data
+        for (int i = 0; i < 100 && file.length() <= expected.length; i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(file.length() > expected.length);
+        writer.closeFile();
+        assertTrue(writer.close(CLOSE_WAIT_MS));
+
+        assertArrayEquals(expected, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void refusesWhatDoesNotFit() throws IOException {
+        File file = mTmp.newFile("refused");
+        WriteBehindFile writer = new WriteBehindFile(16, 2, "test");
+
+        writer.open(file);
+        assertFalse(writer.write(ByteBuffer.wrap(bytes(0, 33))));
+        assertTrue(writer.write(ByteBuffer.wrap(bytes(0, 32))));
+        assertTrue(writer.close(CLOSE_WAIT_MS));
+
+        assertArrayEquals(bytes(0, 32), Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void deletesEmptyFile() throws IOException {
+        File file = mTmp.newFile("empty");
+        WriteBehindFile writer = new WriteBehindFile(16, 2, "test");
+
+        writer.open(file);
+        assertTrue(writer.close(CLOSE_WAIT_MS));
+        assertFalse(file.exists());
+    }
+
+    private static byte[] bytes(int seed, int len) {
+        byte[] b = new byte[len];
+
+        for (int i = 0; i < len; i++) {
+            b[i] = (byte)(seed + i * 31);
+        }
+        return b;
+    }
+
+    private static ByteBuffer slice(ByteBuffer src, int off, int len) {
+        ByteBuffer b = src.duplicate();
+
+        b.position(off).limit(off + len);
+        return b.slice();
+    }
+}